@@ -0,0 +1,171 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.benchmark;
+
+import jp.openstandia.connector.pulumi.*;
+import jp.openstandia.connector.pulumi.testutil.MockClient;
+import jp.openstandia.connector.pulumi.testutil.PulumiDataset;
+import jp.openstandia.connector.pulumi.testutil.PulumiDatasetGenerator;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static jp.openstandia.connector.pulumi.PulumiClient.*;
+
+/**
+ * Mapping the decoded pulumi objects to ConnectorObject by the handlers under different attributesToGet.
+ * The client serves the generated objects from memory and returns no team associations of the users,
+ * so only the mapping cost is measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConnectorObjectMappingBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    public int size;
+
+    /**
+     * none: no ATTRIBUTES_TO_GET (all attributes without associations)
+     * default: RETURN_DEFAULT_ATTRIBUTES
+     * associations: RETURN_DEFAULT_ATTRIBUTES + the associations
+     * partial: RETURN_DEFAULT_ATTRIBUTES + the associations with ALLOW_PARTIAL_ATTRIBUTE_VALUES
+     */
+    @Param({"none", "default", "associations", "partial"})
+    public String attributesToGet;
+
+    private PulumiUserHandler userHandler;
+    private PulumiTeamHandler teamHandler;
+    private OperationOptions userOptions;
+    private OperationOptions teamOptions;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        PulumiDataset dataset = new PulumiDatasetGenerator(42)
+                .members(size)
+                .invites(0)
+                .teams(size)
+                .maxTeamSize(Math.min(size, 1000))
+                .generate();
+
+        PulumiConfiguration configuration = new PulumiConfiguration();
+        configuration.setOrganization("benchmark");
+        MockClient client = new DatasetClient(dataset);
+        PulumiSchema schema = new PulumiSchema(configuration, client);
+
+        userHandler = new PulumiUserHandler(configuration, client, schema.userSchema);
+        teamHandler = new PulumiTeamHandler(configuration, client);
+
+        userOptions = toOptions(PulumiUserHandler.ATTR_TEAMS);
+        teamOptions = toOptions(PulumiTeamHandler.ATTR_MEMBERS);
+    }
+
+    private OperationOptions toOptions(String association) {
+        OperationOptionsBuilder builder = new OperationOptionsBuilder();
+        switch (attributesToGet) {
+            case "none":
+                break;
+            case "default":
+                builder.setReturnDefaultAttributes(true);
+                break;
+            case "associations":
+                builder.setReturnDefaultAttributes(true);
+                builder.setAttributesToGet(Collections.singleton(association));
+                break;
+            case "partial":
+                builder.setReturnDefaultAttributes(true);
+                builder.setAttributesToGet(Collections.singleton(association));
+                builder.setAllowPartialAttributeValues(true);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown attributesToGet: " + attributesToGet);
+        }
+        return builder.build();
+    }
+
+    @Benchmark
+    public void mapUsers(Blackhole bh) {
+        userHandler.query(null, object -> {
+            bh.consume(object);
+            return true;
+        }, userOptions);
+    }
+
+    @Benchmark
+    public void mapTeams(Blackhole bh) {
+        teamHandler.query(null, object -> {
+            bh.consume(object);
+            return true;
+        }, teamOptions);
+    }
+
+    /**
+     * Serves the listings and the teams with members from the dataset.
+     */
+    static class DatasetClient extends MockClient {
+        private final List<PulumiMemberRepresentation> members;
+        private final List<PulumiTeamWithMembersRepresentation> teams;
+        private final Map<String, PulumiTeamWithMembersRepresentation> teamsByName = new HashMap<>();
+
+        DatasetClient(PulumiDataset dataset) {
+            this.members = dataset.members;
+            this.teams = dataset.teams;
+            for (PulumiTeamWithMembersRepresentation team : teams) {
+                teamsByName.put(team.name, team);
+            }
+        }
+
+        @Override
+        public void getUsers(PulumiSchema schema, PulumiQueryHandler<PulumiMemberRepresentation> handler, OperationOptions options, Set<String> attributesToGet, int queryPageSize) {
+            for (PulumiMemberRepresentation member : members) {
+                if (!handler.handle(member)) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void getTeams(PulumiSchema schema, PulumiQueryHandler<PulumiTeamRepresentation> handler, OperationOptions options, Set<String> attributesToGet, int queryPageSize) {
+            for (PulumiTeamWithMembersRepresentation team : teams) {
+                PulumiTeamRepresentation t = new PulumiTeamRepresentation();
+                t.kind = team.kind;
+                t.name = team.name;
+                t.displayName = team.displayName;
+                t.description = team.description;
+                if (!handler.handle(t)) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public PulumiTeamWithMembersRepresentation getTeam(PulumiSchema schema, Uid uid, OperationOptions options, Set<String> attributesToGet) {
+            return teamsByName.get(uid.getUidValue());
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jp.openstandia.connector.pulumi.rest.PulumiJson;
+import jp.openstandia.connector.pulumi.testutil.PulumiDataset;
+import jp.openstandia.connector.pulumi.testutil.PulumiDatasetGenerator;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static jp.openstandia.connector.pulumi.PulumiClient.*;
+
+/**
+ * Decoding the pulumi REST API responses. The payloads are decoded from the stream like PulumiRESTClient.
+ * The "mapper" benchmarks resolve the type per call, the others use the pre-built readers of {@link PulumiJson}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonDecodeBenchmark {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final PulumiJson JSON = PulumiJson.get(false);
+
+    @Param({"100", "10000", "100000"})
+    public int size;
+
+    private byte[] members;
+    private byte[] invites;
+    private byte[] teamWithMembers;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        // One team which has all members
+        PulumiDataset dataset = new PulumiDatasetGenerator(42)
+                .members(size)
+                .invites(size)
+                .teams(1)
+                .maxTeamSize(size)
+                .generate();
+
+        members = MAPPER.writeValueAsBytes(dataset.toMembersRepresentation());
+        invites = MAPPER.writeValueAsBytes(dataset.toInvitesRepresentation());
+        teamWithMembers = MAPPER.writeValueAsBytes(dataset.getLargestTeam());
+    }
+
+    @Benchmark
+    public List<PulumiMemberRepresentation> decodeMembersByMapper() throws IOException {
+        return MAPPER.readValue(new ByteArrayInputStream(members), PulumiMembersRepresentation.class).members;
+    }
+
+    @Benchmark
+    public List<PulumiMemberRepresentation> decodeMembers() throws IOException {
+        return JSON.read(new ByteArrayInputStream(members), PulumiMembersRepresentation.class).members;
+    }
+
+    @Benchmark
+    public List<PulumiInviteRepresentation> decodeInvites() throws IOException {
+        return JSON.read(new ByteArrayInputStream(invites), PulumiInvitesRepresentation.class).invites;
+    }
+
+    @Benchmark
+    public List<PulumiTeamMemberRepresentation> decodeTeamWithMembers() throws IOException {
+        return JSON.read(new ByteArrayInputStream(teamWithMembers), PulumiTeamWithMembersRepresentation.class).members;
+    }
+}
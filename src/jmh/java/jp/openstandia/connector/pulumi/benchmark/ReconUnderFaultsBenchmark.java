@@ -0,0 +1,167 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.benchmark;
+
+import jp.openstandia.connector.pulumi.PulumiConfiguration;
+import jp.openstandia.connector.pulumi.testutil.FakePulumiServer;
+import jp.openstandia.connector.pulumi.testutil.FaultInjectingPulumiConnector;
+import jp.openstandia.connector.pulumi.testutil.FaultInjectionInterceptor;
+import jp.openstandia.connector.pulumi.testutil.FaultInjectionInterceptor.Latency;
+import jp.openstandia.connector.pulumi.testutil.PulumiDatasetGenerator;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.api.APIConfiguration;
+import org.identityconnectors.framework.api.ConnectorFacade;
+import org.identityconnectors.framework.api.ConnectorFacadeFactory;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.identityconnectors.test.common.TestHelpers;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static jp.openstandia.connector.pulumi.PulumiTeamHandler.ATTR_MEMBERS;
+import static jp.openstandia.connector.pulumi.PulumiTeamHandler.TEAM_OBJECT_CLASS;
+import static jp.openstandia.connector.pulumi.PulumiUserHandler.USER_OBJECT_CLASS;
+
+/**
+ * Recon (all users, then all teams with the members) against the fake pulumi API under the fault profiles.
+ * The score is the completion time of a recon including the failed ones, the counters report
+ * the failed recons and the injected faults. The error rate is failed / (succeeded + failed).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class ReconUnderFaultsBenchmark {
+
+    private static final String ORGANIZATION = "fault-org";
+
+    /**
+     * none: no fault
+     * slow: long-tailed latency of all calls
+     * throttled: 10% 429 with Retry-After
+     * flaky: connection resets and 5xx bursts
+     * timeouts: 1% timeouts of the team fetches
+     */
+    @Param({"none", "slow", "throttled", "flaky", "timeouts"})
+    public String profile;
+
+    private FakePulumiServer server;
+    private FaultInjectionInterceptor interceptor;
+    private ConnectorFacade connector;
+
+    private final AtomicInteger succeeded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+        public long failedRecons;
+        public long injectedFaults;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        server = new FakePulumiServer(ORGANIZATION);
+        server.load(new PulumiDatasetGenerator(42)
+                .members(500)
+                .invites(20)
+                .teams(50)
+                .maxTeamSize(200)
+                .generate());
+
+        interceptor = new FaultInjectionInterceptor(42);
+        FaultInjectionInterceptor.register(ORGANIZATION, interceptor);
+        // Configure the faults after the connection test of the connector
+        connector = newFacade();
+        connector.test();
+        applyProfile();
+    }
+
+    private void applyProfile() {
+        switch (profile) {
+            case "none":
+                break;
+            case "slow":
+                interceptor.onAll().latency(Latency.logNormal(20, 0.7));
+                break;
+            case "throttled":
+                interceptor.onAll().throttle(0.1, 1);
+                break;
+            case "flaky":
+                interceptor.onAll()
+                        .connectionResets(0.01)
+                        .serverErrorBursts(0.005, 3);
+                break;
+            case "timeouts":
+                interceptor.on("GET /api/orgs/.+/teams/.+").timeouts(0.01, 500);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown profile: " + profile);
+        }
+    }
+
+    private ConnectorFacade newFacade() {
+        PulumiConfiguration conf = new PulumiConfiguration();
+        conf.setBaseURL(server.getBaseURL());
+        conf.setOrganization(ORGANIZATION);
+        conf.setAccessToken(new GuardedString("dummy".toCharArray()));
+        conf.setRateLimitPerSecond(0);
+        // Keep the failures of a recon from failing the next ones
+        conf.setCircuitBreakerOpenDurationInSeconds(1);
+
+        APIConfiguration impl = TestHelpers.createTestConfiguration(FaultInjectingPulumiConnector.class, conf);
+        impl.getResultsHandlerConfiguration().setEnableAttributesToGetSearchResultsHandler(false);
+        impl.getResultsHandlerConfiguration().setEnableNormalizingResultsHandler(false);
+        impl.getResultsHandlerConfiguration().setEnableFilteredResultsHandler(false);
+        return ConnectorFacadeFactory.getInstance().newInstance(impl);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        int total = succeeded.get() + failed.get();
+        System.out.printf("%nprofile: %s, recons: %d, failed: %d, error rate: %.2f%%, injected faults: %d/%d calls%n",
+                profile, total, failed.get(), total == 0 ? 0 : 100.0 * failed.get() / total,
+                interceptor.getInjectedFaults(), interceptor.getCalls());
+
+        ConnectorFacadeFactory.getInstance().dispose();
+        FaultInjectionInterceptor.unregister(ORGANIZATION);
+        server.close();
+    }
+
+    @Benchmark
+    public int recon(Counters counters) {
+        int faults = interceptor.getInjectedFaults();
+        int[] count = new int[1];
+        try {
+            connector.search(USER_OBJECT_CLASS, null, obj -> ++count[0] > 0,
+                    new OperationOptionsBuilder().setReturnDefaultAttributes(true).build());
+            connector.search(TEAM_OBJECT_CLASS, null, obj -> ++count[0] > 0,
+                    new OperationOptionsBuilder().setAttributesToGet(ATTR_MEMBERS).build());
+            succeeded.incrementAndGet();
+
+        } catch (ConnectorException e) {
+            failed.incrementAndGet();
+            counters.failedRecons++;
+        }
+        counters.injectedFaults += interceptor.getInjectedFaults() - faults;
+        return count[0];
+    }
+}
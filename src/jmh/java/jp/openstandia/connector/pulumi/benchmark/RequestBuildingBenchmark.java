@@ -0,0 +1,100 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jp.openstandia.connector.pulumi.PulumiConfiguration;
+import jp.openstandia.connector.pulumi.rest.PulumiEndpoint;
+import jp.openstandia.connector.pulumi.rest.PulumiRequestFactory;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static jp.openstandia.connector.pulumi.PulumiClient.PulumiUpdateTeamMemberOperation;
+
+/**
+ * Building the team member request of the fan-out and the bulk writes.
+ * The "formatted" benchmarks build it like the former PulumiRESTClient: the URL is formatted and parsed,
+ * the media type is parsed and the body is written to a String. Run with "-prof gc" to compare the allocation
+ * per request (gc.alloc.rate.norm).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestBuildingBenchmark {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private PulumiConfiguration configuration;
+    private PulumiRequestFactory factory;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        configuration = new PulumiConfiguration();
+        configuration.setBaseURL("https://api.pulumi.com/");
+        configuration.setOrganization("benchmark-org");
+        factory = new PulumiRequestFactory(configuration);
+    }
+
+    @Benchmark
+    public Request formattedGet() {
+        String url = String.format("%s/teams/%s", configuration.getPulumiURL(), "team-0001");
+        return new Request.Builder()
+                .url(url)
+                .tag(PulumiEndpoint.class, PulumiEndpoint.GET_TEAM)
+                .get()
+                .build();
+    }
+
+    @Benchmark
+    public Request factoryGet() {
+        return factory.get(PulumiEndpoint.GET_TEAM, factory.teamUrl("team-0001"));
+    }
+
+    @Benchmark
+    public Request formattedPatch() throws IOException {
+        Map<String, String> body = new HashMap<>();
+        body.put("memberAction", "add");
+        body.put("member", "user-0001");
+
+        String url = String.format("%s/teams/%s", configuration.getPulumiURL(), "team-0001");
+        RequestBody requestBody = RequestBody.create(MAPPER.writeValueAsString(body),
+                MediaType.parse("application/json; charset=UTF-8"));
+        return new Request.Builder()
+                .url(url)
+                .tag(PulumiEndpoint.class, PulumiEndpoint.UPDATE_TEAM_MEMBER)
+                .patch(requestBody)
+                .build();
+    }
+
+    @Benchmark
+    public Request factoryPatch() {
+        PulumiUpdateTeamMemberOperation body = new PulumiUpdateTeamMemberOperation();
+        body.memberAction = "add";
+        body.member = "user-0001";
+
+        return factory.patch(PulumiEndpoint.UPDATE_TEAM_MEMBER, factory.teamUrl("team-0001"), body);
+    }
+}
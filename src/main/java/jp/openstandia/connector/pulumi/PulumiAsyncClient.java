@@ -0,0 +1,85 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi;
+
+import org.identityconnectors.framework.common.objects.Uid;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static jp.openstandia.connector.pulumi.PulumiClient.*;
+
+/**
+ * Non-blocking client of the pulumi REST API. Each method maps to one API call (except the retry on 429).
+ * <p>
+ * The methods return without waiting for the rate limit, the concurrency limit or the probe of the circuit breaker.
+ * The futures are completed by the HTTP client's threads. Cancelling a future cancels its HTTP call.
+ * The futures are completed exceptionally with the same ConnId exceptions as {@link PulumiClient}.
+ */
+public interface PulumiAsyncClient {
+
+    /**
+     * Verify the access token.
+     */
+    CompletableFuture<Void> test();
+
+    /**
+     * Check the client is still alive without calling the API.
+     */
+    void checkAlive();
+
+    // User
+
+    CompletableFuture<Void> invite(PulumiInvitationRepresentation invitation);
+
+    /**
+     * @return the pending invitations as the members which have the invitation id
+     */
+    CompletableFuture<List<PulumiMemberRepresentation>> getInvitations();
+
+    CompletableFuture<Void> deleteInvitation(Uid uid, String invitationId);
+
+    CompletableFuture<List<PulumiMemberRepresentation>> getMembers();
+
+    CompletableFuture<Void> updateMember(Uid uid, String username, PulumiUpdateUserOperation op);
+
+    CompletableFuture<Void> deleteMember(Uid uid, String username);
+
+    // Team
+
+    CompletableFuture<Void> createTeam(PulumiTeamRepresentation team);
+
+    CompletableFuture<List<PulumiTeamRepresentation>> getTeams();
+
+    /**
+     * @param teamName
+     * @return the team, or null if it's not found
+     */
+    CompletableFuture<PulumiTeamWithMembersRepresentation> getTeam(String teamName);
+
+    CompletableFuture<Void> updateTeam(Uid uid, PulumiUpdateTeamOperation op);
+
+    /**
+     * Add or remove the member of the team.
+     *
+     * @param teamName
+     * @param username
+     * @param memberAction "add" or "remove"
+     */
+    CompletableFuture<Void> updateTeamMember(String teamName, String username, String memberAction);
+
+    CompletableFuture<Void> deleteTeam(Uid uid);
+}
@@ -19,45 +19,6 @@ import static jp.openstandia.connector.pulumi.PulumiUserHandler.USER_OBJECT_CLAS
 public interface PulumiClient {
     void test();
 
-    default String getInvitationEndpointURL(PulumiConfiguration configuration) {
-        String url = configuration.getPulumiConsoleURL();
-        return String.format("%s/invites", url);
-    }
-
-    default String getInvitationEndpointURL(PulumiConfiguration configuration, String invitationId) {
-        String url = configuration.getPulumiConsoleURL();
-        return String.format("%s/invites/%s", url, invitationId);
-    }
-
-    default String getUsersEndpointURL(PulumiConfiguration configuration) {
-        String url = configuration.getPulumiURL();
-        return String.format("%s/members?type=frontend", url);
-    }
-
-    default String getUserEndpointURL(PulumiConfiguration configuration, String username) {
-        String url = configuration.getPulumiURL();
-        return String.format("%s/members/%s", url, username);
-    }
-
-    default String getCreateTeamEndpointURL(PulumiConfiguration configuration) {
-        String url = configuration.getPulumiURL();
-        return String.format("%s/teams/pulumi", url);
-    }
-
-    default String getTeamsEndpointURL(PulumiConfiguration configuration) {
-        String url = configuration.getPulumiURL();
-        return String.format("%s/teams", url);
-    }
-
-    default String getTeamEndpointURL(PulumiConfiguration configuration, Uid teamUid) {
-        return getTeamEndpointURL(configuration, teamUid.getUidValue());
-    }
-
-    default String getTeamEndpointURL(PulumiConfiguration configuration, String teamName) {
-        String url = configuration.getPulumiURL();
-        return String.format("%s/teams/%s", url, teamName);
-    }
-
     default PulumiInvitationRepresentation createInvitation(PulumiSchema schema, Set<Attribute> attributes) {
         PulumiInvitationRepresentation invitation = new PulumiInvitationRepresentation();
 
@@ -114,6 +75,11 @@ public interface PulumiClient {
         return team;
     }
 
+    /**
+     * Check the client is still alive without calling the API.
+     */
+    void checkAlive();
+
     void close();
 
     // User
@@ -211,6 +177,11 @@ public interface PulumiClient {
         public String newDescription;
     }
 
+    class PulumiUpdateTeamMemberOperation {
+        public String memberAction;
+        public String member;
+    }
+
     @JsonInclude(JsonInclude.Include.NON_NULL)
     @JsonIgnoreProperties(ignoreUnknown = true)
     class PulumiTeamsRepresentation {
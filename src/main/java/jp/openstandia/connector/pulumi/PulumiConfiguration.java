@@ -15,12 +15,16 @@
  */
 package jp.openstandia.connector.pulumi;
 
+import okhttp3.HttpUrl;
+import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
 import org.identityconnectors.framework.spi.AbstractConfiguration;
 import org.identityconnectors.framework.spi.ConfigurationProperty;
 
 public class PulumiConfiguration extends AbstractConfiguration {
 
+    private String baseURL = "https://api.pulumi.com";
     private GuardedString accessToken;
     private String organization;
     private int connectTimeoutInMilliseconds = 10000; // 10s
@@ -32,13 +36,29 @@ public class PulumiConfiguration extends AbstractConfiguration {
     private String httpProxyUser;
     private GuardedString httpProxyPassword;
 
+    private int cacheTTLInSeconds = 0; // disabled
+    private int rateLimitPerSecond = 0; // unlimited
+    private int maxConcurrency = 16;
+    private int circuitBreakerFailureThreshold = 5;
+    private int circuitBreakerOpenDurationInSeconds = 30;
+    private int httpCallWarningThreshold = 0; // disabled
+    private boolean resourceAccountingEnabled = false;
+    private boolean offHeapCacheEnabled = false;
+    private int tokenVerificationTTLInSeconds = 30;
+    private boolean lazyInitEnabled = false;
+    private int healthCheckIntervalInSeconds = 60;
+    private boolean conditionalRequestsEnabled = false;
+    private boolean jsonBytecodeGenerationEnabled = false;
+    private int pipelinedSearchQueueSize = 0; // disabled
+    private int operationTimeoutInMilliseconds = 0; // disabled
+
     /**
      * Return base API URL for inivitation.
      *
      * @return
      */
     public String getPulumiConsoleURL() {
-        return "https://api.pulumi.com/api/console/orgs/" + this.organization;
+        return getNormalizedBaseURL() + "/api/console/orgs/" + this.organization;
     }
 
     /**
@@ -47,11 +67,18 @@ public class PulumiConfiguration extends AbstractConfiguration {
      * @return
      */
     public String getPulumiURL() {
-        return "https://api.pulumi.com/api/orgs/" + this.organization;
+        return getNormalizedBaseURL() + "/api/orgs/" + this.organization;
     }
 
     public String getPulumiSelfURL() {
-        return "https://api.pulumi.com/api/user";
+        return getNormalizedBaseURL() + "/api/user";
+    }
+
+    private String getNormalizedBaseURL() {
+        if (baseURL.endsWith("/")) {
+            return baseURL.substring(0, baseURL.length() - 1);
+        }
+        return baseURL;
     }
 
     @ConfigurationProperty(
@@ -180,7 +207,263 @@ public class PulumiConfiguration extends AbstractConfiguration {
         this.httpProxyPassword = httpProxyPassword;
     }
 
+    @ConfigurationProperty(
+            order = 10,
+            displayMessageKey = "Cache TTL (seconds)",
+            helpMessageKey = "Time to live of the cached members, invitations and teams in seconds. " +
+                    "The connector's own writes are applied to the cache immediately. The cache is shared by all connector " +
+                    "instances in the JVM which use the same organization and access token. 0 disables the cache. (Default: 0)",
+            required = false,
+            confidential = false)
+    public int getCacheTTLInSeconds() {
+        return cacheTTLInSeconds;
+    }
+
+    public void setCacheTTLInSeconds(int cacheTTLInSeconds) {
+        this.cacheTTLInSeconds = cacheTTLInSeconds;
+    }
+
+    @ConfigurationProperty(
+            order = 11,
+            displayMessageKey = "Rate Limit (requests/second)",
+            helpMessageKey = "Maximum API requests per second for the organization, shared by all connector instances in the JVM. " +
+                    "Listing calls can't use the last 20% of the budget which is reserved for single object operations. " +
+                    "The rate is lowered automatically while the API returns 429. 0 means unlimited. When the instances " +
+                    "for the same organization are configured differently, the lowest rate limit of them is applied. (Default: 0)",
+            required = false,
+            confidential = false)
+    public int getRateLimitPerSecond() {
+        return rateLimitPerSecond;
+    }
+
+    public void setRateLimitPerSecond(int rateLimitPerSecond) {
+        this.rateLimitPerSecond = rateLimitPerSecond;
+    }
+
+    @ConfigurationProperty(
+            order = 12,
+            displayMessageKey = "Max Concurrency",
+            helpMessageKey = "Upper bound of the concurrent API calls for the organization. The actual limit is adjusted " +
+                    "automatically by the observed latency and throttling. It's used for fetching teams and " +
+                    "updating team members in parallel. When the instances for the same organization are configured " +
+                    "differently, the lowest max concurrency of them is applied. (Default: 16)",
+            required = false,
+            confidential = false)
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    @ConfigurationProperty(
+            order = 13,
+            displayMessageKey = "Circuit Breaker Failure Threshold",
+            helpMessageKey = "Number of consecutive failures (I/O error or 5xx) of an API endpoint which opens the circuit breaker. " +
+                    "While it's open, all API calls fail fast. 0 disables the circuit breaker. The circuit breaker is shared by " +
+                    "all connector instances in the JVM for the same organization, the lowest threshold of them is applied. (Default: 5)",
+            required = false,
+            confidential = false)
+    public int getCircuitBreakerFailureThreshold() {
+        return circuitBreakerFailureThreshold;
+    }
+
+    public void setCircuitBreakerFailureThreshold(int circuitBreakerFailureThreshold) {
+        this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+    }
+
+    @ConfigurationProperty(
+            order = 14,
+            displayMessageKey = "Circuit Breaker Open Duration (seconds)",
+            helpMessageKey = "Duration in seconds to keep the circuit breaker open before probing the API again. " +
+                    "The longest duration of the connector instances for the same organization is applied. (Default: 30)",
+            required = false,
+            confidential = false)
+    public int getCircuitBreakerOpenDurationInSeconds() {
+        return circuitBreakerOpenDurationInSeconds;
+    }
+
+    public void setCircuitBreakerOpenDurationInSeconds(int circuitBreakerOpenDurationInSeconds) {
+        this.circuitBreakerOpenDurationInSeconds = circuitBreakerOpenDurationInSeconds;
+    }
+
+    @ConfigurationProperty(
+            order = 15,
+            displayMessageKey = "HTTP Call Warning Threshold",
+            helpMessageKey = "Log a warning with the operation trace when a connector operation calls the API this many times or more. " +
+                    "0 disables the warning. (Default: 0)",
+            required = false,
+            confidential = false)
+    public int getHttpCallWarningThreshold() {
+        return httpCallWarningThreshold;
+    }
+
+    public void setHttpCallWarningThreshold(int httpCallWarningThreshold) {
+        this.httpCallWarningThreshold = httpCallWarningThreshold;
+    }
+
+    @ConfigurationProperty(
+            order = 16,
+            displayMessageKey = "Resource Accounting Enabled",
+            helpMessageKey = "Measure the heap allocation and the CPU time of each connector operation. " +
+                    "The results are logged with the operation trace and aggregated in JMX. (Default: false)",
+            required = false,
+            confidential = false)
+    public boolean isResourceAccountingEnabled() {
+        return resourceAccountingEnabled;
+    }
+
+    public void setResourceAccountingEnabled(boolean resourceAccountingEnabled) {
+        this.resourceAccountingEnabled = resourceAccountingEnabled;
+    }
+
+    @ConfigurationProperty(
+            order = 17,
+            displayMessageKey = "Pulumi API Base URL",
+            helpMessageKey = "Base URL of Pulumi REST API. Change it only for the self-hosted Pulumi service or testing. " +
+                    "(Default: https://api.pulumi.com)",
+            required = false,
+            confidential = false)
+    public String getBaseURL() {
+        return baseURL;
+    }
+
+    public void setBaseURL(String baseURL) {
+        this.baseURL = baseURL;
+    }
+
+    @ConfigurationProperty(
+            order = 18,
+            displayMessageKey = "Off-heap Cache Enabled",
+            helpMessageKey = "Store the cached members and team members outside of the Java heap, " +
+                    "so the GC pauses don't grow with the size of the organization. It's effective only when the cache is enabled. " +
+                    "The off-heap memory is limited by -XX:MaxDirectMemorySize. (Default: false)",
+            required = false,
+            confidential = false)
+    public boolean isOffHeapCacheEnabled() {
+        return offHeapCacheEnabled;
+    }
+
+    public void setOffHeapCacheEnabled(boolean offHeapCacheEnabled) {
+        this.offHeapCacheEnabled = offHeapCacheEnabled;
+    }
+
+    @ConfigurationProperty(
+            order = 19,
+            displayMessageKey = "Token Verification TTL (seconds)",
+            helpMessageKey = "Reuse the successful verification of the access token for this period in the connection test " +
+                    "and the initialization of the pooled connector instances. " +
+                    "The verification is discarded when the API rejects the token. 0 disables it. (Default: 30)",
+            required = false,
+            confidential = false)
+    public int getTokenVerificationTTLInSeconds() {
+        return tokenVerificationTTLInSeconds;
+    }
+
+    public void setTokenVerificationTTLInSeconds(int tokenVerificationTTLInSeconds) {
+        this.tokenVerificationTTLInSeconds = tokenVerificationTTLInSeconds;
+    }
+
+    @ConfigurationProperty(
+            order = 20,
+            displayMessageKey = "Lazy Initialization Enabled",
+            helpMessageKey = "Don't verify the access token when the connector instance is initialized. " +
+                    "The invalid token is detected by the first operation instead. (Default: false)",
+            required = false,
+            confidential = false)
+    public boolean isLazyInitEnabled() {
+        return lazyInitEnabled;
+    }
+
+    public void setLazyInitEnabled(boolean lazyInitEnabled) {
+        this.lazyInitEnabled = lazyInitEnabled;
+    }
+
+    @ConfigurationProperty(
+            order = 21,
+            displayMessageKey = "Health Check Interval (seconds)",
+            helpMessageKey = "The pooled connector instance is checked by the results of its recent API calls. " +
+                    "When no call completed in this interval, the check probes the API in the background at most once per interval. " +
+                    "0 disables the probe. (Default: 60)",
+            required = false,
+            confidential = false)
+    public int getHealthCheckIntervalInSeconds() {
+        return healthCheckIntervalInSeconds;
+    }
+
+    public void setHealthCheckIntervalInSeconds(int healthCheckIntervalInSeconds) {
+        this.healthCheckIntervalInSeconds = healthCheckIntervalInSeconds;
+    }
+
+    @ConfigurationProperty(
+            order = 22,
+            displayMessageKey = "Conditional Requests Enabled",
+            helpMessageKey = "Keep the listings of the members, the invites and the teams with their ETag and Last-Modified, " +
+                    "and reuse them when the API responds 304 (Not Modified) to If-None-Match and If-Modified-Since. " +
+                    "It has no effect if the API doesn't return these headers. The kept listings are bounded to 32MB " +
+                    "per organization and credential, and released when the last connector instance is disposed. (Default: false)",
+            required = false,
+            confidential = false)
+    public boolean isConditionalRequestsEnabled() {
+        return conditionalRequestsEnabled;
+    }
+
+    public void setConditionalRequestsEnabled(boolean conditionalRequestsEnabled) {
+        this.conditionalRequestsEnabled = conditionalRequestsEnabled;
+    }
+
+    @ConfigurationProperty(
+            order = 23,
+            displayMessageKey = "JSON Bytecode Generation Enabled",
+            helpMessageKey = "Use the generated accessors of Jackson Blackbird (or Afterburner) module to decode the API responses " +
+                    "instead of the reflection. The module must be added to the classpath, otherwise it's ignored. (Default: false)",
+            required = false,
+            confidential = false)
+    public boolean isJsonBytecodeGenerationEnabled() {
+        return jsonBytecodeGenerationEnabled;
+    }
+
+    public void setJsonBytecodeGenerationEnabled(boolean jsonBytecodeGenerationEnabled) {
+        this.jsonBytecodeGenerationEnabled = jsonBytecodeGenerationEnabled;
+    }
+
+    @ConfigurationProperty(
+            order = 24,
+            displayMessageKey = "Pipelined Search Queue Size",
+            helpMessageKey = "Fetch and map the objects of the search in another thread while the IDM handles the previous ones. " +
+                    "The fetched objects are buffered up to this size. 0 disables the pipelining. (Default: 0)",
+            required = false,
+            confidential = false)
+    public int getPipelinedSearchQueueSize() {
+        return pipelinedSearchQueueSize;
+    }
+
+    public void setPipelinedSearchQueueSize(int pipelinedSearchQueueSize) {
+        this.pipelinedSearchQueueSize = pipelinedSearchQueueSize;
+    }
+
+    @ConfigurationProperty(
+            order = 25,
+            displayMessageKey = "Operation Timeout (milliseconds)",
+            helpMessageKey = "Deadline of a connector operation including all of its API calls in milliseconds. " +
+                    "The API calls are bounded by the remaining time and the operation fails with OperationTimeoutException " +
+                    "when it passed. It can be overridden by the operation option \"" + PulumiConnector.OP_OPERATION_TIMEOUT + "\". " +
+                    "0 disables the deadline. (Default: 0)",
+            required = false,
+            confidential = false)
+    public int getOperationTimeoutInMilliseconds() {
+        return operationTimeoutInMilliseconds;
+    }
+
+    public void setOperationTimeoutInMilliseconds(int operationTimeoutInMilliseconds) {
+        this.operationTimeoutInMilliseconds = operationTimeoutInMilliseconds;
+    }
+
     @Override
     public void validate() {
+        if (StringUtil.isBlank(baseURL) || HttpUrl.parse(baseURL) == null) {
+            throw new ConfigurationException("Invalid Pulumi API Base URL: " + baseURL);
+        }
     }
 }
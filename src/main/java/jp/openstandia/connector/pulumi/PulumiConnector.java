@@ -15,7 +15,12 @@
  */
 package jp.openstandia.connector.pulumi;
 
+import jp.openstandia.connector.pulumi.metrics.PulumiMetrics;
+import jp.openstandia.connector.pulumi.metrics.PulumiOperationTrace;
+import jp.openstandia.connector.pulumi.rest.PulumiDeadline;
+import jp.openstandia.connector.pulumi.rest.PulumiEventListener;
 import jp.openstandia.connector.pulumi.rest.PulumiRESTClient;
+import jp.openstandia.connector.pulumi.rest.PulumiRequestPriority;
 import okhttp3.*;
 import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.common.logging.Log;
@@ -32,11 +37,16 @@ import org.identityconnectors.framework.spi.operations.*;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static jp.openstandia.connector.pulumi.PulumiTeamHandler.TEAM_OBJECT_CLASS;
 import static jp.openstandia.connector.pulumi.PulumiUserHandler.USER_OBJECT_CLASS;
@@ -46,11 +56,41 @@ public class PulumiConnector implements PoolableConnector, CreateOp, UpdateDelta
 
     private static final Log LOG = Log.getLog(PulumiConnector.class);
 
+    /**
+     * Operation option which overrides the operation timeout of the configuration in milliseconds.
+     */
+    public static final String OP_OPERATION_TIMEOUT = "operationTimeoutInMilliseconds";
+
+    // The concurrency of the API calls is bounded by the adaptive limiter, not by the dispatcher
+    private static final int MAX_DISPATCHER_REQUESTS = 1024;
+
+    // Holds the connection pool and the dispatcher shared by all instances
+    private static final OkHttpClient SHARED_HTTP_CLIENT = createSharedHttpClient();
+
     protected PulumiConfiguration configuration;
     protected PulumiClient client;
+    protected PulumiMetrics metrics;
 
     private Map<String, AttributeInfo> userSchemaMap;
     private String instanceName;
+    private volatile char[] authorization;
+
+    private static OkHttpClient createSharedHttpClient() {
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), r -> {
+            Thread t = new Thread(r, "pulumi-connector-dispatcher-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        Dispatcher dispatcher = new Dispatcher(executor);
+        dispatcher.setMaxRequests(MAX_DISPATCHER_REQUESTS);
+        dispatcher.setMaxRequestsPerHost(MAX_DISPATCHER_REQUESTS);
+
+        return new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .build();
+    }
 
     @Override
     public Configuration getConfiguration() {
@@ -60,22 +100,51 @@ public class PulumiConnector implements PoolableConnector, CreateOp, UpdateDelta
     @Override
     public void init(Configuration configuration) {
         this.configuration = (PulumiConfiguration) configuration;
+        this.metrics = PulumiMetrics.acquire(instanceName != null ? instanceName : this.configuration.getOrganization());
 
         try {
             authenticateResource();
+
+            if (this.configuration.isLazyInitEnabled()) {
+                LOG.ok("Deferred the verification of the pulumi API access until the first operation");
+            } else {
+                // Verify we can access pulumi API
+                client.test();
+            }
         } catch (RuntimeException e) {
+            dispose();
             throw processRuntimeException(e);
         }
 
         LOG.ok("Connector {0} successfully initialized", getClass().getName());
     }
 
+    /**
+     * Create the client of the pulumi API. It doesn't contact the API, the access is verified by {@link PulumiClient#test()}.
+     */
     protected void authenticateResource() {
-        OkHttpClient.Builder okHttpBuilder = new OkHttpClient.Builder();
+        OkHttpClient httpClient = createHttpClientBuilder().build();
+
+        client = new PulumiRESTClient(instanceName, configuration, httpClient, metrics);
+    }
+
+    /**
+     * Create the builder of the HTTP client for the pulumi REST API.
+     * The builder is derived from the shared client, so all connector instances share the connection pool
+     * and reuse the established TLS sessions.
+     * Subclasses can override it to add the interceptors, e.g. for the tests.
+     *
+     * @return
+     */
+    protected OkHttpClient.Builder createHttpClientBuilder() {
+        OkHttpClient.Builder okHttpBuilder = SHARED_HTTP_CLIENT.newBuilder();
         okHttpBuilder.connectTimeout(configuration.getConnectTimeoutInMilliseconds(), TimeUnit.MILLISECONDS);
         okHttpBuilder.readTimeout(configuration.getReadTimeoutInMilliseconds(), TimeUnit.MILLISECONDS);
         okHttpBuilder.writeTimeout(configuration.getWriteTimeoutInMilliseconds(), TimeUnit.MILLISECONDS);
         okHttpBuilder.addInterceptor(getInterceptor(configuration.getAccessToken()));
+        if (metrics != null) {
+            okHttpBuilder.eventListenerFactory(new PulumiEventListener.Factory(metrics));
+        }
 
         // Setup http proxy aware httpClient
         if (StringUtil.isNotEmpty(configuration.getHttpProxyHost())) {
@@ -94,24 +163,32 @@ public class PulumiConnector implements PoolableConnector, CreateOp, UpdateDelta
             }
         }
 
-        OkHttpClient httpClient = okHttpBuilder.build();
-
-        client = new PulumiRESTClient(instanceName, configuration, httpClient);
-
-        // Verify we can access pulumi API
-        client.test();
+        return okHttpBuilder;
     }
 
     private Interceptor getInterceptor(GuardedString accessToken) {
+        // Decrypt the token once per client, not per call. The decrypted header is held as char[],
+        // not as String, so dispose() can clear it. Each call still creates the header String which
+        // lives as long as the request, the same as decrypting the token per call.
+        final char[] prefix = "token ".toCharArray();
+        accessToken.access(c -> {
+            char[] value = Arrays.copyOf(prefix, prefix.length + c.length);
+            System.arraycopy(c, 0, value, prefix.length, c.length);
+            authorization = value;
+        });
+
         return new Interceptor() {
             @Override
             public Response intercept(Chain chain) throws IOException {
-                Request.Builder builder = chain.request().newBuilder()
-                        .addHeader("Accept", "application/vnd.pulumi+4");
-                accessToken.access(c -> {
-                    builder.addHeader("Authorization", "token " + String.valueOf(c));
-                });
-                return chain.proceed(builder.build());
+                char[] value = authorization;
+                if (value == null) {
+                    throw new IOException("The connector instance was disposed");
+                }
+                Request request = chain.request().newBuilder()
+                        .header("Accept", "application/vnd.pulumi+4")
+                        .header("Authorization", String.valueOf(value))
+                        .build();
+                return chain.proceed(request);
             }
         };
     }
@@ -129,6 +206,8 @@ public class PulumiConnector implements PoolableConnector, CreateOp, UpdateDelta
 
             schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildAttributesToGet(), SearchOp.class);
             schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildReturnDefaultAttributes(), SearchOp.class);
+            schemaBuilder.defineOperationOption(new OperationOptionInfo(OP_OPERATION_TIMEOUT, Integer.class),
+                    CreateOp.class, UpdateDeltaOp.class, DeleteOp.class, SearchOp.class);
 
             userSchemaMap = new HashMap<>();
             userSchemaInfo.getAttributeInfo().stream()
@@ -173,11 +252,18 @@ public class PulumiConnector implements PoolableConnector, CreateOp, UpdateDelta
             throw new InvalidAttributeValueException("Attributes not provided or empty");
         }
 
+        PulumiDeadline previousDeadline = PulumiDeadline.set(newDeadline(options));
+        PulumiOperationTrace trace = startTrace(objectClass, "create");
         try {
-            return createPulumiObjectHandler(objectClass).create(createAttributes);
+            Uid uid = createPulumiObjectHandler(objectClass).create(createAttributes);
+            trace.markSuccess();
+            return uid;
 
         } catch (RuntimeException e) {
             throw processRuntimeException(e);
+        } finally {
+            PulumiDeadline.set(previousDeadline);
+            endTrace(trace);
         }
     }
 
@@ -187,11 +273,18 @@ public class PulumiConnector implements PoolableConnector, CreateOp, UpdateDelta
             throw new InvalidAttributeValueException("uid not provided");
         }
 
+        PulumiDeadline previousDeadline = PulumiDeadline.set(newDeadline(options));
+        PulumiOperationTrace trace = startTrace(objectClass, "update");
         try {
-            return createPulumiObjectHandler(objectClass).updateDelta(uid, modifications, options);
+            Set<AttributeDelta> sideEffects = createPulumiObjectHandler(objectClass).updateDelta(uid, modifications, options);
+            trace.markSuccess();
+            return sideEffects;
 
         } catch (RuntimeException e) {
             throw processRuntimeException(e);
+        } finally {
+            PulumiDeadline.set(previousDeadline);
+            endTrace(trace);
         }
     }
 
@@ -201,11 +294,17 @@ public class PulumiConnector implements PoolableConnector, CreateOp, UpdateDelta
             throw new InvalidAttributeValueException("uid not provided");
         }
 
+        PulumiDeadline previousDeadline = PulumiDeadline.set(newDeadline(options));
+        PulumiOperationTrace trace = startTrace(objectClass, "delete");
         try {
             createPulumiObjectHandler(objectClass).delete(uid, options);
+            trace.markSuccess();
 
         } catch (RuntimeException e) {
             throw processRuntimeException(e);
+        } finally {
+            PulumiDeadline.set(previousDeadline);
+            endTrace(trace);
         }
     }
 
@@ -216,14 +315,29 @@ public class PulumiConnector implements PoolableConnector, CreateOp, UpdateDelta
 
     @Override
     public void executeQuery(ObjectClass objectClass, PulumiFilter filter, ResultsHandler resultsHandler, OperationOptions options) {
-        createPulumiObjectHandler(objectClass).query(filter, resultsHandler, options);
+        // Prioritize the single object lookup over the listing
+        boolean isGet = filter != null && (filter.isByUid() || filter.isByName());
+        PulumiRequestPriority previous = PulumiRequestPriority.set(isGet ? PulumiRequestPriority.INTERACTIVE : PulumiRequestPriority.BULK);
+        PulumiDeadline previousDeadline = PulumiDeadline.set(newDeadline(options));
+        PulumiOperationTrace trace = startTrace(objectClass, isGet ? "get" : "search");
+        try {
+            createPulumiObjectHandler(objectClass).query(filter, resultsHandler, options);
+            trace.markSuccess();
+        } finally {
+            PulumiRequestPriority.set(previous);
+            PulumiDeadline.set(previousDeadline);
+            endTrace(trace);
+        }
     }
 
     @Override
     public void test() {
         try {
-            dispose();
-            authenticateResource();
+            // Reuse the client and its connections, the verification result is cached by the client
+            if (client == null) {
+                authenticateResource();
+            }
+            client.test();
         } catch (RuntimeException e) {
             throw processRuntimeException(e);
         }
@@ -231,13 +345,71 @@ public class PulumiConnector implements PoolableConnector, CreateOp, UpdateDelta
 
     @Override
     public void dispose() {
-        client.close();
-        this.client = null;
+        if (client != null) {
+            client.close();
+            this.client = null;
+        }
+        clearAuthorization();
+        releaseMetrics();
+    }
+
+    private void clearAuthorization() {
+        char[] value = authorization;
+        if (value != null) {
+            authorization = null;
+            Arrays.fill(value, '\0');
+        }
+    }
+
+    private void releaseMetrics() {
+        if (metrics != null) {
+            metrics.release();
+            metrics = null;
+        }
+    }
+
+    /**
+     * Create the deadline of the operation by the operation option or the configuration.
+     *
+     * @param options
+     * @return the deadline, or null if no deadline
+     */
+    private PulumiDeadline newDeadline(OperationOptions options) {
+        long timeoutMillis = configuration.getOperationTimeoutInMilliseconds();
+        if (options != null) {
+            Object value = options.getOptions().get(OP_OPERATION_TIMEOUT);
+            if (value instanceof Number) {
+                timeoutMillis = ((Number) value).longValue();
+            } else if (value != null) {
+                throw new InvalidAttributeValueException("Invalid operation option " + OP_OPERATION_TIMEOUT + ": " + value);
+            }
+        }
+        return PulumiDeadline.after(timeoutMillis);
+    }
+
+    private PulumiOperationTrace startTrace(ObjectClass objectClass, String operation) {
+        return PulumiOperationTrace.start(objectClass != null ? objectClass.getObjectClassValue() : "", operation,
+                configuration.isResourceAccountingEnabled());
+    }
+
+    private void endTrace(PulumiOperationTrace trace) {
+        trace.end();
+
+        if (metrics != null) {
+            metrics.recordOperation(trace);
+        }
+
+        int threshold = configuration.getHttpCallWarningThreshold();
+        if (threshold > 0 && trace.getHttpCalls() >= threshold) {
+            LOG.warn("[{0}] Too many pulumi API calls: {1}", instanceName, trace.toSummary());
+        } else {
+            LOG.ok("[{0}] {1}", instanceName, trace.toSummary());
+        }
     }
 
     @Override
     public void checkAlive() {
-        // Do nothing
+        client.checkAlive();
     }
 
     @Override
@@ -0,0 +1,196 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi;
+
+import jp.openstandia.connector.pulumi.metrics.PulumiOperationTrace;
+import jp.openstandia.connector.pulumi.rest.PulumiDeadline;
+import jp.openstandia.connector.pulumi.rest.PulumiRequestPriority;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ResultsHandler;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pipelined search, which overlaps fetching the objects from the pulumi API and handling them by the IDM.
+ * <p>
+ * The producer thread fetches and maps the objects into a bounded queue, and the caller thread passes them to
+ * the {@link ResultsHandler}. The producer blocks while the queue is full, so a slow handler throttles the fetching.
+ * When the handler stops or throws an exception, the producer is cancelled and the caller waits for it to finish,
+ * so no API call of the search runs after the search returned. The wait is bounded by the deadline of the operation.
+ * The exception thrown by the producer is rethrown by the caller thread after the objects produced before it are handled.
+ */
+public class PulumiSearchPipeline {
+
+    private static final Log LOG = Log.getLog(PulumiSearchPipeline.class);
+
+    private static final ExecutorService PRODUCERS = createProducers();
+
+    // Wake up periodically to give up putting when the caller stopped
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+    // Upper bound of waiting for the cancelled producer without the deadline
+    private static final long STOP_TIMEOUT_MILLIS = 10000;
+
+    private static final Object END = new Object();
+
+    @FunctionalInterface
+    public interface Producer {
+        /**
+         * Fetch and map the objects, and pass them to the sink until it returns false.
+         *
+         * @param sink
+         */
+        void produce(PulumiQueryHandler<ConnectorObject> sink);
+    }
+
+    private static class Failure {
+        private final Throwable cause;
+
+        private Failure(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+
+    private static ExecutorService createProducers() {
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), r -> {
+            Thread t = new Thread(r, "pulumi-connector-search-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private final int queueSize;
+
+    public PulumiSearchPipeline(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Run the producer in the producer thread and handle the produced objects by the current thread.
+     * The request priority, the deadline and the operation trace of the current thread are propagated to the producer.
+     *
+     * @param producer
+     * @param resultsHandler
+     */
+    public void run(Producer producer, ResultsHandler resultsHandler) {
+        final BlockingQueue<Object> queue = new ArrayBlockingQueue<>(queueSize);
+        final AtomicBoolean stopped = new AtomicBoolean();
+        final PulumiRequestPriority priority = PulumiRequestPriority.current();
+        final PulumiDeadline deadline = PulumiDeadline.current();
+        final PulumiOperationTrace trace = PulumiOperationTrace.current();
+        // Claimed by the producer when it starts, or by the caller when it was cancelled before starting
+        final AtomicBoolean started = new AtomicBoolean();
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        Future<?> future = PRODUCERS.submit(() -> {
+            if (!started.compareAndSet(false, true)) {
+                return;
+            }
+            PulumiRequestPriority previous = PulumiRequestPriority.set(priority);
+            PulumiDeadline previousDeadline = PulumiDeadline.set(deadline);
+            PulumiOperationTrace.Scope scope = PulumiOperationTrace.propagate(trace);
+            try {
+                producer.produce(object -> put(queue, stopped, object) && !stopped.get());
+                put(queue, stopped, END);
+
+            } catch (Throwable e) {
+                if (!stopped.get()) {
+                    put(queue, stopped, new Failure(e));
+                } else {
+                    LOG.ok("Ignored the failure of the search producer after the search was stopped: {0}", e.toString());
+                }
+            } finally {
+                PulumiRequestPriority.set(previous);
+                PulumiDeadline.set(previousDeadline);
+                scope.close();
+                finished.countDown();
+            }
+        });
+
+        try {
+            while (true) {
+                Object item = queue.take();
+                if (item == END) {
+                    return;
+                }
+                if (item instanceof Failure) {
+                    throw rethrow(((Failure) item).cause);
+                }
+                if (!resultsHandler.handle((ConnectorObject) item)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while waiting for the search results", e);
+
+        } finally {
+            // Stop the producer when the handler stopped or failed
+            stopped.set(true);
+            future.cancel(true);
+            if (!started.compareAndSet(false, true)) {
+                awaitProducer(finished, deadline);
+            }
+        }
+    }
+
+    /**
+     * Wait for the cancelled producer to finish, bounded by the deadline.
+     */
+    private static void awaitProducer(CountDownLatch finished, PulumiDeadline deadline) {
+        long timeoutNanos = deadline != null ? deadline.remainingNanos() : TimeUnit.MILLISECONDS.toNanos(STOP_TIMEOUT_MILLIS);
+        try {
+            if (!finished.await(Math.max(0, timeoutNanos), TimeUnit.NANOSECONDS)) {
+                LOG.warn("The search producer didn't finish in time after the search was stopped");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Put the item to the queue, waiting for the space unless the caller stopped.
+     *
+     * @return false if the caller stopped or the producer was cancelled
+     */
+    private static boolean put(BlockingQueue<Object> queue, AtomicBoolean stopped, Object item) {
+        try {
+            while (!stopped.get()) {
+                if (queue.offer(item, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+        if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        return new ConnectorException(e);
+    }
+}
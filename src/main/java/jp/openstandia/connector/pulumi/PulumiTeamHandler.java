@@ -20,7 +20,10 @@ import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.common.exceptions.AlreadyExistsException;
 import org.identityconnectors.framework.common.objects.*;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import static jp.openstandia.connector.pulumi.PulumiUtils.*;
 
@@ -38,6 +41,9 @@ public class PulumiTeamHandler implements PulumiObjectHandler {
     public static final String ATTR_DISPLAY_NAME = "displayName";
     public static final String ATTR_DESCRIPTION = "description";
 
+    // Association
+    public static final String ATTR_MEMBERS = "members";
+
     private final PulumiConfiguration configuration;
     private final PulumiClient client;
     private final PulumiSchema schema;
@@ -85,6 +91,16 @@ public class PulumiTeamHandler implements PulumiObjectHandler {
                         .setUpdateable(true)
                         .build());
 
+        // Association
+        // The values are the usernames (githubLogin) of the members
+        builder.addAttributeInfo(
+                AttributeInfoBuilder.define(ATTR_MEMBERS)
+                        .setRequired(false)
+                        .setMultiValued(true)
+                        .setSubtype(AttributeInfo.Subtypes.STRING_CASE_IGNORE)
+                        .setReturnedByDefault(false)
+                        .build());
+
         ObjectClassInfo teamSchemaInfo = builder.build();
 
         LOGGER.info("The constructed team schema: {0}", teamSchemaInfo);
@@ -101,7 +117,19 @@ public class PulumiTeamHandler implements PulumiObjectHandler {
      */
     @Override
     public Uid create(Set<Attribute> attributes) throws AlreadyExistsException {
-        Uid newUid = client.createTeam(schema, attributes);
+        Set<Attribute> teamAttrs = attributes.stream()
+                .filter(a -> !a.is(ATTR_MEMBERS))
+                .collect(Collectors.toSet());
+
+        Uid newUid = client.createTeam(schema, teamAttrs);
+
+        // Members
+        // Pulumi can't assign members when creating the team, so add them after the creation
+        Attribute members = AttributeUtil.find(ATTR_MEMBERS, attributes);
+        if (members != null && members.getValue() != null && !members.getValue().isEmpty()) {
+            AttributeDelta addMembers = AttributeDeltaBuilder.build(ATTR_MEMBERS, members.getValue(), null);
+            client.updateTeam(schema, newUid, Collections.singleton(addMembers), null);
+        }
 
         return newUid;
     }
@@ -144,6 +172,13 @@ public class PulumiTeamHandler implements PulumiObjectHandler {
             return;
         }
 
+        if (configuration.getPipelinedSearchQueueSize() > 0) {
+            new PulumiSearchPipeline(configuration.getPipelinedSearchQueueSize()).run(sink ->
+                    client.getTeams(schema, team -> sink.handle(toConnectorObject(team, attributesToGet, allowPartialAttributeValues)), options, attributesToGet, -1),
+                    resultsHandler);
+            return;
+        }
+
         client.getTeams(schema, team -> resultsHandler.handle(toConnectorObject(team, attributesToGet, allowPartialAttributeValues)), options, attributesToGet, -1);
     }
 
@@ -156,8 +191,8 @@ public class PulumiTeamHandler implements PulumiObjectHandler {
         }
     }
 
-    private ConnectorObject toConnectorObject(PulumiClient.PulumiTeamRepresentation team,
-                                              Set<String> attributesToGet, boolean allowPartialAttributeValues) {
+    ConnectorObject toConnectorObject(PulumiClient.PulumiTeamRepresentation team,
+                                      Set<String> attributesToGet, boolean allowPartialAttributeValues) {
         PulumiClient.PulumiTeamWithMembersRepresentation t = new PulumiClient.PulumiTeamWithMembersRepresentation();
         t.kind = team.kind;
         t.name = team.name;
@@ -165,11 +200,21 @@ public class PulumiTeamHandler implements PulumiObjectHandler {
         t.description = team.description;
         t.members = null;
 
+        if (!allowPartialAttributeValues && attributesToGet != null && shouldReturn(attributesToGet, ATTR_MEMBERS)) {
+            // The listing API doesn't return the members, fetch the team
+            LOGGER.ok("Fetching members because attributes to get is requested");
+
+            PulumiClient.PulumiTeamWithMembersRepresentation teamWithMembers = client.getTeam(schema, new Uid(team.name), null, attributesToGet);
+            if (teamWithMembers != null) {
+                t.members = teamWithMembers.members;
+            }
+        }
+
         return toConnectorObject(t, attributesToGet, allowPartialAttributeValues);
     }
 
-    private ConnectorObject toConnectorObject(PulumiClient.PulumiTeamWithMembersRepresentation team,
-                                              Set<String> attributesToGet, boolean allowPartialAttributeValues) {
+    ConnectorObject toConnectorObject(PulumiClient.PulumiTeamWithMembersRepresentation team,
+                                      Set<String> attributesToGet, boolean allowPartialAttributeValues) {
 
         final ConnectorObjectBuilder builder = new ConnectorObjectBuilder()
                 .setObjectClass(TEAM_OBJECT_CLASS)
@@ -189,6 +234,24 @@ public class PulumiTeamHandler implements PulumiObjectHandler {
             }
         }
 
+        // Association
+        if (allowPartialAttributeValues && team.members == null) {
+            // Suppress fetching associations
+            LOGGER.ok("Suppress fetching associations because return partial attribute values is requested");
+
+            AttributeBuilder ab = new AttributeBuilder();
+            ab.setName(ATTR_MEMBERS).setAttributeValueCompleteness(AttributeValueCompleteness.INCOMPLETE);
+            ab.addValue(Collections.EMPTY_LIST);
+            builder.addAttribute(ab.build());
+
+        } else if (team.members != null && shouldReturn(attributesToGet, ATTR_MEMBERS)) {
+            // The members are already fetched by get-by-name, return them without extra API call
+            List<String> members = team.members.stream()
+                    .map(m -> m.githubLogin)
+                    .collect(Collectors.toList());
+            builder.addAttribute(ATTR_MEMBERS, members);
+        }
+
         return builder.build();
     }
 }
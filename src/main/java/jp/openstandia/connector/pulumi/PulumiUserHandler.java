@@ -189,6 +189,14 @@ public class PulumiUserHandler implements PulumiObjectHandler {
             return;
         }
 
+        if (configuration.getPipelinedSearchQueueSize() > 0) {
+            new PulumiSearchPipeline(configuration.getPipelinedSearchQueueSize()).run(sink ->
+                    client.getUsers(schema,
+                            (member) -> sink.handle(toConnectorObject(member, attributesToGet, allowPartialAttributeValues)),
+                            options, attributesToGet, -1), resultsHandler);
+            return;
+        }
+
         client.getUsers(schema,
                 (member) -> resultsHandler.handle(toConnectorObject(member, attributesToGet, allowPartialAttributeValues)),
                 options, attributesToGet, -1);
@@ -204,8 +212,8 @@ public class PulumiUserHandler implements PulumiObjectHandler {
         }
     }
 
-    private ConnectorObject toConnectorObject(PulumiClient.PulumiMemberRepresentation member,
-                                              Set<String> attributesToGet, boolean allowPartialAttributeValues) {
+    ConnectorObject toConnectorObject(PulumiClient.PulumiMemberRepresentation member,
+                                      Set<String> attributesToGet, boolean allowPartialAttributeValues) {
 
         final ConnectorObjectBuilder builder = new ConnectorObjectBuilder()
                 .setObjectClass(USER_OBJECT_CLASS)
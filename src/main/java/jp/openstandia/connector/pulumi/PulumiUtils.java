@@ -15,8 +15,15 @@
  */
 package jp.openstandia.connector.pulumi;
 
+import org.identityconnectors.common.security.GuardedString;
 import org.identityconnectors.framework.common.objects.*;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
@@ -114,4 +121,33 @@ public class PulumiUtils {
                 .map(entry -> entry.getKey())
                 .collect(Collectors.toSet());
     }
+
+    /**
+     * Hash the secret to identify the credential without keeping it in plain text, e.g. in the keys of the shared caches.
+     *
+     * @param secret
+     * @return hex encoded SHA-256 hash, or empty string if the secret is null
+     */
+    public static String toCredentialHash(GuardedString secret) {
+        if (secret == null) {
+            return "";
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        secret.access(c -> {
+            ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(c));
+            digest.update(bytes.duplicate());
+            Arrays.fill(bytes.array(), (byte) 0);
+        });
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
 }
@@ -0,0 +1,114 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.metrics;
+
+import java.util.Map;
+
+/**
+ * Point-in-time statistics of an endpoint template.
+ */
+public class PulumiEndpointStats {
+
+    private final String endpoint;
+    private final long requests;
+    private final long coalescedRequests;
+    private final long cacheHits;
+    private final long failures;
+    private final Map<String, Long> statusCodes;
+    private final long bytesSent;
+    private final long bytesReceived;
+    private final double latencyMeanMillis;
+    private final double latencyP50Millis;
+    private final double latencyP99Millis;
+    private final double latencyMaxMillis;
+
+    public PulumiEndpointStats(String endpoint, long requests, long coalescedRequests, long cacheHits, long failures,
+                               Map<String, Long> statusCodes, long bytesSent, long bytesReceived, PulumiLatencyHistogram latency) {
+        this.endpoint = endpoint;
+        this.requests = requests;
+        this.coalescedRequests = coalescedRequests;
+        this.cacheHits = cacheHits;
+        this.failures = failures;
+        this.statusCodes = statusCodes;
+        this.bytesSent = bytesSent;
+        this.bytesReceived = bytesReceived;
+        this.latencyMeanMillis = latency.getMeanMillis();
+        this.latencyP50Millis = latency.getPercentileMillis(50);
+        this.latencyP99Millis = latency.getPercentileMillis(99);
+        this.latencyMaxMillis = latency.getMaxMillis();
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    public long getRequests() {
+        return requests;
+    }
+
+    /**
+     * @return the number of the calls which shared the in-flight identical request instead of sending it
+     */
+    public long getCoalescedRequests() {
+        return coalescedRequests;
+    }
+
+    /**
+     * @return the number of the requests which were answered by 304 (Not Modified) and reused the cached payload
+     */
+    public long getCacheHits() {
+        return cacheHits;
+    }
+
+    public double getCacheHitRatio() {
+        return requests > 0 ? (double) cacheHits / requests : 0;
+    }
+
+    /**
+     * @return the number of the requests which failed without response (I/O error)
+     */
+    public long getFailures() {
+        return failures;
+    }
+
+    public Map<String, Long> getStatusCodes() {
+        return statusCodes;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public double getLatencyMeanMillis() {
+        return latencyMeanMillis;
+    }
+
+    public double getLatencyP50Millis() {
+        return latencyP50Millis;
+    }
+
+    public double getLatencyP99Millis() {
+        return latencyP99Millis;
+    }
+
+    public double getLatencyMaxMillis() {
+        return latencyMaxMillis;
+    }
+}
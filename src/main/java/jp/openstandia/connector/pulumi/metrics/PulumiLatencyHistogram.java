@@ -0,0 +1,104 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets like HdrHistogram.
+ * <p>
+ * The values are recorded in microseconds. Each power of two range is divided into 16 linear
+ * sub-buckets, so the reported percentiles have about 6% relative error.
+ */
+public class PulumiLatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // Up to 2^40 microseconds
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void recordNanos(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        counts.incrementAndGet(indexOf(micros));
+        totalCount.incrementAndGet();
+        totalMicros.addAndGet(micros);
+        maxMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int) ((value >>> shift) & (SUB_BUCKET_COUNT - 1));
+        return (shift + 1) * SUB_BUCKET_COUNT + sub;
+    }
+
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        int sub = index % SUB_BUCKET_COUNT;
+        long lowest = ((long) (SUB_BUCKET_COUNT + sub)) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return the value in milliseconds
+     */
+    public double getPercentileMillis(double percentile) {
+        long count = totalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long threshold = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            cumulative += counts.get(i);
+            if (cumulative >= threshold) {
+                return Math.min(highestValueOf(i), maxMicros.get()) / 1000.0;
+            }
+        }
+        return getMaxMillis();
+    }
+
+    public double getMaxMillis() {
+        return maxMicros.get() / 1000.0;
+    }
+
+    public double getMeanMillis() {
+        long count = totalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        return totalMicros.get() / 1000.0 / count;
+    }
+}
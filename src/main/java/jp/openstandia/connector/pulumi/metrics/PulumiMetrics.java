@@ -0,0 +1,261 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.metrics;
+
+import org.identityconnectors.common.logging.Log;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Metrics of the connector instances which have the same instance name.
+ * <p>
+ * The pooled connector instances share one metrics by reference counting, and it's registered as
+ * the MXBean "jp.openstandia.connector.pulumi:type=PulumiConnector,name=&lt;instance name&gt;"
+ * while any instance is alive.
+ */
+public class PulumiMetrics implements PulumiMetricsMXBean {
+
+    private static final Log LOG = Log.getLog(PulumiMetrics.class);
+
+    private static final String DOMAIN = "jp.openstandia.connector.pulumi";
+
+    // Guarded by REGISTRY
+    private static final Map<String, PulumiMetrics> REGISTRY = new HashMap<>();
+
+    private final String name;
+    private ObjectName objectName;
+    private int references;
+
+    private final ConcurrentMap<String, EndpointRecorder> endpoints = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, OperationRecorder> operations = new ConcurrentHashMap<>();
+
+    private volatile IntSupplier concurrencyLimit = () -> 0;
+    private volatile IntSupplier concurrencyQueueDepth = () -> 0;
+    private volatile DoubleSupplier rateLimit = () -> 0;
+    private volatile Supplier<String> circuitBreakerState = () -> "";
+
+    PulumiMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Return the metrics for the instance name. The caller must call {@link #release()} when it's disposed.
+     *
+     * @param name
+     * @return
+     */
+    public static PulumiMetrics acquire(String name) {
+        synchronized (REGISTRY) {
+            PulumiMetrics metrics = REGISTRY.computeIfAbsent(name, PulumiMetrics::new);
+            if (metrics.references++ == 0) {
+                metrics.register();
+            }
+            return metrics;
+        }
+    }
+
+    public void release() {
+        synchronized (REGISTRY) {
+            if (--references == 0) {
+                REGISTRY.remove(name);
+                unregister();
+            }
+        }
+    }
+
+    private void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName on = new ObjectName(DOMAIN + ":type=PulumiConnector,name=" + ObjectName.quote(name));
+            if (!server.isRegistered(on)) {
+                server.registerMBean(this, on);
+                objectName = on;
+            }
+        } catch (JMException | RuntimeException e) {
+            // Metrics are optional, don't break the connector
+            LOG.warn(e, "Failed to register pulumi connector metrics MXBean: {0}", name);
+        }
+    }
+
+    private void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException | RuntimeException e) {
+            LOG.warn(e, "Failed to unregister pulumi connector metrics MXBean: {0}", name);
+        } finally {
+            objectName = null;
+        }
+    }
+
+    public void bindGauges(IntSupplier concurrencyLimit, IntSupplier concurrencyQueueDepth,
+                           DoubleSupplier rateLimit, Supplier<String> circuitBreakerState) {
+        this.concurrencyLimit = concurrencyLimit;
+        this.concurrencyQueueDepth = concurrencyQueueDepth;
+        this.rateLimit = rateLimit;
+        this.circuitBreakerState = circuitBreakerState;
+    }
+
+    // Recording
+
+    /**
+     * Record the HTTP call.
+     *
+     * @param endpoint      endpoint template
+     * @param statusCode    0 if no response due to I/O error
+     * @param bytesSent
+     * @param bytesReceived
+     * @param latencyNanos
+     */
+    public void recordRequest(String endpoint, int statusCode, long bytesSent, long bytesReceived, long latencyNanos) {
+        EndpointRecorder recorder = endpoints.computeIfAbsent(endpoint, k -> new EndpointRecorder());
+        recorder.requests.increment();
+        if (statusCode == 0) {
+            recorder.failures.increment();
+        } else {
+            recorder.statusCodes.computeIfAbsent(statusCode, k -> new LongAdder()).increment();
+        }
+        recorder.bytesSent.add(bytesSent);
+        recorder.bytesReceived.add(bytesReceived);
+        recorder.latency.recordNanos(latencyNanos);
+    }
+
+    /**
+     * Record the call which shared the in-flight identical request.
+     *
+     * @param endpoint endpoint template
+     */
+    public void recordCoalescedRequest(String endpoint) {
+        endpoints.computeIfAbsent(endpoint, k -> new EndpointRecorder()).coalesced.increment();
+    }
+
+    /**
+     * Record the request which reused the cached payload by 304 (Not Modified).
+     *
+     * @param endpoint endpoint template
+     */
+    public void recordCacheHit(String endpoint) {
+        endpoints.computeIfAbsent(endpoint, k -> new EndpointRecorder()).cacheHits.increment();
+    }
+
+    public void recordOperation(PulumiOperationTrace trace) {
+        OperationRecorder recorder = operations.computeIfAbsent(trace.getObjectClass() + "/" + trace.getOperation(),
+                k -> new OperationRecorder(trace.getObjectClass(), trace.getOperation()));
+        recorder.count.increment();
+        if (!trace.isSuccess()) {
+            recorder.failures.increment();
+        }
+        recorder.httpCalls.add(trace.getHttpCalls());
+        if (trace.isAccounting()) {
+            recorder.accounted.increment();
+            recorder.allocatedBytes.add(trace.getAllocatedBytes());
+            recorder.cpuNanos.add(trace.getCpuNanos());
+        }
+        recorder.latency.recordNanos(trace.getElapsedNanos());
+    }
+
+    // MXBean
+
+    @Override
+    public List<PulumiEndpointStats> getEndpoints() {
+        List<PulumiEndpointStats> stats = new ArrayList<>();
+        for (Map.Entry<String, EndpointRecorder> entry : new TreeMap<>(endpoints).entrySet()) {
+            EndpointRecorder r = entry.getValue();
+            Map<String, Long> statusCodes = new TreeMap<>();
+            r.statusCodes.forEach((code, count) -> statusCodes.put(String.valueOf(code), count.sum()));
+
+            stats.add(new PulumiEndpointStats(entry.getKey(), r.requests.sum(), r.coalesced.sum(), r.cacheHits.sum(), r.failures.sum(), statusCodes,
+                    r.bytesSent.sum(), r.bytesReceived.sum(), r.latency));
+        }
+        return stats;
+    }
+
+    @Override
+    public List<PulumiOperationStats> getOperations() {
+        List<PulumiOperationStats> stats = new ArrayList<>();
+        for (OperationRecorder r : new TreeMap<>(operations).values()) {
+            stats.add(new PulumiOperationStats(r.objectClass, r.operation, r.count.sum(), r.failures.sum(),
+                    r.httpCalls.sum(), r.accounted.sum(), r.allocatedBytes.sum(), r.cpuNanos.sum(), r.latency));
+        }
+        return stats;
+    }
+
+    @Override
+    public int getConcurrencyLimit() {
+        return concurrencyLimit.getAsInt();
+    }
+
+    @Override
+    public int getConcurrencyQueueDepth() {
+        return concurrencyQueueDepth.getAsInt();
+    }
+
+    @Override
+    public double getRateLimitPerSecond() {
+        return rateLimit.getAsDouble();
+    }
+
+    @Override
+    public String getCircuitBreakerState() {
+        return circuitBreakerState.get();
+    }
+
+    @Override
+    public void reset() {
+        endpoints.clear();
+        operations.clear();
+    }
+
+    static class EndpointRecorder {
+        final LongAdder requests = new LongAdder();
+        final LongAdder coalesced = new LongAdder();
+        final LongAdder cacheHits = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final ConcurrentMap<Integer, LongAdder> statusCodes = new ConcurrentHashMap<>();
+        final LongAdder bytesSent = new LongAdder();
+        final LongAdder bytesReceived = new LongAdder();
+        final PulumiLatencyHistogram latency = new PulumiLatencyHistogram();
+    }
+
+    static class OperationRecorder {
+        final String objectClass;
+        final String operation;
+        final LongAdder count = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder httpCalls = new LongAdder();
+        final LongAdder accounted = new LongAdder();
+        final LongAdder allocatedBytes = new LongAdder();
+        final LongAdder cpuNanos = new LongAdder();
+        final PulumiLatencyHistogram latency = new PulumiLatencyHistogram();
+
+        OperationRecorder(String objectClass, String operation) {
+            this.objectClass = objectClass;
+            this.operation = operation;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.metrics;
+
+import java.util.List;
+
+/**
+ * JMX view of the metrics of a connector instance name.
+ */
+public interface PulumiMetricsMXBean {
+
+    List<PulumiEndpointStats> getEndpoints();
+
+    List<PulumiOperationStats> getOperations();
+
+    int getConcurrencyLimit();
+
+    int getConcurrencyQueueDepth();
+
+    double getRateLimitPerSecond();
+
+    String getCircuitBreakerState();
+
+    void reset();
+}
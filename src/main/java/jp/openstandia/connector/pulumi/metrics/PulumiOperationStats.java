@@ -0,0 +1,118 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point-in-time statistics of a connector operation for an object class.
+ */
+public class PulumiOperationStats {
+
+    private final String objectClass;
+    private final String operation;
+    private final long count;
+    private final long failures;
+    private final long httpCalls;
+    private final long accounted;
+    private final long allocatedBytes;
+    private final long cpuTimeMillis;
+    private final double latencyMeanMillis;
+    private final double latencyP50Millis;
+    private final double latencyP99Millis;
+    private final double latencyMaxMillis;
+
+    public PulumiOperationStats(String objectClass, String operation, long count, long failures, long httpCalls,
+                                long accounted, long allocatedBytes, long cpuNanos, PulumiLatencyHistogram latency) {
+        this.objectClass = objectClass;
+        this.operation = operation;
+        this.count = count;
+        this.failures = failures;
+        this.httpCalls = httpCalls;
+        this.accounted = accounted;
+        this.allocatedBytes = allocatedBytes;
+        this.cpuTimeMillis = TimeUnit.NANOSECONDS.toMillis(cpuNanos);
+        this.latencyMeanMillis = latency.getMeanMillis();
+        this.latencyP50Millis = latency.getPercentileMillis(50);
+        this.latencyP99Millis = latency.getPercentileMillis(99);
+        this.latencyMaxMillis = latency.getMaxMillis();
+    }
+
+    public String getObjectClass() {
+        return objectClass;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+
+    public long getHttpCalls() {
+        return httpCalls;
+    }
+
+    /**
+     * @return average number of the HTTP calls per operation, useful to detect N+1 calls
+     */
+    public double getHttpCallsPerOperation() {
+        return count == 0 ? 0 : (double) httpCalls / count;
+    }
+
+    /**
+     * @return the total heap bytes allocated by the operations, only measured when the accounting is enabled
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    public double getAllocatedBytesPerOperation() {
+        return accounted == 0 ? 0 : (double) allocatedBytes / accounted;
+    }
+
+    /**
+     * @return the total CPU time of the operations, only measured when the accounting is enabled
+     */
+    public long getCpuTimeMillis() {
+        return cpuTimeMillis;
+    }
+
+    public double getCpuTimeMillisPerOperation() {
+        return accounted == 0 ? 0 : (double) cpuTimeMillis / accounted;
+    }
+
+    public double getLatencyMeanMillis() {
+        return latencyMeanMillis;
+    }
+
+    public double getLatencyP50Millis() {
+        return latencyP50Millis;
+    }
+
+    public double getLatencyP99Millis() {
+        return latencyP99Millis;
+    }
+
+    public double getLatencyMaxMillis() {
+        return latencyMaxMillis;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lightweight trace of a connector operation which counts the HTTP calls and the time spent in them.
+ * <p>
+ * The trace is bound to the thread executing the operation and attached to each request as the tag,
+ * so the calls in the fan-out threads are also counted. The time which isn't spent in HTTP is mostly
+ * the mapping of the objects and the handler of the caller (e.g. midPoint's mappings).
+ * <p>
+ * Optionally, the heap allocation and the CPU time of the threads executing the operation are measured
+ * by {@link ThreadMXBean}. It's only available on the JVM which supports them (e.g. HotSpot).
+ */
+public class PulumiOperationTrace {
+
+    private static final ThreadLocal<PulumiOperationTrace> CURRENT = new ThreadLocal<>();
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+    private static final boolean ALLOCATION_SUPPORTED = isAllocationSupported();
+    private static final boolean CPU_TIME_SUPPORTED = THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported();
+
+    private final String objectClass;
+    private final String operation;
+    private final long startedAt;
+    private final PulumiOperationTrace previous;
+    private final boolean accounting;
+    private final ThreadUsage threadUsage;
+
+    private final LongAdder httpCalls = new LongAdder();
+    private final LongAdder httpFailures = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder httpNanos = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+    private final LongAdder cpuNanos = new LongAdder();
+
+    private long elapsedNanos;
+    private boolean success;
+
+    private PulumiOperationTrace(String objectClass, String operation, boolean accounting, PulumiOperationTrace previous) {
+        this.objectClass = objectClass;
+        this.operation = operation;
+        this.accounting = accounting;
+        this.previous = previous;
+        this.threadUsage = accounting ? new ThreadUsage() : null;
+        this.startedAt = System.nanoTime();
+    }
+
+    private static boolean isAllocationSupported() {
+        if (!(THREAD_MX_BEAN instanceof com.sun.management.ThreadMXBean)) {
+            return false;
+        }
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) THREAD_MX_BEAN;
+        return bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled();
+    }
+
+    /**
+     * Start the trace and bind it to the current thread. The caller must call {@link #end()}.
+     *
+     * @param objectClass
+     * @param operation
+     * @param accounting  measure the heap allocation and the CPU time
+     * @return
+     */
+    public static PulumiOperationTrace start(String objectClass, String operation, boolean accounting) {
+        PulumiOperationTrace trace = new PulumiOperationTrace(objectClass, operation, accounting, CURRENT.get());
+        CURRENT.set(trace);
+        return trace;
+    }
+
+    /**
+     * @return the trace of the current thread, or null if no operation is traced
+     */
+    public static PulumiOperationTrace current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Bind the trace to the current thread, which executes a part of the operation.
+     * The usage of the thread is added to the trace when the returned scope is closed.
+     *
+     * @param trace can be null
+     * @return the scope which restores the previous trace
+     */
+    public static Scope propagate(PulumiOperationTrace trace) {
+        return new Scope(trace);
+    }
+
+    private static void bind(PulumiOperationTrace trace) {
+        if (trace == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(trace);
+        }
+    }
+
+    public void onHttpCall(long bytesSent, long bytesReceived, long latencyNanos, boolean failed) {
+        this.httpCalls.increment();
+        if (failed) {
+            this.httpFailures.increment();
+        }
+        this.bytesSent.add(bytesSent);
+        this.bytesReceived.add(bytesReceived);
+        this.httpNanos.add(latencyNanos);
+    }
+
+    public void markSuccess() {
+        this.success = true;
+    }
+
+    /**
+     * End the trace and restore the previous trace of the current thread.
+     */
+    public void end() {
+        elapsedNanos = System.nanoTime() - startedAt;
+        if (accounting) {
+            threadUsage.addTo(this);
+        }
+        bind(previous);
+    }
+
+    public String getObjectClass() {
+        return objectClass;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    public long getHttpCalls() {
+        return httpCalls.sum();
+    }
+
+    public long getHttpFailures() {
+        return httpFailures.sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    /**
+     * @return the sum of the HTTP call latencies, it can exceed the elapsed time when the calls run in parallel
+     */
+    public long getHttpNanos() {
+        return httpNanos.sum();
+    }
+
+    public boolean isAccounting() {
+        return accounting;
+    }
+
+    /**
+     * @return the heap bytes allocated by the threads executing the operation, or 0 if not measured
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.sum();
+    }
+
+    /**
+     * @return the CPU time of the threads executing the operation, or 0 if not measured
+     */
+    public long getCpuNanos() {
+        return cpuNanos.sum();
+    }
+
+    public String toSummary() {
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        long httpMillis = TimeUnit.NANOSECONDS.toMillis(getHttpNanos());
+        return String.format("%s %s %s in %dms: httpCalls=%d, httpFailures=%d, bytesSent=%d, bytesReceived=%d, httpTime=%dms, otherTime=%dms",
+                objectClass, operation, success ? "succeeded" : "failed", elapsedMillis,
+                getHttpCalls(), getHttpFailures(), getBytesSent(), getBytesReceived(),
+                httpMillis, Math.max(0, elapsedMillis - httpMillis))
+                + (accounting ? String.format(", allocatedBytes=%d, cpuTime=%dms",
+                getAllocatedBytes(), TimeUnit.NANOSECONDS.toMillis(getCpuNanos())) : "");
+    }
+
+    @Override
+    public String toString() {
+        return toSummary();
+    }
+
+    /**
+     * Snapshot of the usage of the current thread.
+     */
+    private static class ThreadUsage {
+        private final long allocatedBytes;
+        private final long cpuNanos;
+
+        ThreadUsage() {
+            this.allocatedBytes = currentAllocatedBytes();
+            this.cpuNanos = currentCpuNanos();
+        }
+
+        private static long currentAllocatedBytes() {
+            if (!ALLOCATION_SUPPORTED) {
+                return 0;
+            }
+            return ((com.sun.management.ThreadMXBean) THREAD_MX_BEAN).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        private static long currentCpuNanos() {
+            if (!CPU_TIME_SUPPORTED) {
+                return 0;
+            }
+            return Math.max(0, THREAD_MX_BEAN.getCurrentThreadCpuTime());
+        }
+
+        void addTo(PulumiOperationTrace trace) {
+            trace.allocatedBytes.add(Math.max(0, currentAllocatedBytes() - allocatedBytes));
+            trace.cpuNanos.add(Math.max(0, currentCpuNanos() - cpuNanos));
+        }
+    }
+
+    /**
+     * Binding of the trace to a thread which executes a part of the operation.
+     */
+    public static class Scope implements AutoCloseable {
+        private final PulumiOperationTrace trace;
+        private final PulumiOperationTrace previous;
+        private final ThreadUsage threadUsage;
+
+        private Scope(PulumiOperationTrace trace) {
+            this.trace = trace;
+            this.previous = CURRENT.get();
+            this.threadUsage = trace != null && trace.accounting ? new ThreadUsage() : null;
+            bind(trace);
+        }
+
+        @Override
+        public void close() {
+            if (threadUsage != null) {
+                threadUsage.addTo(trace);
+            }
+            bind(previous);
+        }
+    }
+}
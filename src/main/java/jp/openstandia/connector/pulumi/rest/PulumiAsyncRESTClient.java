@@ -0,0 +1,762 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import jp.openstandia.connector.pulumi.PulumiAsyncClient;
+import jp.openstandia.connector.pulumi.PulumiConfiguration;
+import jp.openstandia.connector.pulumi.PulumiUtils;
+import jp.openstandia.connector.pulumi.metrics.PulumiMetrics;
+import jp.openstandia.connector.pulumi.metrics.PulumiOperationTrace;
+import okhttp3.*;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.*;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.Uid;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+import static jp.openstandia.connector.pulumi.PulumiClient.*;
+import static jp.openstandia.connector.pulumi.PulumiTeamHandler.TEAM_OBJECT_CLASS;
+import static jp.openstandia.connector.pulumi.PulumiUserHandler.USER_OBJECT_CLASS;
+
+/**
+ * Non-blocking core of the pulumi REST client, which calls the API by OkHttp's enqueue.
+ * <p>
+ * Each call goes through the circuit breaker, the request scheduler and the concurrency limiter.
+ * The methods return without waiting for them, the calls over the budget are parked and started later
+ * by the timer or the thread which released another call. The responses are handled by OkHttp's dispatcher
+ * threads, which also retry the call when the API returns 429 (Too Many Requests).
+ */
+public class PulumiAsyncRESTClient implements PulumiAsyncClient {
+
+    private static final Log LOG = Log.getLog(PulumiAsyncRESTClient.class);
+
+    private static final int MAX_RETRY = 2;
+
+    // Successful verifications of the access tokens by the base URL and the credential hash, value is System.nanoTime()
+    private static final ConcurrentMap<String, Long> VERIFIED_TOKENS = new ConcurrentHashMap<>();
+
+    // Shared by all instances, the key is prefixed by the credential hash
+    private static final PulumiSingleFlight SINGLE_FLIGHT = new PulumiSingleFlight();
+
+    @FunctionalInterface
+    interface ResponseHandler<T> {
+        T handle(Response response) throws IOException;
+    }
+
+    private final String instanceName;
+    private final PulumiConfiguration configuration;
+    private final OkHttpClient httpClient;
+    private final PulumiRequestScheduler scheduler;
+    private final PulumiConcurrencyLimiter limiter;
+    private final PulumiCircuitBreaker circuitBreaker;
+    private final PulumiHealthMonitor health;
+    private final PulumiMetrics metrics;
+    private final PulumiRequestFactory requests;
+    private final PulumiJson json;
+    private final String verificationKey;
+    private final String singleFlightPrefix;
+    // The key is same as the single-flight
+    private final PulumiConditionalCache conditionalCache;
+
+    /**
+     * Create the client which has its own cache for the conditional requests.
+     */
+    public PulumiAsyncRESTClient(String instanceName, PulumiConfiguration configuration, OkHttpClient httpClient, PulumiMetrics metrics) {
+        this(instanceName, configuration, httpClient, metrics,
+                new PulumiConditionalCache(PulumiSnapshotCache.MAX_CONDITIONAL_CACHE_BYTES));
+    }
+
+    /**
+     * @param conditionalCache the cache for the conditional requests, shared by the instances of the same credential
+     */
+    public PulumiAsyncRESTClient(String instanceName, PulumiConfiguration configuration, OkHttpClient httpClient, PulumiMetrics metrics,
+                                 PulumiConditionalCache conditionalCache) {
+        this.instanceName = instanceName;
+        this.conditionalCache = conditionalCache;
+        this.configuration = configuration;
+        this.httpClient = httpClient;
+        this.metrics = metrics;
+        this.requests = new PulumiRequestFactory(configuration);
+        this.json = PulumiJson.get(configuration.isJsonBytecodeGenerationEnabled());
+        String credentialHash = PulumiUtils.toCredentialHash(configuration.getAccessToken());
+        this.verificationKey = configuration.getPulumiSelfURL() + "#" + credentialHash;
+        this.singleFlightPrefix = credentialHash + " ";
+        this.scheduler = PulumiRequestScheduler.forOrganization(configuration.getPulumiURL(), configuration.getRateLimitPerSecond());
+        this.limiter = PulumiConcurrencyLimiter.forOrganization(configuration.getPulumiURL(), configuration.getMaxConcurrency());
+        this.circuitBreaker = PulumiCircuitBreaker.forOrganization(configuration.getPulumiURL(),
+                configuration.getCircuitBreakerFailureThreshold(), configuration.getCircuitBreakerOpenDurationInSeconds());
+        this.health = new PulumiHealthMonitor(instanceName,
+                TimeUnit.SECONDS.toMillis(configuration.getHealthCheckIntervalInSeconds()), this::startHealthProbe);
+
+        if (metrics != null) {
+            metrics.bindGauges(limiter::getLimit, limiter::getQueueDepth, scheduler::getRate,
+                    () -> circuitBreaker.getState().name());
+        }
+    }
+
+    /**
+     * Unregister the settings of this instance from the shared request scheduler, concurrency limiter
+     * and circuit breaker. It must be called once when the instance is disposed.
+     */
+    public void close() {
+        scheduler.unregister(configuration.getRateLimitPerSecond());
+        limiter.unregister(configuration.getMaxConcurrency());
+        circuitBreaker.unregister(configuration.getCircuitBreakerFailureThreshold(),
+                configuration.getCircuitBreakerOpenDurationInSeconds());
+    }
+
+    PulumiConcurrencyLimiter getLimiter() {
+        return limiter;
+    }
+
+    @Override
+    public CompletableFuture<Void> test() {
+        if (isTokenVerified()) {
+            LOG.ok("[{0}] Pulumi connector's connection test is OK, the access token was verified recently", instanceName);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return call(requests.get(PulumiEndpoint.SELF, requests.selfUrl()),
+                e -> new ConnectionFailedException("Cannot connect to pulumi REST API", e),
+                response -> {
+                    if (response.code() != 200) {
+                        VERIFIED_TOKENS.remove(verificationKey);
+                        // Something wrong..
+                        String body = response.body().string();
+                        throw new ConnectionFailedException(String.format("Unexpected authentication response. statusCode: %s, body: %s",
+                                response.code(),
+                                body));
+                    }
+
+                    if (configuration.getTokenVerificationTTLInSeconds() > 0) {
+                        VERIFIED_TOKENS.put(verificationKey, System.nanoTime());
+                    }
+                    LOG.info("[{0}] Pulumi connector's connection test is OK", instanceName);
+                    return null;
+                });
+    }
+
+    private boolean isTokenVerified() {
+        Long verifiedAt = VERIFIED_TOKENS.get(verificationKey);
+        if (verifiedAt == null) {
+            return false;
+        }
+        long ttlNanos = TimeUnit.SECONDS.toNanos(configuration.getTokenVerificationTTLInSeconds());
+        if (System.nanoTime() - verifiedAt >= ttlNanos) {
+            VERIFIED_TOKENS.remove(verificationKey, verifiedAt);
+            return false;
+        }
+        // Don't report OK while the API is known to be unavailable
+        return circuitBreaker.getState() == PulumiCircuitBreaker.State.CLOSED;
+    }
+
+    @Override
+    public void checkAlive() {
+        // The expired open circuit is regarded as alive, the next call probes the API
+        if (!circuitBreaker.isAvailable()) {
+            throw new ConnectorIOException(String.format("Pulumi REST API is unavailable, the circuit breaker is %s",
+                    circuitBreaker.getState()));
+        }
+        health.check();
+    }
+
+    /**
+     * Probe the API in the background for {@link #checkAlive()}. The result is reported to the health monitor
+     * and the circuit breaker.
+     */
+    private void startHealthProbe() {
+        httpClient.newCall(newProbeRequest(null)).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                LOG.info("[{0}] Probing pulumi REST API failed: {1}", instanceName, e.toString());
+                health.onFailure(e.toString());
+                circuitBreaker.onFailure(PulumiEndpoint.SELF);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                try (Response r = response) {
+                    if (r.code() == 401) {
+                        VERIFIED_TOKENS.remove(verificationKey);
+                        health.onRejected();
+                    } else if (r.code() >= 500) {
+                        health.onFailure("HTTP " + r.code());
+                        circuitBreaker.onFailure(PulumiEndpoint.SELF);
+                    } else {
+                        if (r.code() == 200 && configuration.getTokenVerificationTTLInSeconds() > 0) {
+                            VERIFIED_TOKENS.put(verificationKey, System.nanoTime());
+                        }
+                        health.onSuccess();
+                        circuitBreaker.onSuccess(PulumiEndpoint.SELF);
+                    }
+                }
+            }
+        });
+    }
+
+    private Request newProbeRequest(PulumiOperationTrace trace) {
+        return new Request.Builder()
+                .url(requests.selfUrl())
+                .tag(PulumiEndpoint.class, PulumiEndpoint.SELF)
+                .tag(PulumiOperationTrace.class, trace)
+                .get()
+                .build();
+    }
+
+    /**
+     * Probe the API for the half-open circuit breaker. It goes through the request scheduler and the concurrency
+     * limiter like other calls, but not through the circuit breaker itself.
+     *
+     * @return the future completed with true if the API is available
+     */
+    private CompletableFuture<Boolean> probe() {
+        Exchange probe = new Exchange(newProbeRequest(PulumiOperationTrace.current()), PulumiRequestPriority.INTERACTIVE,
+                null, true);
+        probe.admit();
+        return probe.future.handle((response, e) -> {
+            if (e != null) {
+                LOG.ok("[{0}] Probing pulumi REST API failed: {1}", instanceName, e.toString());
+                return false;
+            }
+            try (Response r = response) {
+                return r.code() < 500;
+            }
+        });
+    }
+
+    // User
+
+    @Override
+    public CompletableFuture<Void> invite(PulumiInvitationRepresentation invitation) {
+        return call(requests.post(PulumiEndpoint.CREATE_INVITE, requests.invitesUrl(), invitation),
+                e -> new ConnectorIOException("Failed to call pulumi invite user API", e),
+                response -> {
+                    if (response.code() == 400) {
+                        throw new InvalidAttributeValueException(String.format("Bad request when inviting pulumi user. email: %s", invitation.email));
+                    }
+
+                    if (response.code() != 204) {
+                        throw new ConnectorIOException(String.format("Failed to invite pulumi user: %s, statusCode: %d",
+                                invitation.email, response.code()));
+                    }
+
+                    // Created
+                    return null;
+                });
+    }
+
+    @Override
+    public CompletableFuture<List<PulumiMemberRepresentation>> getInvitations() {
+        return callShared(PulumiEndpoint.LIST_INVITES, requests.invitesUrl(),
+                e -> new ConnectorIOException("Failed to call pulumi get inviting users API", e),
+                response -> {
+                    if (response.code() != 200) {
+                        throw new ConnectorIOException(String.format("Failed to get pulumi inviting users. statusCode: %d", response.code()));
+                    }
+
+                    // Success
+                    PulumiInvitesRepresentation users = json.read(response.body().byteStream(), PulumiInvitesRepresentation.class);
+                    List<PulumiMemberRepresentation> members = new ArrayList<>(users.invites.size());
+                    for (PulumiInviteRepresentation invite : users.invites) {
+                        PulumiMemberRepresentation member = new PulumiMemberRepresentation();
+                        member.invitationId = invite.id;
+                        member.role = invite.role;
+                        member.user = new PulumiUserRepresentation();
+                        member.user.email = invite.email;
+                        members.add(member);
+                    }
+                    return members;
+                });
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteInvitation(Uid uid, String invitationId) {
+        return callDelete(PulumiEndpoint.DELETE_INVITE, USER_OBJECT_CLASS, requests.inviteUrl(invitationId), uid);
+    }
+
+    @Override
+    public CompletableFuture<List<PulumiMemberRepresentation>> getMembers() {
+        return callShared(PulumiEndpoint.LIST_MEMBERS, requests.membersUrl(),
+                e -> new ConnectorIOException("Failed to call pulumi get users API", e),
+                response -> {
+                    if (response.code() != 200) {
+                        throw new ConnectorIOException(String.format("Failed to get pulumi users. statusCode: %d", response.code()));
+                    }
+
+                    // Success
+                    return json.read(response.body().byteStream(), PulumiMembersRepresentation.class).members;
+                });
+    }
+
+    @Override
+    public CompletableFuture<Void> updateMember(Uid uid, String username, PulumiUpdateUserOperation op) {
+        return callUpdate(PulumiEndpoint.UPDATE_MEMBER, USER_OBJECT_CLASS, requests.memberUrl(username), uid, op);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteMember(Uid uid, String username) {
+        return callDelete(PulumiEndpoint.DELETE_MEMBER, USER_OBJECT_CLASS, requests.memberUrl(username), uid);
+    }
+
+    // Team
+
+    @Override
+    public CompletableFuture<Void> createTeam(PulumiTeamRepresentation team) {
+        return call(requests.post(PulumiEndpoint.CREATE_TEAM, requests.createTeamUrl(), team),
+                e -> new ConnectorIOException("Failed to call pulumi REST API", e),
+                response -> {
+                    if (response.code() == 400) {
+                        PulumiErrorRepresentation error = json.read(response.body().byteStream(), PulumiErrorRepresentation.class);
+                        throw new InvalidAttributeValueException(String.format("Bad request when creating pulumi team: %s, statusCode: %d, message: %s", team.name, response.code(), error.message));
+                    }
+                    if (response.code() == 409) {
+                        throw new AlreadyExistsException(String.format("Team '%s' already exists.", team.name));
+                    }
+
+                    if (response.code() != 201) {
+                        throw new ConnectorIOException(String.format("Failed to create pulumi team: %s, statusCode: %d", team.name, response.code()));
+                    }
+
+                    // Created
+                    return null;
+                });
+    }
+
+    @Override
+    public CompletableFuture<List<PulumiTeamRepresentation>> getTeams() {
+        return callShared(PulumiEndpoint.LIST_TEAMS, requests.teamsUrl(),
+                e -> new ConnectorIOException("Failed to call pulumi get teams API", e),
+                response -> {
+                    if (response.code() != 200) {
+                        throw new ConnectorIOException(String.format("Failed to get pulumi teams. statusCode: %d", response.code()));
+                    }
+
+                    // Success
+                    return json.read(response.body().byteStream(), PulumiTeamsRepresentation.class).teams;
+                });
+    }
+
+    @Override
+    public CompletableFuture<PulumiTeamWithMembersRepresentation> getTeam(String teamName) {
+        return callShared(PulumiEndpoint.GET_TEAM, requests.teamUrl(teamName),
+                e -> new ConnectorIOException("Failed to call pulumi get team API", e),
+                response -> {
+                    if (response.code() == 404) {
+                        // Don't throw
+                        return null;
+                    }
+
+                    if (response.code() != 200) {
+                        throw new ConnectorIOException(String.format("Failed to get pulumi team. statusCode: %d", response.code()));
+                    }
+
+                    // Success
+                    PulumiTeamWithMembersRepresentation team = json.read(response.body().byteStream(), PulumiTeamWithMembersRepresentation.class);
+
+                    // The API returns null if no members
+                    if (team.members == null) {
+                        team.members = Collections.emptyList();
+                    }
+
+                    return team;
+                });
+    }
+
+    @Override
+    public CompletableFuture<Void> updateTeam(Uid uid, PulumiUpdateTeamOperation op) {
+        return callUpdate(PulumiEndpoint.UPDATE_TEAM, TEAM_OBJECT_CLASS, requests.teamUrl(uid.getUidValue()), uid, op);
+    }
+
+    @Override
+    public CompletableFuture<Void> updateTeamMember(String teamName, String username, String memberAction) {
+        PulumiUpdateTeamMemberOperation body = new PulumiUpdateTeamMemberOperation();
+        body.memberAction = memberAction;
+        body.member = username;
+
+        return call(requests.patch(PulumiEndpoint.UPDATE_TEAM_MEMBER, requests.teamUrl(teamName), body),
+                e -> new ConnectorIOException(String.format("Failed to %s %s %s member %s",
+                        memberAction, TEAM_OBJECT_CLASS, teamName, username), e),
+                response -> {
+                    if (response.code() == 404) {
+                        // Missing the team
+                        throw new UnknownUidException(new Uid(teamName), TEAM_OBJECT_CLASS);
+                    }
+
+                    if (response.code() != 204) {
+                        throw new ConnectorIOException(String.format("Failed to %s %s %s member %s, statusCode: %d, response: %s",
+                                memberAction, TEAM_OBJECT_CLASS, teamName, username, response.code(), toBody(response)));
+                    }
+
+                    // Success
+                    return null;
+                });
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteTeam(Uid uid) {
+        return callDelete(PulumiEndpoint.DELETE_TEAM, TEAM_OBJECT_CLASS, requests.teamUrl(uid.getUidValue()), uid);
+    }
+
+    // Utilities
+
+    private CompletableFuture<Void> callUpdate(PulumiEndpoint endpoint, ObjectClass objectClass, HttpUrl url, Uid uid, Object target) {
+        return call(requests.patch(endpoint, url, target),
+                e -> new ConnectorIOException(String.format("Failed to update pulumi %s: %s",
+                        objectClass.getObjectClassValue(), uid.getUidValue()), e),
+                response -> {
+                    if (response.code() == 400) {
+                        throw new InvalidAttributeValueException(String.format("Bad request when updating %s: %s, response: %s",
+                                objectClass.getObjectClassValue(), uid.getUidValue(), toBody(response)));
+                    }
+
+                    if (response.code() == 404) {
+                        throw new UnknownUidException(uid, objectClass);
+                    }
+
+                    if (response.code() != 204) {
+                        throw new ConnectorIOException(String.format("Failed to update pulumi %s: %s, statusCode: %d, response: %s",
+                                objectClass.getObjectClassValue(), uid.getUidValue(), response.code(), toBody(response)));
+                    }
+
+                    // Success
+                    return null;
+                });
+    }
+
+    /**
+     * Generic delete method.
+     *
+     * @param endpoint
+     * @param objectClass
+     * @param url
+     * @param uid
+     */
+    private CompletableFuture<Void> callDelete(PulumiEndpoint endpoint, ObjectClass objectClass, HttpUrl url, Uid uid) {
+        return call(requests.delete(endpoint, url),
+                e -> new ConnectorIOException(String.format("Failed to delete pulumi %s: %s",
+                        objectClass.getObjectClassValue(), uid.getUidValue()), e),
+                response -> {
+                    if (response.code() == 404) {
+                        throw new UnknownUidException(uid, objectClass);
+                    }
+
+                    if (response.code() != 204) {
+                        throw new ConnectorIOException(String.format("Failed to delete pulumi %s: %s, statusCode: %d, response: %s",
+                                objectClass.getObjectClassValue(), uid.getUidValue(), response.code(), toBody(response)));
+                    }
+
+                    // Success
+                    return null;
+                });
+    }
+
+    private String toBody(Response response) {
+        ResponseBody resBody = response.body();
+        if (resBody == null) {
+            return null;
+        }
+        try {
+            return resBody.string();
+        } catch (IOException e) {
+            LOG.error(e, "Unexpected pulumi REST API response");
+            return "<failed_to_parse_response>";
+        }
+    }
+
+    /**
+     * Call the API and handle the response by the dispatcher thread. Cancelling the returned future cancels the call.
+     *
+     * @param request
+     * @param ioExceptionHandler converts the I/O error to the ConnId exception
+     * @param handler            handles the response, the response is closed after that
+     * @param <T>
+     * @return
+     */
+    private <T> CompletableFuture<T> call(Request request, Function<IOException, ConnectorIOException> ioExceptionHandler,
+                                          ResponseHandler<T> handler) {
+        CompletableFuture<Response> source = execute(request);
+        CompletableFuture<T> result = new CompletableFuture<>();
+
+        source.whenComplete((response, e) -> {
+            if (!request.method().equals("GET")) {
+                // Don't share the reads which were started before this write
+                SINGLE_FLIGHT.invalidate(singleFlightPrefix);
+            }
+            if (e != null) {
+                result.completeExceptionally(e instanceof IOException ? ioExceptionHandler.apply((IOException) e) : e);
+                return;
+            }
+            // Account the decoding in the dispatcher thread to the operation
+            PulumiOperationTrace.Scope scope = PulumiOperationTrace.propagate(request.tag(PulumiOperationTrace.class));
+            try (Response r = response) {
+                result.complete(handler.handle(r));
+            } catch (IOException ex) {
+                result.completeExceptionally(ioExceptionHandler.apply(ex));
+            } catch (RuntimeException ex) {
+                result.completeExceptionally(ex);
+            } finally {
+                scope.close();
+            }
+        });
+        result.whenComplete((r, e) -> {
+            if (result.isCancelled()) {
+                source.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Call the idempotent GET API, or join the identical in-flight call of the same credential.
+     * The result is shared by the joined callers, so it must be treated as read-only.
+     */
+    private <T> CompletableFuture<T> callShared(PulumiEndpoint endpoint, HttpUrl url,
+                                                Function<IOException, ConnectorIOException> ioExceptionHandler,
+                                                ResponseHandler<T> handler) {
+        String key = singleFlightPrefix + url;
+        return SINGLE_FLIGHT.execute(key,
+                () -> configuration.isConditionalRequestsEnabled() ?
+                        callConditional(key, endpoint, url, ioExceptionHandler, handler) :
+                        call(requests.get(endpoint, url), ioExceptionHandler, handler),
+                () -> {
+                    if (metrics != null) {
+                        metrics.recordCoalescedRequest(endpoint.getTemplate());
+                    }
+                });
+    }
+
+    /**
+     * Call the GET API with the validators of the cached response, and reuse its decoded payload
+     * when the API responds 304 (Not Modified).
+     */
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> callConditional(String key, PulumiEndpoint endpoint, HttpUrl url,
+                                                     Function<IOException, ConnectorIOException> ioExceptionHandler,
+                                                     ResponseHandler<T> handler) {
+        PulumiConditionalCache.Entry cached = conditionalCache.get(key);
+        Request request = requests.get(endpoint, url);
+
+        return call(cached != null ? cached.applyTo(request) : request, ioExceptionHandler, response -> {
+            if (response.code() == 304 && cached != null) {
+                if (metrics != null) {
+                    metrics.recordCacheHit(endpoint.getTemplate());
+                }
+                return (T) cached.getPayload();
+            }
+
+            T result = handler.handle(response);
+            conditionalCache.update(key, response, result);
+            return result;
+        });
+    }
+
+    private void throwExceptionIfUnauthorized(Response response) throws ConnectorIOException {
+        if (response.code() == 401) {
+            VERIFIED_TOKENS.remove(verificationKey);
+            response.close();
+            throw new ConnectionFailedException("Cannot authenticate to the pulumi REST API: " + response.message());
+        }
+    }
+
+    private void throwExceptionIfServerError(Response response) throws ConnectorIOException {
+        if (response.code() >= 500 && response.code() <= 599) {
+            try {
+                String body = response.body().string();
+                throw new ConnectorIOException("Pulumi server error: " + body);
+            } catch (IOException e) {
+                throw new ConnectorIOException("Pulumi server error", e);
+            } finally {
+                response.close();
+            }
+        }
+    }
+
+    private void throwExceptionIfTooManyRequests(Response response) throws ConnectorIOException {
+        if (response.code() == 429) {
+            response.close();
+            throw new ConnectorIOException("Exceeded the rate limit of the pulumi REST API: " + response.message());
+        }
+    }
+
+    /**
+     * Call the API through the circuit breaker, the request scheduler and the concurrency limiter.
+     * When the API returns 429 (Too Many Requests), retry after the scheduler's pause.
+     * When the current thread has the deadline of the operation, the waits and the call (including the retry)
+     * are bounded by the remaining time.
+     * <p>
+     * It returns without waiting for the admission. The call is parked by the scheduler and the limiter,
+     * and started by the thread which refilled the bucket or released another call.
+     *
+     * @param request
+     * @return the future of the response, it's completed exceptionally with IOException when the call failed,
+     * or with OperationTimeoutException when the deadline passed
+     */
+    private CompletableFuture<Response> execute(Request request) {
+        Exchange exchange = new Exchange(request, PulumiRequestPriority.current(), PulumiDeadline.current(), false);
+        exchange.admit();
+        return exchange.future;
+    }
+
+    /**
+     * A call including its retries.
+     */
+    private class Exchange {
+        private final Request request;
+        private final PulumiRequestPriority priority;
+        private final PulumiDeadline deadline;
+        // The probe of the half-open circuit breaker, it bypasses the circuit breaker and isn't retried
+        private final boolean probing;
+        private final CompletableFuture<Response> future = new CompletableFuture<>();
+        // The admission waiting for the scheduler or the limiter, or the started call
+        private final AtomicReference<CompletableFuture<Void>> admission = new AtomicReference<>();
+        private final AtomicReference<Call> current = new AtomicReference<>();
+        private int attempt;
+
+        Exchange(Request request, PulumiRequestPriority priority, PulumiDeadline deadline, boolean probing) {
+            this.request = request;
+            this.priority = priority;
+            this.deadline = deadline;
+            this.probing = probing;
+
+            future.whenComplete((r, e) -> {
+                if (future.isCancelled()) {
+                    CompletableFuture<Void> waiting = admission.get();
+                    if (waiting != null) {
+                        waiting.cancel(false);
+                    }
+                    Call call = current.get();
+                    if (call != null) {
+                        call.cancel();
+                    }
+                }
+            });
+        }
+
+        void admit() {
+            if (deadline != null && deadline.isExpired()) {
+                future.completeExceptionally(deadline.newTimeoutException());
+                return;
+            }
+
+            CompletableFuture<Void> permitted = probing ? CompletableFuture.completedFuture(null) :
+                    circuitBreaker.beforeCall(PulumiAsyncRESTClient.this::probe);
+            permitted
+                    .thenCompose(v -> track(scheduler.acquireAsync(priority, deadline)))
+                    .thenCompose(v -> track(limiter.acquireAsync(deadline)))
+                    .whenComplete((v, e) -> {
+                        if (e != null) {
+                            future.completeExceptionally(e instanceof CompletionException ? e.getCause() : e);
+                            return;
+                        }
+                        send();
+                    });
+        }
+
+        private CompletableFuture<Void> track(CompletableFuture<Void> waiting) {
+            admission.set(waiting);
+            if (future.isCancelled()) {
+                waiting.cancel(false);
+            }
+            return waiting;
+        }
+
+        private void send() {
+            final Call call = httpClient.newCall(request);
+            if (deadline != null) {
+                // The call is cancelled when the remaining time elapsed
+                call.timeout().timeout(Math.max(1, deadline.remainingNanos()), TimeUnit.NANOSECONDS);
+            }
+            current.set(call);
+            if (future.isCancelled()) {
+                // Cancelled while waiting
+                limiter.cancel();
+                return;
+            }
+
+            final PulumiEndpoint endpoint = request.tag(PulumiEndpoint.class);
+            final long start = System.nanoTime();
+            call.enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    if (deadline != null && deadline.isExpired()) {
+                        // Not the failure of the API
+                        limiter.cancel();
+                        future.completeExceptionally(deadline.newTimeoutException());
+                        return;
+                    }
+                    if (call.isCanceled()) {
+                        limiter.cancel();
+                        future.completeExceptionally(e);
+                        return;
+                    }
+                    limiter.release(endpoint, System.nanoTime() - start, true);
+                    circuitBreaker.onFailure(endpoint);
+                    health.onFailure(e.toString());
+                    future.completeExceptionally(e);
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    limiter.release(endpoint, System.nanoTime() - start, response.code() == 429 || response.code() >= 500);
+
+                    if (response.code() >= 500) {
+                        circuitBreaker.onFailure(endpoint);
+                        health.onFailure("HTTP " + response.code());
+                    } else {
+                        circuitBreaker.onSuccess(endpoint);
+                        if (response.code() == 401) {
+                            health.onRejected();
+                        } else {
+                            health.onSuccess();
+                        }
+                    }
+
+                    scheduler.onResponse(response);
+
+                    if (!probing) {
+                        if (response.code() == 429 && attempt < MAX_RETRY && !future.isDone()) {
+                            response.close();
+                            LOG.info("[{0}] Retry {1} {2} due to rate limit", instanceName, request.method(), request.url());
+                            attempt++;
+                            // Parked by the scheduler until its pause ends
+                            admit();
+                            return;
+                        }
+
+                        try {
+                            throwExceptionIfUnauthorized(response);
+                            throwExceptionIfServerError(response);
+                            throwExceptionIfTooManyRequests(response);
+                        } catch (RuntimeException e) {
+                            future.completeExceptionally(e);
+                            return;
+                        }
+                    }
+
+                    if (!future.complete(response)) {
+                        // Cancelled
+                        response.close();
+                    }
+                }
+            });
+        }
+    }
+}
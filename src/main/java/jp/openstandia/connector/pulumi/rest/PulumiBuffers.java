@@ -0,0 +1,66 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Allocation of the buffers which back the compact snapshot stores.
+ * <p>
+ * The direct buffers are allocated outside of the Java heap, so the GC doesn't scan or copy their contents
+ * and only the small buffer objects stay on the heap. The native memory is freed when the buffer objects
+ * are collected after the snapshot is replaced.
+ */
+final class PulumiBuffers {
+
+    private PulumiBuffers() {
+    }
+
+    static ByteBuffer wrap(byte[] values, int length, boolean direct) {
+        if (!direct) {
+            // Trim the spare capacity of the builder
+            return ByteBuffer.wrap(values.length == length ? values : Arrays.copyOf(values, length));
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+        buffer.put(values, 0, length);
+        buffer.clear();
+        return buffer;
+    }
+
+    static IntBuffer wrap(int[] values, int length, boolean direct) {
+        if (!direct) {
+            return IntBuffer.wrap(values.length == length ? values : Arrays.copyOf(values, length));
+        }
+        IntBuffer buffer = ByteBuffer.allocateDirect(4 * length).order(ByteOrder.nativeOrder()).asIntBuffer();
+        buffer.put(values, 0, length);
+        buffer.clear();
+        return buffer;
+    }
+
+    static IntBuffer wrap(int[] values, boolean direct) {
+        return wrap(values, values.length, direct);
+    }
+
+    static IntBuffer allocate(int length, boolean direct) {
+        if (!direct) {
+            return IntBuffer.allocate(length);
+        }
+        return ByteBuffer.allocateDirect(4 * length).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+}
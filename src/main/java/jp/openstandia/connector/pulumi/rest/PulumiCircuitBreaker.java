@@ -0,0 +1,253 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker for the outage of the pulumi REST API.
+ * <p>
+ * After the configured number of consecutive failures (I/O error or 5xx) of an endpoint, the circuit opens and
+ * all calls fail fast without waiting for the timeouts. The failures are counted per endpoint, so the successes
+ * of the healthy endpoints don't hide the partial outage. When the open duration elapsed, one caller probes
+ * the API (half-open) without blocking the caller and the circuit closes if the probe succeeds.
+ * <p>
+ * The circuit breaker is shared by all connector instances in the JVM which access the same organization, because
+ * they see the same outage. Each instance registers its settings by {@link #forOrganization(String, int, int)}, and
+ * the most protective registered settings are applied: the lowest failure threshold (disabled only when all instances
+ * disable it) and the longest open duration. The settings are reconfigured in place when an instance registers
+ * or unregisters, and the circuit breaker is kept after the last instance is unregistered, so an open circuit
+ * isn't reset by the short-lived instances.
+ */
+public class PulumiCircuitBreaker {
+
+    private static final Log LOG = Log.getLog(PulumiCircuitBreaker.class);
+
+    // Guarded by REGISTRY
+    private static final Map<String, PulumiCircuitBreaker> REGISTRY = new HashMap<>();
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    @FunctionalInterface
+    public interface Prober {
+        /**
+         * Start probing the API without blocking.
+         *
+         * @return the future completed with true if the API is available
+         */
+        CompletableFuture<Boolean> probe();
+    }
+
+    private final String key;
+    // Settings of the registered instances as {failureThreshold, openDurationInSeconds}, guarded by REGISTRY
+    private final List<int[]> registeredSettings = new ArrayList<>();
+
+    // Guarded by this
+    private int failureThreshold;
+    private long openDurationNanos;
+    private State state = State.CLOSED;
+    // Consecutive failures by the endpoint's ordinal
+    private final int[] consecutiveFailures = new int[PulumiEndpoint.values().length];
+    private long openedAt;
+
+    PulumiCircuitBreaker(String key, int failureThreshold, int openDurationInSeconds) {
+        this.key = key;
+        configure(failureThreshold, openDurationInSeconds);
+    }
+
+    /**
+     * Return the circuit breaker shared by the instances which access the organization, and register the settings
+     * of the instance. The caller must call {@link #unregister(int, int)} when it's disposed.
+     *
+     * @param key                   identifies the organization
+     * @param failureThreshold      0 or less disables the circuit breaker
+     * @param openDurationInSeconds
+     * @return
+     */
+    public static PulumiCircuitBreaker forOrganization(String key, int failureThreshold, int openDurationInSeconds) {
+        synchronized (REGISTRY) {
+            PulumiCircuitBreaker breaker = REGISTRY.computeIfAbsent(key,
+                    k -> new PulumiCircuitBreaker(k, failureThreshold, openDurationInSeconds));
+            breaker.registeredSettings.add(new int[]{failureThreshold, openDurationInSeconds});
+            breaker.configureByRegisteredSettings();
+            return breaker;
+        }
+    }
+
+    /**
+     * Unregister the settings registered by {@link #forOrganization(String, int, int)}.
+     *
+     * @param failureThreshold
+     * @param openDurationInSeconds
+     */
+    public void unregister(int failureThreshold, int openDurationInSeconds) {
+        synchronized (REGISTRY) {
+            for (Iterator<int[]> i = registeredSettings.iterator(); i.hasNext(); ) {
+                int[] settings = i.next();
+                if (settings[0] == failureThreshold && settings[1] == openDurationInSeconds) {
+                    i.remove();
+                    break;
+                }
+            }
+            // Keep the last settings when no instance is registered, the state is kept for the next instance
+            if (!registeredSettings.isEmpty()) {
+                configureByRegisteredSettings();
+            }
+        }
+    }
+
+    private void configureByRegisteredSettings() {
+        int threshold = 0;
+        int openDuration = 0;
+        for (int[] settings : registeredSettings) {
+            if (settings[0] > 0 && (threshold == 0 || settings[0] < threshold)) {
+                threshold = settings[0];
+            }
+            openDuration = Math.max(openDuration, settings[1]);
+        }
+        configure(threshold, openDuration);
+    }
+
+    /**
+     * Change the settings in place. The current state is kept.
+     *
+     * @param failureThreshold      0 or less disables the circuit breaker
+     * @param openDurationInSeconds
+     */
+    synchronized void configure(int failureThreshold, int openDurationInSeconds) {
+        this.failureThreshold = failureThreshold;
+        this.openDurationNanos = TimeUnit.SECONDS.toNanos(Math.max(openDurationInSeconds, 0));
+        if (!isEnabled() && state != State.CLOSED) {
+            close();
+        }
+    }
+
+    private boolean isEnabled() {
+        return failureThreshold > 0;
+    }
+
+    /**
+     * Check the call is permitted without blocking. If the open duration elapsed, start probing the API and the returned
+     * future is completed by the result of the probe.
+     *
+     * @param prober
+     * @return the future completed when the call is permitted, or completed exceptionally with ConnectorIOException
+     * if the circuit is open
+     */
+    public CompletableFuture<Void> beforeCall(Prober prober) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                result.complete(null);
+                return result;
+            }
+            if (state == State.HALF_OPEN || System.nanoTime() - openedAt < openDurationNanos) {
+                result.completeExceptionally(newOpenException());
+                return result;
+            }
+            // Only this call probes, others fail fast while probing
+            state = State.HALF_OPEN;
+        }
+
+        CompletableFuture<Boolean> probe;
+        try {
+            probe = prober.probe();
+        } catch (RuntimeException e) {
+            probe = new CompletableFuture<>();
+            probe.completeExceptionally(e);
+        }
+        probe.whenComplete((available, e) -> {
+            if (e != null) {
+                LOG.ok(e, "[{0}] Probing pulumi REST API failed", key);
+            }
+            synchronized (this) {
+                if (e == null && Boolean.TRUE.equals(available)) {
+                    LOG.info("[{0}] Pulumi REST API is available again, closed the circuit", key);
+                    close();
+                } else {
+                    open();
+                    result.completeExceptionally(newOpenException());
+                    return;
+                }
+            }
+            result.complete(null);
+        });
+        return result;
+    }
+
+    /**
+     * Check the API can be called, or can be probed because the open duration elapsed.
+     * Unlike {@link #beforeCall(Prober)}, it doesn't probe the API.
+     *
+     * @return
+     */
+    public synchronized boolean isAvailable() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                return System.nanoTime() - openedAt >= openDurationNanos;
+            default:
+                return false;
+        }
+    }
+
+    public synchronized void onSuccess(PulumiEndpoint endpoint) {
+        consecutiveFailures[endpoint.ordinal()] = 0;
+    }
+
+    public synchronized void onFailure(PulumiEndpoint endpoint) {
+        if (!isEnabled()) {
+            return;
+        }
+        int failures = ++consecutiveFailures[endpoint.ordinal()];
+        if (state == State.CLOSED && failures >= failureThreshold) {
+            LOG.warn("[{0}] Pulumi REST API {1} failed {2} times in a row, opened the circuit", key, endpoint.getTemplate(), failures);
+            open();
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.nanoTime();
+    }
+
+    private void close() {
+        state = State.CLOSED;
+        Arrays.fill(consecutiveFailures, 0);
+    }
+
+    private ConnectorIOException newOpenException() {
+        long remainingMillis = TimeUnit.NANOSECONDS.toMillis(Math.max(0, openDurationNanos - (System.nanoTime() - openedAt)));
+        return new ConnectorIOException(String.format("Pulumi REST API is unavailable, the circuit breaker is %s. Retry after %dms",
+                state, remainingMillis));
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getConsecutiveFailures(PulumiEndpoint endpoint) {
+        return consecutiveFailures[endpoint.ordinal()];
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import jp.openstandia.connector.pulumi.PulumiClient.PulumiTeamMemberRepresentation;
+
+import java.nio.IntBuffer;
+import java.util.*;
+
+import static jp.openstandia.connector.pulumi.rest.PulumiSnapshot.normalize;
+
+/**
+ * {@link PulumiTeamMembershipStore} with int-indexed adjacency arrays.
+ * <p>
+ * A user who belongs to many teams is stored once. The members of each team and the teams of each user
+ * are kept as ranges of int arrays (compressed sparse rows), so a membership costs 8 bytes. The arrays
+ * can be allocated off-heap, see {@link PulumiBuffers}. Only the team names are kept on the heap.
+ */
+final class PulumiCompactTeamMembershipStore implements PulumiTeamMembershipStore {
+
+    private static final int[] NO_TEAMS = new int[0];
+
+    // Column index of the string ids of the users
+    private static final int USERNAME = 0;
+    private static final int NAME = 1;
+    private static final int AVATAR_URL_PREFIX = 2;
+    private static final int AVATAR_URL_SUFFIX = 3;
+    private static final int USERNAME_KEY = 4;
+    private static final int COLUMNS = 5;
+
+    private final boolean direct;
+    private final String[] teamNames;
+    private final Map<String, Integer> teamIndex;
+
+    // Members of the team i are teamUsers[teamOffsets[i]] to teamUsers[teamOffsets[i + 1] - 1]
+    private final IntBuffer teamOffsets;
+    private final IntBuffer teamUsers;
+    // Teams of the user i are userTeams[userOffsets[i]] to userTeams[userOffsets[i + 1] - 1]
+    private final IntBuffer userOffsets;
+    private final IntBuffer userTeams;
+
+    private final PulumiStringPool pool;
+    private final IntBuffer[] columns = new IntBuffer[COLUMNS];
+    private final PulumiKeyIndex usernameIndex;
+
+    /**
+     * @param teamMembers members keyed by team name, the order is kept
+     * @param direct      true to allocate the store off-heap
+     */
+    PulumiCompactTeamMembershipStore(Map<String, List<PulumiTeamMemberRepresentation>> teamMembers, boolean direct) {
+        this.direct = direct;
+
+        int teamCount = teamMembers.size();
+        this.teamNames = new String[teamCount];
+        this.teamIndex = new HashMap<>();
+        int[] teamOffsetValues = new int[teamCount + 1];
+
+        int memberships = 0;
+        for (List<PulumiTeamMemberRepresentation> members : teamMembers.values()) {
+            memberships += members.size();
+        }
+        int[] teamUserValues = new int[memberships];
+
+        // Assign the user index by the normalized username
+        Map<String, Integer> userIndex = new HashMap<>();
+        List<PulumiTeamMemberRepresentation> uniqueUsers = new ArrayList<>();
+        int position = 0;
+        int team = 0;
+        for (Map.Entry<String, List<PulumiTeamMemberRepresentation>> entry : teamMembers.entrySet()) {
+            teamNames[team] = entry.getKey();
+            teamIndex.put(entry.getKey(), team);
+            teamOffsetValues[team] = position;
+
+            for (PulumiTeamMemberRepresentation member : entry.getValue()) {
+                String key = normalize(member.githubLogin);
+                Integer user = userIndex.get(key);
+                if (user == null) {
+                    user = uniqueUsers.size();
+                    userIndex.put(key, user);
+                    uniqueUsers.add(member);
+                }
+                teamUserValues[position++] = user;
+            }
+            team++;
+        }
+        teamOffsetValues[teamCount] = position;
+
+        int userCount = uniqueUsers.size();
+        int[][] values = new int[COLUMNS][userCount];
+        PulumiStringPool.Builder strings = new PulumiStringPool.Builder();
+        for (int user = 0; user < userCount; user++) {
+            PulumiTeamMemberRepresentation member = uniqueUsers.get(user);
+            values[USERNAME][user] = strings.add(member.githubLogin);
+            values[NAME][user] = strings.add(member.name);
+            values[USERNAME_KEY][user] = strings.add(normalize(member.githubLogin));
+
+            String avatarUrl = member.avatarUrl;
+            if (avatarUrl == null) {
+                values[AVATAR_URL_PREFIX][user] = PulumiStringPool.NULL;
+                values[AVATAR_URL_SUFFIX][user] = PulumiStringPool.NULL;
+            } else {
+                int split = PulumiStringPool.splitIndex(avatarUrl);
+                values[AVATAR_URL_PREFIX][user] = split > 0 ? strings.add(avatarUrl.substring(0, split)) : PulumiStringPool.NULL;
+                values[AVATAR_URL_SUFFIX][user] = strings.add(avatarUrl.substring(split));
+            }
+        }
+
+        // Reverse adjacency by counting sort
+        int[] userOffsetValues = new int[userCount + 1];
+        for (int user : teamUserValues) {
+            userOffsetValues[user + 1]++;
+        }
+        for (int user = 0; user < userCount; user++) {
+            userOffsetValues[user + 1] += userOffsetValues[user];
+        }
+        int[] userTeamValues = new int[memberships];
+        int[] next = Arrays.copyOf(userOffsetValues, userCount);
+        for (team = 0; team < teamCount; team++) {
+            for (int i = teamOffsetValues[team]; i < teamOffsetValues[team + 1]; i++) {
+                userTeamValues[next[teamUserValues[i]]++] = team;
+            }
+        }
+
+        this.teamOffsets = PulumiBuffers.wrap(teamOffsetValues, direct);
+        this.teamUsers = PulumiBuffers.wrap(teamUserValues, direct);
+        this.userOffsets = PulumiBuffers.wrap(userOffsetValues, direct);
+        this.userTeams = PulumiBuffers.wrap(userTeamValues, direct);
+        this.pool = strings.build(direct);
+        for (int column = 0; column < COLUMNS; column++) {
+            columns[column] = PulumiBuffers.wrap(values[column], direct);
+        }
+        this.usernameIndex = new PulumiKeyIndex(pool, columns[USERNAME_KEY], direct);
+    }
+
+    @Override
+    public int getTeamCount() {
+        return teamNames.length;
+    }
+
+    @Override
+    public String getTeamName(int team) {
+        return teamNames[team];
+    }
+
+    @Override
+    public int findTeam(String teamName) {
+        Integer team = teamIndex.get(teamName);
+        return team != null ? team : -1;
+    }
+
+    @Override
+    public List<PulumiTeamMemberRepresentation> getMembers(int team) {
+        int start = teamOffsets.get(team);
+        int end = teamOffsets.get(team + 1);
+        List<PulumiTeamMemberRepresentation> members = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) {
+            int user = teamUsers.get(i);
+            PulumiTeamMemberRepresentation member = new PulumiTeamMemberRepresentation();
+            member.githubLogin = pool.get(columns[USERNAME].get(user));
+            member.name = pool.get(columns[NAME].get(user));
+            member.avatarUrl = pool.get(columns[AVATAR_URL_PREFIX].get(user), columns[AVATAR_URL_SUFFIX].get(user));
+            members.add(member);
+        }
+        return Collections.unmodifiableList(members);
+    }
+
+    @Override
+    public int[] findTeamsOfUser(String username) {
+        int user = usernameIndex.find(username);
+        if (user < 0) {
+            return NO_TEAMS;
+        }
+        int start = userOffsets.get(user);
+        int[] teams = new int[userOffsets.get(user + 1) - start];
+        for (int i = 0; i < teams.length; i++) {
+            teams[i] = userTeams.get(start + i);
+        }
+        return teams;
+    }
+
+    @Override
+    public long getEstimatedBytes() {
+        return 4L * (teamOffsets.capacity() + teamUsers.capacity() + userOffsets.capacity() + userTeams.capacity())
+                + 4L * COLUMNS * columns[USERNAME].capacity() + pool.getEstimatedBytes() + usernameIndex.getEstimatedBytes();
+    }
+
+    @Override
+    public boolean isDirect() {
+        return direct;
+    }
+}
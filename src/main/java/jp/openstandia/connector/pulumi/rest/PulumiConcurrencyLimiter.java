@@ -0,0 +1,268 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
+
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Adaptive limit of the concurrent API calls of an organization (AIMD).
+ * <p>
+ * The limit grows by about one per round trip while the latency stays near the no-load latency,
+ * and is cut down when the API throttles (429), fails (5xx) or the call fails with I/O error.
+ * The no-load latency is tracked per endpoint, because a cheap endpoint's latency isn't the baseline
+ * of the listing calls with many results.
+ * The calls over the limit are parked without blocking the caller, and started by the release of other calls.
+ * <p>
+ * The limiter is shared by all connector instances in the JVM which access the same organization, like
+ * {@link PulumiRequestScheduler} and {@link PulumiCircuitBreaker}. Each instance registers its max concurrency by
+ * {@link #forOrganization(String, int)}, and the lowest registered one bounds the limit. The limiter is
+ * reconfigured in place when an instance registers or unregisters, and kept after the last one is unregistered.
+ */
+public class PulumiConcurrencyLimiter {
+
+    private static final Log LOG = Log.getLog(PulumiConcurrencyLimiter.class);
+
+    // Guarded by REGISTRY
+    private static final Map<String, PulumiConcurrencyLimiter> REGISTRY = new HashMap<>();
+
+    private static final int MIN_LIMIT = 1;
+    private static final int INITIAL_LIMIT = 4;
+    private static final double BACKOFF_RATIO = 0.75;
+    // The latency is regarded as queuing in the API when it exceeds the no-load latency * this value
+    private static final double LATENCY_TOLERANCE = 2.0;
+    // Reset the no-load latency periodically to follow the change of the network
+    private static final int NO_LOAD_LATENCY_WINDOW = 1000;
+
+    private final String key;
+    // Max concurrency of the registered instances, guarded by REGISTRY
+    private final List<Integer> registeredMaxConcurrency = new ArrayList<>();
+
+    // Guarded by this
+    private int maxLimit;
+    private double limit;
+    private int inFlight;
+    // Parked calls in the arrival order
+    private final ArrayDeque<CompletableFuture<Void>> waiters = new ArrayDeque<>();
+    // No-load latency and its samples by the endpoint's ordinal
+    private final long[] noLoadLatencyNanos = new long[PulumiEndpoint.values().length];
+    private final int[] samples = new int[PulumiEndpoint.values().length];
+
+    PulumiConcurrencyLimiter(String key, int maxLimit) {
+        this.key = key;
+        Arrays.fill(noLoadLatencyNanos, Long.MAX_VALUE);
+        configure(maxLimit);
+        this.limit = Math.min(INITIAL_LIMIT, this.maxLimit);
+    }
+
+    /**
+     * Return the limiter shared by the instances which access the organization, and register the max concurrency
+     * of the instance. The caller must call {@link #unregister(int)} when it's disposed.
+     *
+     * @param key            identifies the organization
+     * @param maxConcurrency upper bound of the adaptive limit
+     * @return
+     */
+    public static PulumiConcurrencyLimiter forOrganization(String key, int maxConcurrency) {
+        synchronized (REGISTRY) {
+            PulumiConcurrencyLimiter limiter = REGISTRY.computeIfAbsent(key, k -> new PulumiConcurrencyLimiter(k, maxConcurrency));
+            limiter.registeredMaxConcurrency.add(maxConcurrency);
+            limiter.configure(Collections.min(limiter.registeredMaxConcurrency));
+            return limiter;
+        }
+    }
+
+    /**
+     * Unregister the max concurrency registered by {@link #forOrganization(String, int)}.
+     *
+     * @param maxConcurrency
+     */
+    public void unregister(int maxConcurrency) {
+        synchronized (REGISTRY) {
+            registeredMaxConcurrency.remove(Integer.valueOf(maxConcurrency));
+            // Keep the last limit when no instance is registered, the state is kept for the next instance
+            if (!registeredMaxConcurrency.isEmpty()) {
+                configure(Collections.min(registeredMaxConcurrency));
+            }
+        }
+    }
+
+    void configure(int maxLimit) {
+        synchronized (this) {
+            this.maxLimit = Math.max(MIN_LIMIT, maxLimit);
+            this.limit = Math.min(limit, this.maxLimit);
+        }
+        // The limit can be raised by another instance
+        drain();
+    }
+
+    /**
+     * Wait until the number of the in-flight calls is under the limit.
+     *
+     * @throws InterruptedIOException
+     */
+    public void acquire() throws InterruptedIOException {
+        acquire(null);
+    }
+
+    /**
+     * Wait until the number of the in-flight calls is under the limit or the deadline passes.
+     * It blocks the current thread, the asynchronous callers use {@link #acquireAsync(PulumiDeadline)}.
+     *
+     * @param deadline can be null
+     * @throws InterruptedIOException
+     * @throws OperationTimeoutException if the deadline passed while waiting
+     */
+    public void acquire(PulumiDeadline deadline) throws InterruptedIOException {
+        CompletableFuture<Void> future = acquireAsync(deadline);
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            if (!future.cancel(false) && !future.isCompletedExceptionally()) {
+                // Acquired just before cancelling
+                cancel();
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the pulumi API concurrency limit");
+        } catch (ExecutionException e) {
+            throw (RuntimeException) e.getCause();
+        }
+    }
+
+    /**
+     * Acquire the call without blocking. When the number of the in-flight calls reaches the limit, the call is parked
+     * and the returned future is completed by the release of another call.
+     * Cancelling the returned future gives up waiting, and the call must not be released in that case.
+     *
+     * @param deadline can be null
+     * @return the future completed when the call is acquired, or completed exceptionally with
+     * OperationTimeoutException when the deadline passed while waiting
+     */
+    public CompletableFuture<Void> acquireAsync(PulumiDeadline deadline) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        synchronized (this) {
+            if (waiters.isEmpty() && inFlight < getLimit()) {
+                inFlight++;
+                future.complete(null);
+                return future;
+            }
+            waiters.add(future);
+        }
+        if (deadline != null) {
+            ScheduledFuture<?> timeout = PulumiTimer.schedule(() -> {
+                if (future.completeExceptionally(deadline.newTimeoutException())) {
+                    purge();
+                }
+            }, deadline.remainingNanos());
+            future.whenComplete((r, e) -> timeout.cancel(false));
+        }
+        return future;
+    }
+
+    /**
+     * Release the call and adapt the limit by its result.
+     *
+     * @param endpoint     the endpoint of the call, its no-load latency is the baseline of the latency
+     * @param latencyNanos
+     * @param dropped      true if the call was throttled or failed by the API overload
+     */
+    public void release(PulumiEndpoint endpoint, long latencyNanos, boolean dropped) {
+        synchronized (this) {
+            inFlight--;
+
+            if (dropped) {
+                // Multiplicative decrease
+                limit = Math.max(MIN_LIMIT, limit * BACKOFF_RATIO);
+                LOG.ok("[{0}] Decreased the concurrency limit to {1}", key, getLimit());
+
+            } else {
+                int e = endpoint.ordinal();
+                if (++samples[e] >= NO_LOAD_LATENCY_WINDOW) {
+                    samples[e] = 0;
+                    noLoadLatencyNanos[e] = latencyNanos;
+                }
+                noLoadLatencyNanos[e] = Math.min(noLoadLatencyNanos[e], latencyNanos);
+
+                // Additive increase only when the limit is actually used and no queuing is observed
+                if (inFlight + 1 >= getLimit() && latencyNanos <= noLoadLatencyNanos[e] * LATENCY_TOLERANCE) {
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                }
+            }
+        }
+        drain();
+    }
+
+    /**
+     * Release the call which was cancelled by the caller. The limit isn't adapted.
+     */
+    public void cancel() {
+        synchronized (this) {
+            inFlight--;
+        }
+        drain();
+    }
+
+    /**
+     * Hand the free slots to the parked calls in the arrival order. The futures are completed outside the lock
+     * because their dependents start the calls.
+     */
+    private void drain() {
+        List<CompletableFuture<Void>> granted = new ArrayList<>();
+        synchronized (this) {
+            while (inFlight < getLimit() && !waiters.isEmpty()) {
+                CompletableFuture<Void> waiter = waiters.poll();
+                if (!waiter.isDone()) {
+                    inFlight++;
+                    granted.add(waiter);
+                }
+            }
+        }
+        for (CompletableFuture<Void> waiter : granted) {
+            if (!waiter.complete(null)) {
+                // Cancelled or timed out meanwhile
+                cancel();
+            }
+        }
+    }
+
+    private synchronized void purge() {
+        waiters.removeIf(CompletableFuture::isDone);
+    }
+
+    public synchronized int getLimit() {
+        return Math.max(MIN_LIMIT, (int) limit);
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueueDepth() {
+        int depth = 0;
+        for (CompletableFuture<Void> waiter : waiters) {
+            if (!waiter.isDone()) {
+                depth++;
+            }
+        }
+        return depth;
+    }
+}
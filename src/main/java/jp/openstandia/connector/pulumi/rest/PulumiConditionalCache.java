@@ -0,0 +1,198 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static jp.openstandia.connector.pulumi.PulumiClient.*;
+
+/**
+ * Validators (ETag and Last-Modified) and the decoded payloads of the GET responses for the conditional requests.
+ * <p>
+ * The payload is reused when the API responds 304 (Not Modified), so it must be treated as read-only.
+ * When the API doesn't return the validators, nothing is stored and the requests are sent without the conditions.
+ * The cache is owned by the {@link PulumiSnapshotCache} of the organization and the credential, so it's shared
+ * by the same instances and cleared when the last of them is disposed.
+ * The least recently used entries are evicted beyond the max estimated heap bytes of the payloads.
+ */
+public class PulumiConditionalCache {
+
+    // Rough heap sizes for the estimation, assuming compressed oops
+    private static final int OBJECT_BYTES = 16;
+    private static final int REFERENCE_BYTES = 4;
+    private static final int STRING_BYTES = 40;
+    private static final int ENTRY_BYTES = 64;
+
+    public static final class Entry {
+        private final String etag;
+        private final String lastModified;
+        private final Object payload;
+        private final long estimatedBytes;
+
+        Entry(String etag, String lastModified, Object payload, long estimatedBytes) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.payload = payload;
+            this.estimatedBytes = estimatedBytes;
+        }
+
+        public Object getPayload() {
+            return payload;
+        }
+
+        /**
+         * @param request
+         * @return the request which has If-None-Match and If-Modified-Since headers
+         */
+        public Request applyTo(Request request) {
+            Request.Builder builder = request.newBuilder();
+            if (etag != null) {
+                builder.header("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                builder.header("If-Modified-Since", lastModified);
+            }
+            return builder.build();
+        }
+    }
+
+    private final long maxBytes;
+
+    // Guarded by this
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long estimatedBytes;
+
+    /**
+     * @param maxBytes upper bound of the estimated heap bytes of the payloads
+     */
+    PulumiConditionalCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Store the validators of the response with the decoded payload, or remove the entry if the response
+     * doesn't have the validators. The payload larger than the max bytes isn't stored.
+     *
+     * @param key
+     * @param response the response which is not 304
+     * @param payload
+     */
+    public void update(String key, Response response, Object payload) {
+        String etag = response.header("ETag");
+        String lastModified = response.header("Last-Modified");
+        boolean cacheable = response.code() == 200 && payload != null && (etag != null || lastModified != null);
+        long bytes = cacheable ? ENTRY_BYTES + estimateBytes(key) + estimateBytes(etag) + estimateBytes(lastModified)
+                + estimateBytes(payload) : 0;
+
+        synchronized (this) {
+            remove(key);
+            if (!cacheable || bytes > maxBytes) {
+                return;
+            }
+            entries.put(key, new Entry(etag, lastModified, payload, bytes));
+            estimatedBytes += bytes;
+
+            // Evict the least recently used entries
+            Iterator<Entry> it = entries.values().iterator();
+            while (estimatedBytes > maxBytes && it.hasNext()) {
+                estimatedBytes -= it.next().estimatedBytes;
+                it.remove();
+            }
+        }
+    }
+
+    private void remove(String key) {
+        Entry old = entries.remove(key);
+        if (old != null) {
+            estimatedBytes -= old.estimatedBytes;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        estimatedBytes = 0;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return estimated heap bytes of the stored entries
+     */
+    synchronized long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    /**
+     * Estimate the heap bytes of the decoded payload of the pulumi REST API.
+     *
+     * @param payload
+     * @return
+     */
+    static long estimateBytes(Object payload) {
+        if (payload == null) {
+            return 0;
+        }
+        if (payload instanceof String) {
+            return STRING_BYTES + ((String) payload).length();
+        }
+        if (payload instanceof List) {
+            List<?> list = (List<?>) payload;
+            long bytes = OBJECT_BYTES + REFERENCE_BYTES * (long) list.size();
+            for (Object item : list) {
+                bytes += estimateBytes(item);
+            }
+            return bytes;
+        }
+        if (payload instanceof PulumiMemberRepresentation) {
+            PulumiMemberRepresentation member = (PulumiMemberRepresentation) payload;
+            return OBJECT_BYTES + 3 * REFERENCE_BYTES + estimateBytes(member.role) + estimateBytes(member.invitationId)
+                    + estimateBytes(member.user);
+        }
+        if (payload instanceof PulumiUserRepresentation) {
+            PulumiUserRepresentation user = (PulumiUserRepresentation) payload;
+            return OBJECT_BYTES + 4 * REFERENCE_BYTES + estimateBytes(user.name) + estimateBytes(user.githubLogin)
+                    + estimateBytes(user.avatarUrl) + estimateBytes(user.email);
+        }
+        if (payload instanceof PulumiTeamRepresentation) {
+            PulumiTeamRepresentation team = (PulumiTeamRepresentation) payload;
+            return OBJECT_BYTES + 4 * REFERENCE_BYTES + estimateBytes(team.kind) + estimateBytes(team.name)
+                    + estimateBytes(team.displayName) + estimateBytes(team.description);
+        }
+        if (payload instanceof PulumiTeamWithMembersRepresentation) {
+            PulumiTeamWithMembersRepresentation team = (PulumiTeamWithMembersRepresentation) payload;
+            return OBJECT_BYTES + 5 * REFERENCE_BYTES + estimateBytes(team.kind) + estimateBytes(team.name)
+                    + estimateBytes(team.displayName) + estimateBytes(team.description) + estimateBytes(team.members);
+        }
+        if (payload instanceof PulumiTeamMemberRepresentation) {
+            PulumiTeamMemberRepresentation member = (PulumiTeamMemberRepresentation) payload;
+            return OBJECT_BYTES + 3 * REFERENCE_BYTES + estimateBytes(member.name) + estimateBytes(member.githubLogin)
+                    + estimateBytes(member.avatarUrl);
+        }
+        return OBJECT_BYTES;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deadline of the connector operation. It's bound to the current thread by the connector operation,
+ * and the API calls of the operation are bounded by its remaining time.
+ */
+public class PulumiDeadline {
+
+    private static final ThreadLocal<PulumiDeadline> CURRENT = new ThreadLocal<>();
+
+    private final long timeoutMillis;
+    private final long deadlineNanos;
+
+    private PulumiDeadline(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * @param timeoutMillis 0 or less means no deadline
+     * @return the deadline, or null if no deadline
+     */
+    public static PulumiDeadline after(long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            return null;
+        }
+        return new PulumiDeadline(timeoutMillis);
+    }
+
+    /**
+     * @return the deadline of the current thread, or null if no deadline
+     */
+    public static PulumiDeadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Bind the deadline to the current thread.
+     *
+     * @param deadline can be null
+     * @return the previous deadline to restore
+     */
+    public static PulumiDeadline set(PulumiDeadline deadline) {
+        PulumiDeadline previous = CURRENT.get();
+        if (deadline == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(deadline);
+        }
+        return previous;
+    }
+
+    public long remainingNanos() {
+        return deadlineNanos - System.nanoTime();
+    }
+
+    public boolean isExpired() {
+        return remainingNanos() <= 0;
+    }
+
+    /**
+     * @throws OperationTimeoutException if the deadline passed
+     */
+    public void check() throws OperationTimeoutException {
+        if (isExpired()) {
+            throw newTimeoutException();
+        }
+    }
+
+    public OperationTimeoutException newTimeoutException() {
+        return new OperationTimeoutException(String.format("Pulumi connector operation exceeded the deadline of %dms", timeoutMillis));
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+/**
+ * Endpoints of the pulumi REST API which are used by the connector.
+ * It's attached to each request as the tag to aggregate the metrics by the template.
+ */
+public enum PulumiEndpoint {
+    SELF("GET /api/user"),
+    LIST_INVITES("GET /api/console/orgs/{org}/invites"),
+    CREATE_INVITE("POST /api/console/orgs/{org}/invites"),
+    DELETE_INVITE("DELETE /api/console/orgs/{org}/invites/{id}"),
+    LIST_MEMBERS("GET /api/orgs/{org}/members"),
+    UPDATE_MEMBER("PATCH /api/orgs/{org}/members/{username}"),
+    DELETE_MEMBER("DELETE /api/orgs/{org}/members/{username}"),
+    LIST_TEAMS("GET /api/orgs/{org}/teams"),
+    CREATE_TEAM("POST /api/orgs/{org}/teams/pulumi"),
+    GET_TEAM("GET /api/orgs/{org}/teams/{name}"),
+    UPDATE_TEAM("PATCH /api/orgs/{org}/teams/{name}"),
+    UPDATE_TEAM_MEMBER("PATCH /api/orgs/{org}/teams/{name} (member)"),
+    DELETE_TEAM("DELETE /api/orgs/{org}/teams/{name}");
+
+    private final String template;
+
+    PulumiEndpoint(String template) {
+        this.template = template;
+    }
+
+    public String getTemplate() {
+        return template;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import jp.openstandia.connector.pulumi.metrics.PulumiMetrics;
+import jp.openstandia.connector.pulumi.metrics.PulumiOperationTrace;
+import okhttp3.Call;
+import okhttp3.EventListener;
+import okhttp3.Response;
+
+import java.io.IOException;
+
+/**
+ * Record the latency, status code and transferred bytes of each HTTP call into {@link PulumiMetrics}.
+ * The call is aggregated by the {@link PulumiEndpoint} tag of the request, and also counted in
+ * the {@link PulumiOperationTrace} tag if the request is a part of the traced operation.
+ */
+public class PulumiEventListener extends EventListener {
+
+    private final PulumiMetrics metrics;
+    private final String endpoint;
+    private final PulumiOperationTrace trace;
+
+    private long startedAt;
+    private int statusCode;
+    private long bytesSent;
+    private long bytesReceived;
+
+    PulumiEventListener(PulumiMetrics metrics, Call call) {
+        this.metrics = metrics;
+        this.trace = call.request().tag(PulumiOperationTrace.class);
+        PulumiEndpoint tag = call.request().tag(PulumiEndpoint.class);
+        this.endpoint = tag != null ? tag.getTemplate() : call.request().method() + " " + call.request().url().encodedPath();
+    }
+
+    @Override
+    public void callStart(Call call) {
+        startedAt = System.nanoTime();
+    }
+
+    @Override
+    public void requestBodyEnd(Call call, long byteCount) {
+        bytesSent += byteCount;
+    }
+
+    @Override
+    public void responseHeadersEnd(Call call, Response response) {
+        statusCode = response.code();
+    }
+
+    @Override
+    public void responseBodyEnd(Call call, long byteCount) {
+        bytesReceived += byteCount;
+    }
+
+    @Override
+    public void callEnd(Call call) {
+        long latency = System.nanoTime() - startedAt;
+        metrics.recordRequest(endpoint, statusCode, bytesSent, bytesReceived, latency);
+        if (trace != null) {
+            trace.onHttpCall(bytesSent, bytesReceived, latency, false);
+        }
+    }
+
+    @Override
+    public void callFailed(Call call, IOException ioe) {
+        // Record as a failure without response even if the headers were received
+        long latency = System.nanoTime() - startedAt;
+        metrics.recordRequest(endpoint, 0, bytesSent, bytesReceived, latency);
+        if (trace != null) {
+            trace.onHttpCall(bytesSent, bytesReceived, latency, true);
+        }
+    }
+
+    public static class Factory implements EventListener.Factory {
+
+        private final PulumiMetrics metrics;
+
+        public Factory(PulumiMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public EventListener create(Call call) {
+            return new PulumiEventListener(metrics, call);
+        }
+    }
+}
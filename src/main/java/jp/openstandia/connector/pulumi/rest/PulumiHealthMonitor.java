@@ -0,0 +1,131 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectionFailedException;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Health state of a connector instance for checkAlive() of the connector pool.
+ * <p>
+ * The state is updated by the results of the API calls, so checking it never calls the API.
+ * When no call completed in the probe interval, the check starts at most one probe in the background
+ * and the result is reported by the following checks. The probe also runs right after a failed call,
+ * so the failure is cleared once the API recovers. A transient failure doesn't fail the check,
+ * the instance is evicted only when the access token was rejected or {@link #FAILURE_THRESHOLD}
+ * calls failed in a row without any success in between.
+ */
+public class PulumiHealthMonitor {
+
+    private static final Log LOG = Log.getLog(PulumiHealthMonitor.class);
+
+    // Consecutive failures which fail the check
+    static final int FAILURE_THRESHOLD = 3;
+
+    private final String key;
+    private final long probeIntervalNanos;
+    private final Runnable prober;
+    private final AtomicLong lastProbeAt;
+
+    private volatile long lastResultAt;
+    private volatile boolean rejected;
+    private volatile String lastFailure;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    /**
+     * @param key                 identifies the connector instance in the log
+     * @param probeIntervalMillis 0 or less disables the probe
+     * @param prober              starts the probe without blocking, it reports the result by the on* methods
+     */
+    PulumiHealthMonitor(String key, long probeIntervalMillis, Runnable prober) {
+        this.key = key;
+        this.probeIntervalNanos = TimeUnit.MILLISECONDS.toNanos(probeIntervalMillis);
+        this.prober = prober;
+        this.lastResultAt = System.nanoTime();
+        this.lastProbeAt = new AtomicLong(lastResultAt - probeIntervalNanos);
+    }
+
+    public void onSuccess() {
+        rejected = false;
+        lastFailure = null;
+        consecutiveFailures.set(0);
+        lastResultAt = System.nanoTime();
+    }
+
+    /**
+     * The call failed with I/O error or 5xx.
+     *
+     * @param reason
+     */
+    public void onFailure(String reason) {
+        lastFailure = reason;
+        consecutiveFailures.incrementAndGet();
+        lastResultAt = System.nanoTime();
+    }
+
+    /**
+     * The API rejected the access token.
+     */
+    public void onRejected() {
+        rejected = true;
+        lastResultAt = System.nanoTime();
+    }
+
+    /**
+     * Check the instance can be used without calling the API.
+     *
+     * @throws ConnectionFailedException if the access token was rejected
+     * @throws ConnectorIOException      if the last calls failed {@link #FAILURE_THRESHOLD} times in a row
+     */
+    public void check() {
+        if (rejected) {
+            throw new ConnectionFailedException("The access token was rejected by the pulumi REST API");
+        }
+
+        // Probe even if the last call failed, a successful probe clears the failure
+        probeIfIdle();
+
+        int failures = consecutiveFailures.get();
+        if (failures >= FAILURE_THRESHOLD) {
+            throw new ConnectorIOException(String.format("The last %d calls of the pulumi REST API failed: %s",
+                    failures, lastFailure));
+        }
+    }
+
+    private void probeIfIdle() {
+        if (probeIntervalNanos <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long probedAt = lastProbeAt.get();
+        // Don't wait for the interval after the failure, the failure updates the last result too
+        boolean failing = consecutiveFailures.get() > 0;
+        if ((failing || now - lastResultAt >= probeIntervalNanos) && now - probedAt >= probeIntervalNanos
+                && lastProbeAt.compareAndSet(probedAt, now)) {
+            LOG.ok("[{0}] No pulumi API call succeeded recently, probe the API in the background", key);
+            try {
+                prober.run();
+            } catch (RuntimeException e) {
+                LOG.warn(e, "[{0}] Failed to start the probe of the pulumi REST API", key);
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.Module;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.identityconnectors.common.logging.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import static jp.openstandia.connector.pulumi.PulumiClient.*;
+
+/**
+ * Pre-built readers and writers of the pulumi REST API representations.
+ * <p>
+ * The readers and writers resolve their (de)serializers once, so the calls don't look up the type.
+ * The properties which aren't declared by the representations are skipped without binding.
+ * The declared properties which the connector never returns, the name and the avatar URL of the team members,
+ * are skipped the same way by a mix-in, so they are neither decoded nor kept in the cache.
+ * When the bytecode generation is enabled and Jackson Blackbird (or Afterburner) module is on the classpath,
+ * the module is registered to replace the reflective accessors. The instances are shared in the JVM.
+ */
+public class PulumiJson {
+
+    private static final Log LOG = Log.getLog(PulumiJson.class);
+
+    // Looked up by the name, they are optional dependencies
+    private static final String[] BYTECODE_MODULES = {
+            "com.fasterxml.jackson.module.blackbird.BlackbirdModule",
+            "com.fasterxml.jackson.module.afterburner.AfterburnerModule"
+    };
+
+    private static final Class<?>[] READ_TYPES = {
+            PulumiInvitesRepresentation.class,
+            PulumiMembersRepresentation.class,
+            PulumiTeamsRepresentation.class,
+            PulumiTeamWithMembersRepresentation.class,
+            PulumiErrorRepresentation.class
+    };
+
+    private static final Class<?>[] WRITE_TYPES = {
+            PulumiInvitationRepresentation.class,
+            PulumiUpdateUserOperation.class,
+            PulumiTeamRepresentation.class,
+            PulumiUpdateTeamOperation.class,
+            PulumiUpdateTeamMemberOperation.class
+    };
+
+    // The members attribute of the team returns only the username
+    @JsonIgnoreProperties(value = {"name", "avatarUrl"}, allowGetters = true, ignoreUnknown = true)
+    private static abstract class TeamMemberReadMixIn {
+    }
+
+    private static final PulumiJson REFLECTIVE = new PulumiJson(false);
+
+    private static volatile PulumiJson generated;
+
+    private final ObjectMapper mapper;
+    private final Map<Class<?>, ObjectReader> readers = new HashMap<>();
+    private final Map<Class<?>, ObjectWriter> writers = new HashMap<>();
+
+    PulumiJson(boolean bytecodeGenerationEnabled) {
+        mapper = new ObjectMapper()
+                .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+        mapper.addMixIn(PulumiTeamMemberRepresentation.class, TeamMemberReadMixIn.class);
+        if (bytecodeGenerationEnabled) {
+            Module module = loadBytecodeModule();
+            if (module != null) {
+                mapper.registerModule(module);
+            }
+        }
+
+        for (Class<?> type : READ_TYPES) {
+            readers.put(type, mapper.readerFor(type));
+        }
+        for (Class<?> type : WRITE_TYPES) {
+            writers.put(type, mapper.writerFor(type));
+        }
+    }
+
+    /**
+     * Return the shared instance.
+     *
+     * @param bytecodeGenerationEnabled
+     * @return
+     */
+    public static PulumiJson get(boolean bytecodeGenerationEnabled) {
+        if (!bytecodeGenerationEnabled) {
+            return REFLECTIVE;
+        }
+        PulumiJson json = generated;
+        if (json == null) {
+            synchronized (PulumiJson.class) {
+                json = generated;
+                if (json == null) {
+                    json = generated = new PulumiJson(true);
+                }
+            }
+        }
+        return json;
+    }
+
+    private static Module loadBytecodeModule() {
+        for (String className : BYTECODE_MODULES) {
+            try {
+                Module module = (Module) Class.forName(className).getDeclaredConstructor().newInstance();
+                LOG.info("Registered {0} for pulumi REST API representations", className);
+                return module;
+            } catch (ClassNotFoundException e) {
+                // Try next
+            } catch (ReflectiveOperationException | LinkageError e) {
+                LOG.warn(e, "Failed to load {0}", className);
+            }
+        }
+        LOG.warn("JSON bytecode generation is enabled but neither Blackbird nor Afterburner module is on the classpath, " +
+                "use the reflection");
+        return null;
+    }
+
+    public <T> T read(InputStream in, Class<T> type) throws IOException {
+        ObjectReader reader = readers.get(type);
+        if (reader == null) {
+            reader = mapper.readerFor(type);
+        }
+        return reader.readValue(in);
+    }
+
+    public byte[] write(Object value) throws JsonProcessingException {
+        ObjectWriter writer = writers.get(value.getClass());
+        if (writer == null) {
+            writer = mapper.writerFor(value.getClass());
+        }
+        return writer.writeValueAsBytes(value);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Immutable open-addressing hash index from a key in {@link PulumiStringPool} to the row.
+ * The keys must be unique, the last row wins otherwise.
+ */
+final class PulumiKeyIndex {
+
+    private static final int EMPTY = -1;
+
+    private final PulumiStringPool pool;
+    private final IntBuffer keyIds;
+    private final IntBuffer table;
+    private final int mask;
+
+    /**
+     * @param pool
+     * @param keyIds key of each row, {@link PulumiStringPool#NULL} isn't indexed
+     * @param direct true to allocate the index off-heap
+     */
+    PulumiKeyIndex(PulumiStringPool pool, IntBuffer keyIds, boolean direct) {
+        this.pool = pool;
+        this.keyIds = keyIds;
+
+        // Keep the load factor under 0.5
+        int rows = keyIds.capacity();
+        int capacity = Integer.highestOneBit(Math.max(2, rows) * 2 - 1) << 1;
+        this.table = PulumiBuffers.allocate(capacity, direct);
+        this.mask = capacity - 1;
+        for (int slot = 0; slot < capacity; slot++) {
+            table.put(slot, EMPTY);
+        }
+
+        for (int row = 0; row < rows; row++) {
+            int keyId = keyIds.get(row);
+            if (keyId == PulumiStringPool.NULL) {
+                continue;
+            }
+            int slot = mix(pool.hash(keyId)) & mask;
+            while (table.get(slot) != EMPTY && keyIds.get(table.get(slot)) != keyId) {
+                slot = (slot + 1) & mask;
+            }
+            table.put(slot, row);
+        }
+    }
+
+    /**
+     * @param key
+     * @return the row or -1 if not found
+     */
+    int find(String key) {
+        if (key == null) {
+            return -1;
+        }
+        byte[] utf8 = key.getBytes(StandardCharsets.UTF_8);
+        int slot = mix(PulumiStringPool.hash(utf8)) & mask;
+        int row;
+        while ((row = table.get(slot)) != EMPTY) {
+            if (pool.equals(keyIds.get(row), utf8)) {
+                return row;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    long getEstimatedBytes() {
+        return 4L * table.capacity();
+    }
+
+    private static int mix(int h) {
+        return h ^ (h >>> 16);
+    }
+}
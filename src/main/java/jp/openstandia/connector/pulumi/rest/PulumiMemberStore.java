@@ -0,0 +1,55 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import jp.openstandia.connector.pulumi.PulumiClient.PulumiMemberRepresentation;
+
+/**
+ * Read-only storage of the members and the pending invitations loaded into {@link PulumiSnapshot}.
+ * The rows keep the order of the API listing. The representation objects are created on each access,
+ * so the storage doesn't need to hold them.
+ */
+interface PulumiMemberStore {
+
+    int size();
+
+    PulumiMemberRepresentation get(int row);
+
+    /**
+     * @param row
+     * @return the normalized email, or the normalized username if the member has no email
+     */
+    String getKey(int row);
+
+    /**
+     * @param key normalized email
+     * @return the row or -1 if not found
+     */
+    int findByKey(String key);
+
+    /**
+     * @param username normalized username (githubLogin)
+     * @return the row or -1 if not found
+     */
+    int findByUsername(String username);
+
+    long getEstimatedBytes();
+
+    /**
+     * @return true if the store is allocated off-heap
+     */
+    boolean isDirect();
+}
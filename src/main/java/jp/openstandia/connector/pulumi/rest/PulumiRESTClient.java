@@ -1,84 +1,89 @@
 package jp.openstandia.connector.pulumi.rest;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import jp.openstandia.connector.pulumi.*;
-import okhttp3.*;
-import org.identityconnectors.common.logging.Log;
+import jp.openstandia.connector.pulumi.metrics.PulumiMetrics;
+import okhttp3.OkHttpClient;
 import org.identityconnectors.framework.common.exceptions.*;
 import org.identityconnectors.framework.common.objects.*;
 
-import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 import static jp.openstandia.connector.pulumi.PulumiTeamHandler.*;
 import static jp.openstandia.connector.pulumi.PulumiUserHandler.*;
 
+/**
+ * Synchronous client of the pulumi REST API. It's a thin adapter over {@link PulumiAsyncRESTClient}
+ * which adds the snapshot cache and the fan-out of the calls.
+ */
 public class PulumiRESTClient implements PulumiClient {
 
-    private static final Log LOG = Log.getLog(PulumiRESTClient.class);
-
-    private static final ObjectMapper MAPPER = new ObjectMapper();
-
-    private final String instanceName;
-    private final PulumiConfiguration configuration;
-    private final OkHttpClient httpClient;
+    private final PulumiAsyncRESTClient async;
+    private final PulumiSnapshotCache cache;
+    // Max number of the fanned out calls which are started but not joined yet
+    private final int fanOutWindow;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    public PulumiRESTClient(String instanceName, PulumiConfiguration configuration, OkHttpClient httpClient, PulumiMetrics metrics) {
+        this.cache = PulumiSnapshotCache.acquire(configuration.getPulumiURL(),
+                PulumiUtils.toCredentialHash(configuration.getAccessToken()), configuration.getCacheTTLInSeconds(),
+                configuration.isOffHeapCacheEnabled());
+        this.async = new PulumiAsyncRESTClient(instanceName, configuration, httpClient, metrics, cache.getConditionalCache());
+        this.fanOutWindow = Math.max(1, configuration.getMaxConcurrency()) * 2;
+    }
 
-    public PulumiRESTClient(String instanceName, PulumiConfiguration configuration, OkHttpClient httpClient) {
-        this.instanceName = instanceName;
-        this.configuration = configuration;
-        this.httpClient = httpClient;
+    /**
+     * @return the non-blocking client which this client delegates to. It doesn't use the snapshot cache.
+     */
+    public PulumiAsyncClient getAsyncClient() {
+        return async;
     }
 
     @Override
     public void test() {
-        try (Response response = get(configuration.getPulumiSelfURL())) {
-            if (response.code() != 200) {
-                // Something wrong..
-                String body = response.body().string();
-                throw new ConnectionFailedException(String.format("Unexpected authentication response. statusCode: %s, body: %s",
-                        response.code(),
-                        body));
-            }
-
-            LOG.info("[{0}] Pulumi connector's connection test is OK", instanceName);
+        join(async.test());
+    }
 
-        } catch (IOException e) {
-            throw new ConnectionFailedException("Cannot connect to pulumi REST API", e);
+    @Override
+    public void checkAlive() {
+        if (closed.get()) {
+            throw new ConnectorIOException("Pulumi REST client is already closed");
         }
+        async.checkAlive();
     }
 
     @Override
     public void close() {
+        if (closed.compareAndSet(false, true)) {
+            async.close();
+            cache.release();
+        }
     }
 
     @Override
     public Uid createUser(PulumiSchema schema, Set<Attribute> createAttributes) throws AlreadyExistsException {
         PulumiInvitationRepresentation invitation = createInvitation(schema, createAttributes);
 
-        try (Response response = post(getInvitationEndpointURL(configuration), invitation)) {
-            if (response.code() == 400) {
-                throw new InvalidAttributeValueException(String.format("Bad request when inviting pulumi user. email: %s", invitation.email));
-            }
+        join(async.invite(invitation));
 
-            if (response.code() != 204) {
-                throw new ConnectorIOException(String.format("Failed to invite pulumi user: %s, statusCode: %d",
-                        invitation.email, response.code()));
-            }
+        cache.onUserInvited(invitation.email, invitation.role);
 
-            // Created
-            // Don't include Name object
-            return new Uid(invitation.email);
-
-        } catch (IOException e) {
-            throw new ConnectorIOException("Failed to call pulumi invite user API", e);
-        }
+        // Created
+        // Don't include Name object
+        return new Uid(invitation.email);
     }
 
     @Override
     public void updateUser(PulumiSchema schema, Uid userUid, Set<AttributeDelta> modifications, OperationOptions options) throws UnknownUidException {
-        PulumiMemberRepresentation member = getUser(schema, userUid, options, Collections.emptySet());
+        PulumiMemberRepresentation member = getUserForWrite(schema, userUid, options);
         if (member == null) {
             throw new UnknownUidException(userUid, USER_OBJECT_CLASS);
         }
@@ -120,7 +125,8 @@ public class PulumiRESTClient implements PulumiClient {
         }
 
         if (doUpdate) {
-            callUpdate(USER_OBJECT_CLASS, getUserEndpointURL(configuration, member.user.githubLogin), userUid, op);
+            join(async.updateMember(userUid, member.user.githubLogin, op));
+            cache.onUserRoleUpdated(member.user.email, op.role);
         }
 
         // Update team association if needed
@@ -129,122 +135,125 @@ public class PulumiRESTClient implements PulumiClient {
     }
 
     protected void assignTeamsToUser(String username, List<String> teamNames) {
-        for (String teamName : teamNames) {
-            Map<String, String> body = new HashMap<>();
-            body.put("memberAction", "add");
-            body.put("member", username);
-
-            try (Response response = patch(getTeamEndpointURL(configuration, teamName), body)) {
-                if (response.code() == 404) {
-                    // Missing the team
-                    throw new UnknownUidException(new Uid(teamName), TEAM_OBJECT_CLASS);
-                }
-
-                if (response.code() != 204) {
-                    throw new ConnectorIOException(String.format("Failed to assign %s %s to %s, statusCode: %d, response: %s",
-                            TEAM_OBJECT_CLASS, teamName, username, response.code(), toBody(response)));
-                }
-                // Success
-
-            } catch (IOException e) {
-                throw new ConnectorIOException(String.format("Failed to assign %s %s to %s",
-                        TEAM_OBJECT_CLASS, teamName, username));
-            }
-        }
+        fanOut(teamNames, teamName -> callTeamMemberAction(teamName, username, "add"));
     }
 
     protected void unassignTeamsToUser(String username, List<String> teamNames) {
-        for (String teamName : teamNames) {
-            Map<String, String> body = new HashMap<>();
-            body.put("memberAction", "remove");
-            body.put("member", username);
-
-            try (Response response = patch(getTeamEndpointURL(configuration, teamName), body)) {
-                if (response.code() == 404) {
-                    // Missing the team
-                    throw new UnknownUidException(new Uid(teamName), TEAM_OBJECT_CLASS);
-                }
+        fanOut(teamNames, teamName -> callTeamMemberAction(teamName, username, "remove"));
+    }
 
-                if (response.code() != 204) {
-                    throw new ConnectorIOException(String.format("Failed to unassign %s %s to %s, statusCode: %d, response: %s",
-                            TEAM_OBJECT_CLASS, teamName, username, response.code(), toBody(response)));
-                }
-                // Success
+    protected void assignUsersToTeam(String teamName, List<String> usernames) {
+        fanOut(usernames, username -> callTeamMemberAction(teamName, username, "add"));
+    }
 
-            } catch (IOException e) {
-                throw new ConnectorIOException(String.format("Failed to unassign %s %s to %s",
-                        TEAM_OBJECT_CLASS, teamName, username));
-            }
-        }
+    protected void unassignUsersToTeam(String teamName, List<String> usernames) {
+        fanOut(usernames, username -> callTeamMemberAction(teamName, username, "remove"));
     }
 
     @Override
     public void deleteUser(PulumiSchema schema, Uid userUid, OperationOptions options) throws UnknownUidException {
-        PulumiMemberRepresentation member = getUser(schema, userUid, options, Collections.emptySet());
+        PulumiMemberRepresentation member = getUserForWrite(schema, userUid, options);
         if (member == null) {
             throw new UnknownUidException(userUid, USER_OBJECT_CLASS);
         }
 
         if (member.invitationId != null) {
-            callDelete(USER_OBJECT_CLASS, getInvitationEndpointURL(configuration, member.invitationId), userUid);
+            join(async.deleteInvitation(userUid, member.invitationId));
 
         } else {
-            callDelete(USER_OBJECT_CLASS, getUserEndpointURL(configuration, member.user.githubLogin), userUid);
+            join(async.deleteMember(userUid, member.user.githubLogin));
+        }
+
+        cache.onUserDeleted(member.user.email);
+    }
+
+    /**
+     * Find the user to be written. The invitation which is created by this connector isn't written
+     * in the cache with its id, so fetch it from the API in that case.
+     */
+    private PulumiMemberRepresentation getUserForWrite(PulumiSchema schema, Uid uid, OperationOptions options) {
+        PulumiMemberRepresentation member = getUser(schema, uid, options, Collections.emptySet());
+        if (member != null && PulumiSnapshot.isPendingMember(member)) {
+            return fetchUser(uid);
         }
+        return member;
     }
 
     @Override
     public void getUsers(PulumiSchema schema, PulumiQueryHandler<PulumiMemberRepresentation> handler, OperationOptions options, Set<String> attributesToGet, int queryPageSize) {
-        // Lookup from inviting users
-        try (Response response = get(getInvitationEndpointURL(configuration))) {
-            if (response.code() != 200) {
-                throw new ConnectorIOException(String.format("Failed to get pulumi inviting users. statusCode: %d", response.code()));
-            }
-
-            // Success
-            PulumiInvitesRepresentation users = MAPPER.readValue(response.body().byteStream(), PulumiInvitesRepresentation.class);
-            for (PulumiInviteRepresentation invite : users.invites) {
-                PulumiMemberRepresentation member = new PulumiMemberRepresentation();
-                member.invitationId = invite.id;
-                member.role = invite.role;
-                member.user = new PulumiUserRepresentation();
-                member.user.email = invite.email;
-
+        if (cache.isEnabled()) {
+            PulumiSnapshot snapshot = cache.loadMembers(this::fetchAllUsers);
+            for (PulumiMemberRepresentation member : snapshot.getMembers()) {
                 if (!handler.handle(member)) {
                     break;
                 }
             }
-
-        } catch (IOException e) {
-            throw new ConnectorIOException("Failed to call pulumi get inviting users API", e);
+            return;
         }
 
-        // Lookup from members
-        try (Response response = get(getUsersEndpointURL(configuration))) {
-            if (response.code() != 200) {
-                throw new ConnectorIOException(String.format("Failed to get pulumi users. statusCode: %d", response.code()));
+        fetchUsers(handler, true);
+    }
+
+    private List<PulumiMemberRepresentation> fetchAllUsers() {
+        List<PulumiMemberRepresentation> members = new ArrayList<>();
+        fetchUsers(member -> {
+            members.add(member);
+            return true;
+        }, true);
+        return members;
+    }
+
+    /**
+     * Fetch the inviting users, then the members.
+     *
+     * @param handler
+     * @param prefetchMembers fetch the members concurrently with the inviting users. It's cancelled when the handler
+     *                        stops while handling the inviting users.
+     */
+    private void fetchUsers(PulumiQueryHandler<PulumiMemberRepresentation> handler, boolean prefetchMembers) {
+        CompletableFuture<List<PulumiMemberRepresentation>> members = prefetchMembers ? async.getMembers() : null;
+        try {
+            // Lookup from inviting users
+            for (PulumiMemberRepresentation member : join(async.getInvitations())) {
+                if (!handler.handle(member)) {
+                    return;
+                }
             }
 
-            // Success
-            PulumiMembersRepresentation users = MAPPER.readValue(response.body().byteStream(), PulumiMembersRepresentation.class);
-            for (PulumiMemberRepresentation member : users.members) {
+            // Lookup from members
+            if (members == null) {
+                members = async.getMembers();
+            }
+            for (PulumiMemberRepresentation member : join(members)) {
                 if (!handler.handle(member)) {
                     break;
                 }
             }
 
-        } catch (IOException e) {
-            throw new ConnectorIOException("Failed to call pulumi get users API", e);
+        } finally {
+            if (members != null) {
+                members.cancel(true);
+            }
         }
     }
 
     @Override
     public PulumiMemberRepresentation getUser(PulumiSchema schema, Uid uid, OperationOptions options, Set<String> attributesToGet) {
+        if (cache.isEnabled()) {
+            PulumiSnapshot snapshot = cache.loadMembers(this::fetchAllUsers);
+            return snapshot.findMemberByEmail(uid.getUidValue());
+        }
+
+        return fetchUser(uid);
+    }
+
+    private PulumiMemberRepresentation fetchUser(Uid uid) {
         AtomicReference<PulumiMemberRepresentation> result = new AtomicReference<>();
 
         // Unfortunately, pulumi doesn't support fetch user by email.
         // That's why we need to fetch all users here.
-        getUsers(schema, (member) -> {
+        // Don't fetch the members if the user is found in the inviting users.
+        fetchUsers((member) -> {
             // email is case-insensitive
             if (member.user.email.equalsIgnoreCase(uid.getUidValue())) {
                 result.set(member);
@@ -253,7 +262,7 @@ public class PulumiRESTClient implements PulumiClient {
                 return false;
             }
             return true;
-        }, options, attributesToGet, -1);
+        }, false);
 
         return result.get();
     }
@@ -262,307 +271,268 @@ public class PulumiRESTClient implements PulumiClient {
     public Uid createTeam(PulumiSchema schema, Set<Attribute> createAttributes) throws AlreadyExistsException {
         PulumiTeamRepresentation team = newTeam(schema, createAttributes);
 
-        try (Response response = post(getCreateTeamEndpointURL(configuration), team)) {
-            if (response.code() == 400) {
-                PulumiErrorRepresentation error = MAPPER.readValue(response.body().byteStream(), PulumiErrorRepresentation.class);
-                throw new InvalidAttributeValueException(String.format("Bad request when creating pulumi team: %s, statusCode: %d, message: %s", team.name, response.code(), error.message));
-            }
-            if (response.code() == 409) {
-                throw new AlreadyExistsException(String.format("Team '%s' already exists.", team.name));
-            }
-
-            if (response.code() != 201) {
-                throw new ConnectorIOException(String.format("Failed to create pulumi team: %s, statusCode: %d", team.name, response.code()));
-            }
+        join(async.createTeam(team));
 
-            // Created
-            // Don't include Name
-            return new Uid(team.name);
+        cache.onTeamCreated(team);
 
-        } catch (IOException e) {
-            throw new ConnectorIOException("Failed to call pulumi REST API", e);
-        }
+        // Created
+        // Don't include Name
+        return new Uid(team.name);
     }
 
     @Override
     public void updateTeam(PulumiSchema schema, Uid teamUid, Set<AttributeDelta> modifications, OperationOptions options) throws UnknownUidException {
         PulumiUpdateTeamOperation target = new PulumiUpdateTeamOperation();
+        boolean doUpdate = false;
+
+        List<String> addUsernames = new ArrayList<>();
+        List<String> removeUsernames = new ArrayList<>();
 
         // Apply delta
-        modifications.stream().forEach(delta -> {
-            if (delta.getName().equals(ATTR_DISPLAY_NAME)) {
+        for (AttributeDelta delta : modifications) {
+            if (delta.is(ATTR_DISPLAY_NAME)) {
                 target.newDisplayName = PulumiUtils.toResourceValue(delta);
+                doUpdate = true;
 
-            } else if (delta.getName().equals(ATTR_DESCRIPTION)) {
+            } else if (delta.is(ATTR_DESCRIPTION)) {
                 target.newDescription = PulumiUtils.toResourceValue(delta);
+                doUpdate = true;
+
+            } else if (delta.is(ATTR_MEMBERS)) {
+                List<Object> valuesToAdd = delta.getValuesToAdd();
+                if (valuesToAdd != null) {
+                    for (Object o : valuesToAdd) {
+                        addUsernames.add(o.toString());
+                    }
+                }
+
+                List<Object> valuesToRemove = delta.getValuesToRemove();
+                if (valuesToRemove != null) {
+                    for (Object o : valuesToRemove) {
+                        removeUsernames.add(o.toString());
+                    }
+                }
             }
-        });
+        }
+
+        if (doUpdate) {
+            join(async.updateTeam(teamUid, target));
+            cache.onTeamUpdated(teamUid.getUidValue(), target.newDisplayName, target.newDescription);
+        }
 
-        callUpdate(TEAM_OBJECT_CLASS, getTeamEndpointURL(configuration, teamUid), teamUid, target);
+        // Update team association if needed
+        assignUsersToTeam(teamUid.getUidValue(), addUsernames);
+        unassignUsersToTeam(teamUid.getUidValue(), removeUsernames);
     }
 
     @Override
     public void deleteTeam(PulumiSchema schema, Uid teamUid, OperationOptions options) throws UnknownUidException {
-        callDelete(USER_OBJECT_CLASS, getTeamEndpointURL(configuration, teamUid), teamUid);
+        join(async.deleteTeam(teamUid));
+        cache.onTeamDeleted(teamUid.getUidValue());
     }
 
     @Override
     public void getTeams(PulumiSchema schema, PulumiQueryHandler<PulumiTeamRepresentation> handler, OperationOptions options, Set<String> attributesToGet, int queryPageSize) {
-        try (Response response = get(getTeamsEndpointURL(configuration))) {
-            if (response.code() != 200) {
-                throw new ConnectorIOException(String.format("Failed to get pulumi teams. statusCode: %d", response.code()));
-            }
-
-            // Success
-            PulumiTeamsRepresentation teams = MAPPER.readValue(response.body().byteStream(), PulumiTeamsRepresentation.class);
-            for (PulumiTeamRepresentation team : teams.teams) {
+        if (cache.isEnabled()) {
+            PulumiSnapshot snapshot = cache.loadTeams(this::fetchAllTeams);
+            for (PulumiTeamRepresentation team : snapshot.getTeams()) {
                 if (!handler.handle(team)) {
                     break;
                 }
             }
+            return;
+        }
 
-        } catch (IOException e) {
-            throw new ConnectorIOException("Failed to call pulumi get teams API", e);
+        for (PulumiTeamRepresentation team : fetchAllTeams()) {
+            if (!handler.handle(team)) {
+                break;
+            }
         }
     }
 
+    private List<PulumiTeamRepresentation> fetchAllTeams() {
+        return join(async.getTeams());
+    }
+
     @Override
     public PulumiTeamWithMembersRepresentation getTeam(PulumiSchema schema, Uid uid, OperationOptions options, Set<String> attributesToGet) {
-        try {
-            Response response = get(getTeamEndpointURL(configuration, uid));
-
-            if (response.code() == 404) {
-                // Don't throw
-                return null;
-            }
-
-            if (response.code() != 200) {
-                throw new ConnectorIOException(String.format("Failed to get pulumi team. statusCode: %d", response.code()));
-            }
-
-            // Success
-            PulumiTeamWithMembersRepresentation team = MAPPER.readValue(response.body().byteStream(), PulumiTeamWithMembersRepresentation.class);
-
-            // The API returns null if no members
-            if (team.members == null) {
-                team.members = Collections.emptyList();
-            }
-
-            return team;
-
-        } catch (IOException e) {
-            throw new ConnectorIOException("Failed to call pulumi get team API", e);
+        if (cache.isEnabled()) {
+            PulumiSnapshot snapshot = cache.loadTeamMembers(uid.getUidValue(), () -> join(async.getTeam(uid.getUidValue())));
+            return snapshot.findTeam(uid.getUidValue());
         }
+
+        return join(async.getTeam(uid.getUidValue()));
     }
 
     @Override
     public void getTeamsForUser(PulumiSchema schema, String username, PulumiQueryHandler<PulumiTeamRepresentation> handler) {
+        if (cache.isEnabled()) {
+            // Resolve by the reverse index of the team members
+            PulumiSnapshot snapshot = cache.loadAllTeamMembers(this::fetchAllTeams, teams -> {
+                Map<String, List<PulumiTeamMemberRepresentation>> teamMembers = new HashMap<>();
+                for (PulumiTeamWithMembersRepresentation team : fetchTeamsWithMembers(teams)) {
+                    if (team != null) {
+                        teamMembers.put(team.name, team.members);
+                    }
+                }
+                return teamMembers;
+            });
+            Set<String> teamNames = snapshot.getTeamNamesForUser(username);
+            for (PulumiTeamRepresentation team : snapshot.getTeams()) {
+                if (teamNames.contains(team.name)) {
+                    handler.handle(team);
+                }
+            }
+            return;
+        }
+
         // Unfortunately, pulumi doesn't support fetch team by username.
         // That's why we need to do the following heavy process here.
         // 1. Fetch all teams
-        // 2. Fetch each team
+        // 2. Fetch each team in parallel
         // 3. Check the user belongs to the team
-        getTeams(schema, team -> {
-            PulumiClient.PulumiTeamWithMembersRepresentation teamWithMembers = getTeam(schema, new Uid(team.name), null, Collections.emptySet());
+        List<PulumiTeamRepresentation> teams = fetchAllTeams();
+        List<PulumiTeamWithMembersRepresentation> teamsWithMembers = fetchTeamsWithMembers(teams);
+
+        for (int i = 0; i < teams.size(); i++) {
+            PulumiTeamWithMembersRepresentation teamWithMembers = teamsWithMembers.get(i);
+            if (teamWithMembers == null) {
+                // Deleted while fetching
+                continue;
+            }
             Optional<PulumiTeamMemberRepresentation> found = teamWithMembers.members.stream()
                     // The username is case-insensitive
                     .filter(m -> m.githubLogin.equalsIgnoreCase(username))
                     .findFirst();
 
             if (found.isPresent()) {
-                handler.handle(team);
-            }
-
-            return true;
-        }, null, Collections.emptySet(), -1);
-    }
-
-    // Utilities
-
-    protected void callUpdate(ObjectClass objectClass, String url, Uid uid, Object target) {
-        try (Response response = patch(url, target)) {
-            if (response.code() == 400) {
-                throw new InvalidAttributeValueException(String.format("Bad request when updating %s: %s, response: %s",
-                        objectClass.getObjectClassValue(), uid.getUidValue(), toBody(response)));
-            }
-
-            if (response.code() == 404) {
-                throw new UnknownUidException(uid, objectClass);
-            }
-
-            if (response.code() != 204) {
-                throw new ConnectorIOException(String.format("Failed to update pulumi %s: %s, statusCode: %d, response: %s",
-                        objectClass.getObjectClassValue(), uid.getUidValue(), response.code(), toBody(response)));
+                handler.handle(teams.get(i));
             }
-
-            // Success
-
-        } catch (IOException e) {
-            throw new ConnectorIOException(String.format("Failed to update pulumi %s: %s",
-                    objectClass.getObjectClassValue(), uid.getUidValue()), e);
         }
     }
 
-    private String toBody(Response response) {
-        ResponseBody resBody = response.body();
-        if (resBody == null) {
-            return null;
-        }
-        try {
-            return resBody.string();
-        } catch (IOException e) {
-            LOG.error(e, "Unexpected pulumi REST API response");
-            return "<failed_to_parse_response>";
-        }
+    private List<PulumiTeamWithMembersRepresentation> fetchTeamsWithMembers(List<PulumiTeamRepresentation> teams) {
+        return fanOut(teams, team -> async.getTeam(team.name));
     }
 
+    // Utilities
+
     /**
-     * Generic delete method.
+     * Add or remove the member of the team, and apply it to the cache when succeeded.
+     * The API takes one member per PATCH, so the changes of many members are fanned out as concurrent calls.
      *
-     * @param objectClass
-     * @param url
-     * @param uid
+     * @param teamName
+     * @param username
+     * @param memberAction "add" or "remove"
      */
-    protected void callDelete(ObjectClass objectClass, String url, Uid uid) {
-        try (Response response = delete(url)) {
-            if (response.code() == 404) {
-                throw new UnknownUidException(uid, objectClass);
+    protected CompletableFuture<Void> callTeamMemberAction(String teamName, String username, String memberAction) {
+        return onSuccess(async.updateTeamMember(teamName, username, memberAction), r -> {
+            if (memberAction.equals("add")) {
+                cache.onTeamMemberAdded(teamName, username);
+            } else {
+                cache.onTeamMemberRemoved(teamName, username);
             }
+        });
+    }
 
-            if (response.code() != 204) {
-                throw new ConnectorIOException(String.format("Failed to delete pulumi %s: %s, statusCode: %d, response: %s",
-                        objectClass.getObjectClassValue(), uid.getUidValue(), response.code(), toBody(response)));
+    /**
+     * Run the action when the future succeeded. Cancelling the returned future cancels the source.
+     */
+    private static <T> CompletableFuture<T> onSuccess(CompletableFuture<T> source, Consumer<T> action) {
+        CompletableFuture<T> result = source.thenApply(r -> {
+            action.accept(r);
+            return r;
+        });
+        result.whenComplete((r, e) -> {
+            if (result.isCancelled()) {
+                source.cancel(true);
             }
-
-            // Success
-
-        } catch (IOException e) {
-            throw new ConnectorIOException(String.format("Failed to delete pulumi %s: %s",
-                    objectClass.getObjectClassValue(), uid.getUidValue()), e);
-        }
+        });
+        return result;
     }
 
-    private RequestBody createJsonRequestBody(Object body) {
-        String bodyString;
+    /**
+     * Wait for the result of the API call. The wait is bounded by the deadline of the current thread,
+     * the call is cancelled when the deadline passed.
+     *
+     * @param future
+     * @param <T>
+     * @return
+     * @throws ConnectorException which the call failed with
+     */
+    protected <T> T join(CompletableFuture<T> future) {
+        PulumiDeadline deadline = PulumiDeadline.current();
         try {
-            bodyString = MAPPER.writeValueAsString(body);
-        } catch (JsonProcessingException e) {
-            throw new ConnectorIOException("Failed to write request json body", e);
-        }
-
-        return RequestBody.create(bodyString, MediaType.parse("application/json; charset=UTF-8"));
-    }
-
-    private void throwExceptionIfUnauthorized(Response response) throws ConnectorIOException {
-        if (response.code() == 401) {
-            throw new ConnectionFailedException("Cannot authenticate to the pulumi REST API: " + response.message());
-        }
-    }
-
-    private void throwExceptionIfServerError(Response response) throws ConnectorIOException {
-        if (response.code() >= 500 && response.code() <= 599) {
-            try {
-                String body = response.body().string();
-                throw new ConnectorIOException("Pulumi server error: " + body);
-            } catch (IOException e) {
-                throw new ConnectorIOException("Pulumi server error", e);
+            if (deadline == null) {
+                return future.get();
             }
-        }
-    }
+            // The joined call might be started by another operation without the deadline
+            return future.get(Math.max(0, deadline.remainingNanos()), TimeUnit.NANOSECONDS);
 
-    private Response get(String url) throws IOException {
-        for (int i = 0; i < 2; i++) {
-            final Request request = new Request.Builder()
-                    .url(url)
-                    .get()
-                    .build();
-
-            final Response response = httpClient.newCall(request).execute();
-
-            throwExceptionIfUnauthorized(response);
-            throwExceptionIfServerError(response);
-
-            return response;
-        }
-
-        throw new ConnectorIOException("Failed to call get API");
-    }
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw deadline.newTimeoutException();
 
-    private Response post(String url, Object body) throws IOException {
-        RequestBody requestBody = createJsonRequestBody(body);
+        } catch (CancellationException e) {
+            throw new ConnectorIOException("Cancelled the call of pulumi REST API", e);
 
-        for (int i = 0; i < 2; i++) {
-            final Request request = new Request.Builder()
-                    .url(url)
-                    .post(requestBody)
-                    .build();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new ConnectorIOException("Interrupted while calling pulumi REST API", e);
 
-            final Response response = httpClient.newCall(request).execute();
-
-            throwExceptionIfUnauthorized(response);
-            throwExceptionIfServerError(response);
-
-            return response;
-        }
-
-        throw new ConnectorIOException("Failed to call post API");
-    }
-
-    private Response put(String url, Object body) throws IOException {
-        RequestBody requestBody = createJsonRequestBody(body);
-
-        for (int i = 0; i < 2; i++) {
-            final Request request = new Request.Builder()
-                    .url(url)
-                    .put(requestBody)
-                    .build();
-
-            final Response response = httpClient.newCall(request).execute();
-
-            throwExceptionIfUnauthorized(response);
-            throwExceptionIfServerError(response);
-
-            return response;
-        }
-
-        throw new ConnectorIOException("Failed to call post API");
-    }
-
-    private Response patch(String url, Object body) throws IOException {
-        RequestBody requestBody = createJsonRequestBody(body);
-
-        for (int i = 0; i < 2; i++) {
-            final Request request = new Request.Builder()
-                    .url(url)
-                    .patch(requestBody)
-                    .build();
-
-            final Response response = httpClient.newCall(request).execute();
-
-            throwExceptionIfUnauthorized(response);
-            throwExceptionIfServerError(response);
-
-            return response;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ConnectorIOException("Failed to call pulumi REST API", e.getCause());
         }
-
-        throw new ConnectorIOException("Failed to call patch API");
     }
 
-    private Response delete(String url) throws IOException {
-        for (int i = 0; i < 2; i++) {
-            final Request request = new Request.Builder()
-                    .url(url)
-                    .delete()
-                    .build();
-
-            final Response response = httpClient.newCall(request).execute();
+    /**
+     * Start the calls for the items, then wait for all of them. Starting a call doesn't block, the calls over
+     * the adaptive concurrency limit are parked by the limiter. To bound the parked calls, the oldest call
+     * is joined before starting a new one when the started calls reach twice of the max concurrency.
+     * When a call failed, the remaining calls are cancelled.
+     *
+     * @param items
+     * @param task  starts the call for the item
+     * @param <T>
+     * @param <R>
+     * @return the results in the order of the items
+     */
+    protected <T, R> List<R> fanOut(List<T> items, Function<T, CompletableFuture<R>> task) {
+        List<CompletableFuture<R>> futures = new ArrayList<>(items.size());
+        List<R> results = new ArrayList<>(items.size());
+        CompletableFuture<Void> failed = new CompletableFuture<>();
+        try {
+            for (T item : items) {
+                if (failed.isDone()) {
+                    // Stop starting the calls, the failure is thrown below
+                    break;
+                }
+                if (futures.size() - results.size() >= fanOutWindow) {
+                    results.add(join(futures.get(results.size())));
+                }
+                CompletableFuture<R> future = task.apply(item);
+                future.whenComplete((r, e) -> {
+                    if (e != null) {
+                        failed.complete(null);
+                    }
+                });
+                futures.add(future);
+            }
 
-            throwExceptionIfUnauthorized(response);
-            throwExceptionIfServerError(response);
+            while (results.size() < futures.size()) {
+                results.add(join(futures.get(results.size())));
+            }
+            return results;
 
-            return response;
+        } finally {
+            // Cancel the remaining calls when failed
+            for (CompletableFuture<R> future : futures) {
+                future.cancel(true);
+            }
         }
-
-        throw new ConnectorIOException("Failed to call delete API");
     }
 }
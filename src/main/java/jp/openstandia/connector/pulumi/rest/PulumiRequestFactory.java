@@ -0,0 +1,134 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import jp.openstandia.connector.pulumi.PulumiConfiguration;
+import jp.openstandia.connector.pulumi.metrics.PulumiOperationTrace;
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+
+/**
+ * Builds the requests of the pulumi REST API.
+ * <p>
+ * The endpoint URLs are parsed once per client and the path segments are appended to them,
+ * so building a request doesn't format and re-parse the URL. The JSON bodies are written to bytes directly by the pre-built writers.
+ */
+public class PulumiRequestFactory {
+
+    static final MediaType JSON = MediaType.get("application/json; charset=UTF-8");
+
+    private final PulumiJson json;
+    private final HttpUrl selfUrl;
+    private final HttpUrl invitesUrl;
+    private final HttpUrl membersUrl;
+    private final HttpUrl frontendMembersUrl;
+    private final HttpUrl teamsUrl;
+    private final HttpUrl createTeamUrl;
+
+    public PulumiRequestFactory(PulumiConfiguration configuration) {
+        this.json = PulumiJson.get(configuration.isJsonBytecodeGenerationEnabled());
+        this.selfUrl = HttpUrl.get(configuration.getPulumiSelfURL());
+        this.invitesUrl = HttpUrl.get(configuration.getPulumiConsoleURL() + "/invites");
+        this.membersUrl = HttpUrl.get(configuration.getPulumiURL() + "/members");
+        this.frontendMembersUrl = membersUrl.newBuilder().addQueryParameter("type", "frontend").build();
+        this.teamsUrl = HttpUrl.get(configuration.getPulumiURL() + "/teams");
+        this.createTeamUrl = teamsUrl.newBuilder().addPathSegment("pulumi").build();
+    }
+
+    public HttpUrl selfUrl() {
+        return selfUrl;
+    }
+
+    public HttpUrl invitesUrl() {
+        return invitesUrl;
+    }
+
+    public HttpUrl inviteUrl(String invitationId) {
+        return invitesUrl.newBuilder().addPathSegment(invitationId).build();
+    }
+
+    public HttpUrl membersUrl() {
+        return frontendMembersUrl;
+    }
+
+    public HttpUrl memberUrl(String username) {
+        return membersUrl.newBuilder().addPathSegment(username).build();
+    }
+
+    public HttpUrl teamsUrl() {
+        return teamsUrl;
+    }
+
+    public HttpUrl createTeamUrl() {
+        return createTeamUrl;
+    }
+
+    public HttpUrl teamUrl(String teamName) {
+        return teamsUrl.newBuilder().addPathSegment(teamName).build();
+    }
+
+    public Request get(PulumiEndpoint endpoint, HttpUrl url) {
+        return newBuilder(endpoint, url)
+                .get()
+                .build();
+    }
+
+    public Request post(PulumiEndpoint endpoint, HttpUrl url, Object body) {
+        return newBuilder(endpoint, url)
+                .post(createJsonRequestBody(body))
+                .build();
+    }
+
+    public Request patch(PulumiEndpoint endpoint, HttpUrl url, Object body) {
+        return newBuilder(endpoint, url)
+                .patch(createJsonRequestBody(body))
+                .build();
+    }
+
+    public Request delete(PulumiEndpoint endpoint, HttpUrl url) {
+        return newBuilder(endpoint, url)
+                .delete()
+                .build();
+    }
+
+    private Request.Builder newBuilder(PulumiEndpoint endpoint, HttpUrl url) {
+        return new Request.Builder()
+                .url(url)
+                .tag(PulumiEndpoint.class, endpoint)
+                .tag(PulumiOperationTrace.class, PulumiOperationTrace.current());
+    }
+
+    /**
+     * Write the body to bytes without the intermediate String.
+     *
+     * @param body
+     * @return
+     */
+    public RequestBody createJsonRequestBody(Object body) {
+        byte[] bytes;
+        try {
+            bytes = json.write(body);
+        } catch (JsonProcessingException e) {
+            throw new ConnectorIOException("Failed to write request json body", e);
+        }
+
+        return RequestBody.create(bytes, JSON);
+    }
+}
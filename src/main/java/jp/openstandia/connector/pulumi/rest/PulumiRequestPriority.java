@@ -0,0 +1,48 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+/**
+ * Priority class of the API calls. It's bound to the current thread by the connector operation.
+ */
+public enum PulumiRequestPriority {
+    /**
+     * Single object get, create, update and delete.
+     */
+    INTERACTIVE,
+    /**
+     * Listing of all objects and its fan-out.
+     */
+    BULK;
+
+    private static final ThreadLocal<PulumiRequestPriority> CURRENT = ThreadLocal.withInitial(() -> INTERACTIVE);
+
+    public static PulumiRequestPriority current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Bind the priority to the current thread.
+     *
+     * @param priority
+     * @return the previous priority to restore
+     */
+    public static PulumiRequestPriority set(PulumiRequestPriority priority) {
+        PulumiRequestPriority previous = CURRENT.get();
+        CURRENT.set(priority);
+        return previous;
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import okhttp3.Response;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
+
+import java.io.InterruptedIOException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket which schedules the API calls of an organization.
+ * <p>
+ * The bucket is shared by all connector instances in the JVM which access the same organization, because the API
+ * limits the organization as a whole. Each instance registers its rate limit by
+ * {@link #forOrganization(String, int)}, and the lowest registered rate limit is applied (unlimited only when all
+ * instances are unlimited). The rate limit is reconfigured in place when an instance registers or unregisters,
+ * and the bucket is kept after the last instance is unregistered, so the short-lived instances inherit the state.
+ * {@link PulumiRequestPriority#BULK} calls can't use the reserved tokens and yield to waiting
+ * {@link PulumiRequestPriority#INTERACTIVE} calls, so provisioning isn't starved by a running recon.
+ * The calls over the budget are parked without blocking the caller, and permitted by the refill of the bucket.
+ * The rate is halved on 429 (Too Many Requests) and recovers gradually on success. The bucket also
+ * pauses until the reset time when the API reports no remaining requests by X-RateLimit-* headers.
+ * The reservation never exceeds the bucket, so bulk calls can always proceed when the bucket is full.
+ */
+public class PulumiRequestScheduler {
+
+    private static final Log LOG = Log.getLog(PulumiRequestScheduler.class);
+
+    // Guarded by REGISTRY
+    private static final Map<String, PulumiRequestScheduler> REGISTRY = new HashMap<>();
+
+    // Ratio of the bucket capacity which only the interactive calls can use
+    private static final double INTERACTIVE_RESERVE_RATIO = 0.2;
+    // Lower bound of the adapted rate (requests/second)
+    private static final double MIN_RATE = 0.5;
+    // Wait time when 429 is returned without Retry-After header
+    private static final long DEFAULT_RETRY_AFTER_MILLIS = 1000;
+
+    private final String key;
+    // Rate limits of the registered instances, guarded by REGISTRY
+    private final List<Integer> registeredRateLimits = new ArrayList<>();
+
+    // Guarded by this
+    private double maxRate;
+    private double rate;
+    private double tokens;
+    // Upper bound of the tokens which the bulk calls can wait for, lowered by X-RateLimit-Remaining
+    private double ceiling;
+    private long lastRefillAt;
+    private long pausedUntil;
+    // Parked calls in the arrival order
+    private final ArrayDeque<CompletableFuture<Void>> interactiveWaiters = new ArrayDeque<>();
+    private final ArrayDeque<CompletableFuture<Void>> bulkWaiters = new ArrayDeque<>();
+    // Pending wake up of the parked calls
+    private ScheduledFuture<?> drainTask;
+    private long drainAt;
+
+    PulumiRequestScheduler(String key, double maxRate) {
+        this.key = key;
+        this.lastRefillAt = System.nanoTime();
+        this.pausedUntil = lastRefillAt;
+        this.maxRate = maxRate;
+        this.rate = maxRate;
+        this.tokens = capacity();
+        this.ceiling = capacity();
+    }
+
+    /**
+     * Return the scheduler shared by the instances which access the organization, and register the rate limit
+     * of the instance. The caller must call {@link #unregister(int)} when it's disposed.
+     *
+     * @param key                identifies the organization
+     * @param rateLimitPerSecond 0 or less means unlimited, only the throttling by the API is applied
+     * @return
+     */
+    public static PulumiRequestScheduler forOrganization(String key, int rateLimitPerSecond) {
+        synchronized (REGISTRY) {
+            PulumiRequestScheduler scheduler = REGISTRY.computeIfAbsent(key,
+                    k -> new PulumiRequestScheduler(k, Math.max(0, rateLimitPerSecond)));
+            scheduler.registeredRateLimits.add(Math.max(0, rateLimitPerSecond));
+            scheduler.configure(scheduler.getLowestRateLimit());
+            return scheduler;
+        }
+    }
+
+    /**
+     * Unregister the rate limit registered by {@link #forOrganization(String, int)}.
+     *
+     * @param rateLimitPerSecond
+     */
+    public void unregister(int rateLimitPerSecond) {
+        synchronized (REGISTRY) {
+            registeredRateLimits.remove(Integer.valueOf(Math.max(0, rateLimitPerSecond)));
+            // Keep the last settings when no instance is registered, the state is kept for the next instance
+            if (!registeredRateLimits.isEmpty()) {
+                configure(getLowestRateLimit());
+            }
+        }
+    }
+
+    private int getLowestRateLimit() {
+        int lowest = 0;
+        for (int rateLimit : registeredRateLimits) {
+            if (rateLimit > 0 && (lowest == 0 || rateLimit < lowest)) {
+                lowest = rateLimit;
+            }
+        }
+        return lowest;
+    }
+
+    /**
+     * Change the rate limit in place. The adapted rate and the tokens are kept within the new limit.
+     *
+     * @param rateLimitPerSecond 0 or less means unlimited
+     */
+    void configure(int rateLimitPerSecond) {
+        synchronized (this) {
+            double next = Math.max(0, rateLimitPerSecond);
+            if (next == maxRate) {
+                return;
+            }
+            boolean wasUnlimited = isUnlimited();
+            // The rate follows the new limit unless it's lowered by the throttling
+            boolean adapted = rate < maxRate;
+            maxRate = next;
+            if (wasUnlimited) {
+                rate = maxRate;
+                tokens = capacity();
+            } else {
+                rate = isUnlimited() || !adapted ? maxRate : Math.min(rate, maxRate);
+                tokens = Math.min(tokens, capacity());
+            }
+            ceiling = capacity();
+            LOG.info("[{0}] Configured the pulumi API rate limit: {1}/s", key, maxRate);
+        }
+        drain();
+    }
+
+    private boolean isUnlimited() {
+        return maxRate <= 0;
+    }
+
+    private double capacity() {
+        // Allow 1 second burst
+        return Math.max(1, maxRate);
+    }
+
+    private void refill(long now) {
+        if (!isUnlimited()) {
+            tokens = Math.min(capacity(), tokens + (now - lastRefillAt) * rate / TimeUnit.SECONDS.toNanos(1));
+        }
+        lastRefillAt = now;
+    }
+
+    /**
+     * Wait until the call is permitted.
+     *
+     * @param priority
+     * @throws InterruptedIOException
+     */
+    public void acquire(PulumiRequestPriority priority) throws InterruptedIOException {
+        acquire(priority, null);
+    }
+
+    /**
+     * Wait until the call is permitted or the deadline passes.
+     * It blocks the current thread, the asynchronous callers use {@link #acquireAsync(PulumiRequestPriority, PulumiDeadline)}.
+     *
+     * @param priority
+     * @param deadline can be null
+     * @throws InterruptedIOException
+     * @throws OperationTimeoutException if the deadline passed while waiting
+     */
+    public void acquire(PulumiRequestPriority priority, PulumiDeadline deadline) throws InterruptedIOException {
+        CompletableFuture<Void> future = acquireAsync(priority, deadline);
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the pulumi API rate limit");
+        } catch (ExecutionException e) {
+            throw (RuntimeException) e.getCause();
+        }
+    }
+
+    /**
+     * Request the permission of the call without blocking. When the bucket has no token or is paused, the call is parked
+     * and the returned future is completed by the refill of the bucket. The parked interactive calls are permitted
+     * before the bulk calls. Cancelling the returned future gives up waiting.
+     *
+     * @param priority
+     * @param deadline can be null
+     * @return the future completed when the call is permitted, or completed exceptionally with
+     * OperationTimeoutException when the deadline passed while waiting
+     */
+    public CompletableFuture<Void> acquireAsync(PulumiRequestPriority priority, PulumiDeadline deadline) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        synchronized (this) {
+            if (priority == PulumiRequestPriority.INTERACTIVE) {
+                interactiveWaiters.add(future);
+            } else {
+                bulkWaiters.add(future);
+            }
+        }
+        drain();
+
+        if (deadline != null && !future.isDone()) {
+            ScheduledFuture<?> timeout = PulumiTimer.schedule(() -> {
+                if (future.completeExceptionally(deadline.newTimeoutException())) {
+                    // The bulk calls might be waiting for this interactive call
+                    drain();
+                }
+            }, deadline.remainingNanos());
+            future.whenComplete((r, e) -> timeout.cancel(false));
+        }
+        return future;
+    }
+
+    /**
+     * Permit the parked calls while the bucket has tokens, and schedule the next drain by the refill time.
+     * The futures are completed outside the lock because their dependents start the calls.
+     */
+    private void drain() {
+        List<CompletableFuture<Void>> granted = new ArrayList<>();
+        synchronized (this) {
+            long now = System.nanoTime();
+            refill(now);
+
+            while (true) {
+                purgeDone(interactiveWaiters);
+                purgeDone(bulkWaiters);
+
+                boolean interactive = !interactiveWaiters.isEmpty();
+                ArrayDeque<CompletableFuture<Void>> waiters = interactive ? interactiveWaiters : bulkWaiters;
+                if (waiters.isEmpty()) {
+                    break;
+                }
+
+                if (pausedUntil - now > 0) {
+                    scheduleDrain(now, pausedUntil - now);
+                    break;
+                }
+                if (isUnlimited()) {
+                    granted.add(waiters.poll());
+                    continue;
+                }
+
+                double required = interactive ? 1 : bulkRequirement();
+                if (tokens >= required) {
+                    tokens -= 1;
+                    granted.add(waiters.poll());
+                    continue;
+                }
+                scheduleDrain(now, (long) (Math.max(required - tokens, 1) * TimeUnit.SECONDS.toNanos(1) / rate));
+                break;
+            }
+        }
+
+        boolean refunded = false;
+        for (CompletableFuture<Void> waiter : granted) {
+            if (!waiter.complete(null)) {
+                // Cancelled or timed out meanwhile
+                synchronized (this) {
+                    if (!isUnlimited()) {
+                        tokens = Math.min(capacity(), tokens + 1);
+                    }
+                }
+                refunded = true;
+            }
+        }
+        if (refunded) {
+            drain();
+        }
+    }
+
+    private static void purgeDone(ArrayDeque<CompletableFuture<Void>> waiters) {
+        while (!waiters.isEmpty() && waiters.peek().isDone()) {
+            waiters.poll();
+        }
+    }
+
+    /**
+     * Schedule the drain unless an earlier one is already scheduled. Guarded by this.
+     */
+    private void scheduleDrain(long now, long delayNanos) {
+        long at = now + delayNanos;
+        if (drainTask != null) {
+            if (drainAt - at <= 0) {
+                return;
+            }
+            drainTask.cancel(false);
+        }
+        drainAt = at;
+        drainTask = PulumiTimer.schedule(() -> {
+            synchronized (this) {
+                if (drainAt == at) {
+                    drainTask = null;
+                }
+            }
+            drain();
+        }, delayNanos);
+    }
+
+    /**
+     * Tokens which a bulk call needs, leaving the reserve for the interactive calls. It's bounded by the tokens
+     * the bucket can hold, otherwise the bulk calls wait forever with a small rate limit (less than 1.25/s)
+     * or a small X-RateLimit-Remaining.
+     */
+    private double bulkRequirement() {
+        return Math.max(1, Math.min(1 + capacity() * INTERACTIVE_RESERVE_RATIO, ceiling));
+    }
+
+    /**
+     * Adapt the budget by the response.
+     *
+     * @param response
+     */
+    public void onResponse(Response response) {
+        if (response.code() == 429) {
+            long retryAfterMillis = parseRetryAfter(response.header("Retry-After"));
+            onThrottled(retryAfterMillis);
+            return;
+        }
+
+        String remaining = response.header("X-RateLimit-Remaining");
+        String reset = response.header("X-RateLimit-Reset");
+        if (remaining != null) {
+            try {
+                onRateLimitHeaders(Long.parseLong(remaining.trim()), parseReset(reset));
+                drain();
+                return;
+            } catch (NumberFormatException e) {
+                LOG.ok("Ignore invalid X-RateLimit-Remaining header: {0}", remaining);
+            }
+        }
+
+        onNoRateLimitHeaders();
+        drain();
+    }
+
+    synchronized void onThrottled(long retryAfterMillis) {
+        long now = System.nanoTime();
+        pausedUntil = Math.max(pausedUntil, now + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis));
+        if (!isUnlimited()) {
+            rate = Math.max(MIN_RATE, rate / 2);
+            tokens = 0;
+        }
+        LOG.info("[{0}] Throttled by pulumi API, retry after {1}ms, rate: {2}/s", key, retryAfterMillis, rate);
+    }
+
+    synchronized void onRateLimitHeaders(long remaining, long resetAfterMillis) {
+        if (remaining <= 0 && resetAfterMillis > 0) {
+            pausedUntil = Math.max(pausedUntil, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(resetAfterMillis));
+            LOG.info("[{0}] No remaining pulumi API requests, pause {1}ms", key, resetAfterMillis);
+            return;
+        }
+        if (!isUnlimited()) {
+            // Don't spend more than the API allows
+            tokens = Math.min(tokens, remaining);
+            ceiling = Math.min(capacity(), remaining);
+        }
+        onSuccess();
+    }
+
+    private synchronized void onNoRateLimitHeaders() {
+        ceiling = capacity();
+        onSuccess();
+    }
+
+    private synchronized void onSuccess() {
+        if (!isUnlimited() && rate < maxRate) {
+            // Additive increase
+            rate = Math.min(maxRate, rate + maxRate * 0.05);
+        }
+    }
+
+    static long parseRetryAfter(String value) {
+        if (value == null) {
+            return DEFAULT_RETRY_AFTER_MILLIS;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            try {
+                ZonedDateTime date = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                return Math.max(0, date.toInstant().toEpochMilli() - System.currentTimeMillis());
+            } catch (DateTimeParseException ignore) {
+                return DEFAULT_RETRY_AFTER_MILLIS;
+            }
+        }
+    }
+
+    static long parseReset(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            long reset = Long.parseLong(value.trim());
+            if (reset > 1_000_000_000L) {
+                // Epoch seconds
+                return Math.max(0, TimeUnit.SECONDS.toMillis(reset) - System.currentTimeMillis());
+            }
+            // Seconds until reset
+            return TimeUnit.SECONDS.toMillis(reset);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces the concurrent identical idempotent calls into one in-flight call.
+ * <p>
+ * The callers which arrive while the call is in flight share its decoded result, so the result must be
+ * treated as read-only. The finished call is never reused, and {@link #invalidate(String)} detaches the
+ * in-flight calls so the calls after a write don't join the calls started before it.
+ * Each caller can cancel its future, the shared call is cancelled when all the callers cancelled.
+ */
+public class PulumiSingleFlight {
+
+    private final ConcurrentMap<String, Flight<?>> flights = new ConcurrentHashMap<>();
+
+    private static final class Flight<T> {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        volatile CompletableFuture<T> source;
+
+        // Guarded by this
+        int subscribers;
+        boolean abandoned;
+
+        synchronized boolean subscribe() {
+            if (abandoned || result.isDone()) {
+                return false;
+            }
+            subscribers++;
+            return true;
+        }
+
+        /**
+         * @return true if the last subscriber cancelled
+         */
+        synchronized boolean unsubscribe() {
+            if (--subscribers == 0 && !result.isDone()) {
+                abandoned = true;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized boolean isAbandoned() {
+            return abandoned;
+        }
+
+        void cancelSource() {
+            CompletableFuture<T> s = source;
+            if (s != null) {
+                s.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Start the call, or join the in-flight call which has the same key.
+     *
+     * @param key    identifies the call, it must include the credential
+     * @param call   starts the call
+     * @param joined called when the caller joined the in-flight call
+     * @param <T>
+     * @return the future of the result for the caller
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> execute(String key, Supplier<CompletableFuture<T>> call, Runnable joined) {
+        while (true) {
+            Flight<T> flight = new Flight<>();
+            Flight<T> existing = (Flight<T>) flights.putIfAbsent(key, flight);
+            if (existing != null) {
+                if (existing.subscribe()) {
+                    joined.run();
+                    return subscribe(key, existing);
+                }
+                // Finishing, start a new call
+                flights.remove(key, existing);
+                continue;
+            }
+
+            flight.subscribe();
+            CompletableFuture<T> subscription = subscribe(key, flight);
+
+            CompletableFuture<T> source;
+            try {
+                source = call.get();
+            } catch (RuntimeException e) {
+                source = new CompletableFuture<>();
+                source.completeExceptionally(e);
+            }
+            flight.source = source;
+            source.whenComplete((r, e) -> {
+                flights.remove(key, flight);
+                if (e != null) {
+                    flight.result.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                } else {
+                    flight.result.complete(r);
+                }
+            });
+            if (flight.isAbandoned()) {
+                // All the callers cancelled while starting the call
+                source.cancel(true);
+            }
+            return subscription;
+        }
+    }
+
+    private <T> CompletableFuture<T> subscribe(String key, Flight<T> flight) {
+        CompletableFuture<T> subscription = new CompletableFuture<>();
+        flight.result.whenComplete((r, e) -> {
+            if (e != null) {
+                subscription.completeExceptionally(e);
+            } else {
+                subscription.complete(r);
+            }
+        });
+        subscription.whenComplete((r, e) -> {
+            if (subscription.isCancelled() && flight.unsubscribe()) {
+                flights.remove(key, flight);
+                flight.cancelSource();
+                flight.result.cancel(true);
+            }
+        });
+        return subscription;
+    }
+
+    /**
+     * Detach the in-flight calls whose key starts with the prefix. The following calls don't join them.
+     *
+     * @param prefix
+     */
+    public void invalidate(String prefix) {
+        flights.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    int getInFlight() {
+        return flights.size();
+    }
+}
@@ -0,0 +1,693 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import jp.openstandia.connector.pulumi.PulumiClient.PulumiMemberRepresentation;
+import jp.openstandia.connector.pulumi.PulumiClient.PulumiTeamMemberRepresentation;
+import jp.openstandia.connector.pulumi.PulumiClient.PulumiTeamRepresentation;
+import jp.openstandia.connector.pulumi.PulumiClient.PulumiTeamWithMembersRepresentation;
+import jp.openstandia.connector.pulumi.PulumiClient.PulumiUserRepresentation;
+
+import java.util.*;
+
+/**
+ * Point-in-time view of the members, pending invitations and teams of the organization.
+ * <p>
+ * A published snapshot is never modified. {@link PulumiSnapshotCache} applies loads and mutations
+ * to a copy of it and publishes the copy with the next version, so a reader holding a snapshot
+ * always sees a consistent state. The representation objects and the member lists stored in it
+ * are shared between versions, so they are replaced instead of modified.
+ * <p>
+ * The loaded members and team members are kept in the compact read-only stores which are shared
+ * between versions. The mutations after the load are kept in the change maps on top of them, and the
+ * members of a team are changed by the sets of the added and removed users instead of copying its member list.
+ * Copying a snapshot copies only the change maps, and they are compacted into the stores when they exceed
+ * {@link #MAX_CHANGES}, so a mutation costs a bounded copy and the compaction is amortized over the mutations.
+ */
+public class PulumiSnapshot {
+
+    static final PulumiSnapshot EMPTY = new PulumiSnapshot(0);
+
+    // Changes which are kept on top of the stores before the compaction
+    static final int MAX_CHANGES = 256;
+
+    final long version;
+
+    // Members including pending invitations in the API listing order. Null if not loaded.
+    private PulumiMemberStore memberStore;
+    // Members changed after the load keyed by normalized email. Null value means removed from memberStore.
+    private LinkedHashMap<String, PulumiMemberRepresentation> changedMembers;
+    // Changed members keyed by normalized username (githubLogin)
+    private HashMap<String, PulumiMemberRepresentation> changedMembersByUsername;
+    private long membersLoadedAt;
+
+    // Teams keyed by name (case-sensitive), read-only and shared between versions.
+    // It contains all teams only when teamsLoadedAt is set, otherwise only the fetched teams.
+    private Map<String, PulumiTeamRepresentation> teams;
+    // Teams changed after that. Null value means removed from teams.
+    private LinkedHashMap<String, PulumiTeamRepresentation> changedTeams;
+    private long teamsLoadedAt;
+
+    // Members of the teams loaded at once or compacted. Null if not loaded.
+    private PulumiTeamMembershipStore membershipStore;
+    // Loaded time of the teams in membershipStore by the team index
+    private long[] membershipLoadedAt;
+    // Loaded time of all teams, 0 if membershipStore doesn't contain all teams
+    private long allTeamMembersLoadedAt;
+    // Members of the teams loaded one by one or changed after the load, keyed by team name.
+    // Null value means removed from membershipStore.
+    private HashMap<String, TeamMembers> changedTeamMembers;
+
+    private PulumiSnapshot(long version) {
+        this.version = version;
+        this.changedMembers = new LinkedHashMap<>();
+        this.changedMembersByUsername = new HashMap<>();
+        this.teams = Collections.emptyMap();
+        this.changedTeams = new LinkedHashMap<>();
+        this.changedTeamMembers = new HashMap<>();
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Email and username are case-insensitive in Pulumi.
+     *
+     * @param value
+     * @return
+     */
+    static String normalize(String value) {
+        if (value == null) {
+            return null;
+        }
+        return value.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Copy the snapshot to apply the mutations. The stores are shared, the change maps are copied shallowly.
+     *
+     * @return the copy with the next version
+     */
+    PulumiSnapshot copy() {
+        PulumiSnapshot next = new PulumiSnapshot(version + 1);
+        next.memberStore = memberStore;
+        next.changedMembers = new LinkedHashMap<>(changedMembers);
+        next.changedMembersByUsername = new HashMap<>(changedMembersByUsername);
+        next.membersLoadedAt = membersLoadedAt;
+        next.teams = teams;
+        next.changedTeams = new LinkedHashMap<>(changedTeams);
+        next.teamsLoadedAt = teamsLoadedAt;
+        next.membershipStore = membershipStore;
+        next.membershipLoadedAt = membershipLoadedAt;
+        next.allTeamMembersLoadedAt = allTeamMembersLoadedAt;
+        next.changedTeamMembers = new HashMap<>(changedTeamMembers);
+        return next;
+    }
+
+    /**
+     * Compact the changes into the stores when they exceed {@link #MAX_CHANGES}.
+     * It must be called before the snapshot is published.
+     *
+     * @param direct true to allocate the compacted stores off-heap
+     */
+    void compact(boolean direct) {
+        if (memberStore != null && changedMembers.size() > MAX_CHANGES) {
+            memberStore = PulumiCompactMemberStore.build(new ArrayList<>(getMembers()), direct);
+            changedMembers = new LinkedHashMap<>();
+            changedMembersByUsername = new HashMap<>();
+        }
+
+        if (changedTeams.size() > MAX_CHANGES) {
+            Map<String, PulumiTeamRepresentation> compacted = new LinkedHashMap<>();
+            for (PulumiTeamRepresentation team : getTeams()) {
+                compacted.put(team.name, team);
+            }
+            teams = Collections.unmodifiableMap(compacted);
+            changedTeams = new LinkedHashMap<>();
+        }
+
+        if (changedTeamMembers.size() > MAX_CHANGES
+                || changedTeamMembers.values().stream().anyMatch(m -> m != null && m.getChangeCount() > MAX_CHANGES)) {
+            Map<String, List<PulumiTeamMemberRepresentation>> compacted = new LinkedHashMap<>();
+            Map<String, Long> loadedAt = new HashMap<>();
+            if (membershipStore != null) {
+                for (int team = 0; team < membershipStore.getTeamCount(); team++) {
+                    String teamName = membershipStore.getTeamName(team);
+                    if (!changedTeamMembers.containsKey(teamName)) {
+                        compacted.put(teamName, membershipStore.getMembers(team));
+                        loadedAt.put(teamName, membershipLoadedAt[team]);
+                    }
+                }
+            }
+            for (Map.Entry<String, TeamMembers> entry : changedTeamMembers.entrySet()) {
+                if (entry.getValue() != null) {
+                    compacted.put(entry.getKey(), entry.getValue().getMembers(membershipStore));
+                    loadedAt.put(entry.getKey(), entry.getValue().loadedAt);
+                }
+            }
+
+            membershipStore = new PulumiCompactTeamMembershipStore(compacted, direct);
+            membershipLoadedAt = new long[membershipStore.getTeamCount()];
+            for (int team = 0; team < membershipLoadedAt.length; team++) {
+                membershipLoadedAt[team] = loadedAt.get(membershipStore.getTeamName(team));
+            }
+            changedTeamMembers = new HashMap<>();
+        }
+    }
+
+    /**
+     * @return estimated heap bytes of the loaded stores, excluding the changes
+     */
+    long getEstimatedBytes() {
+        return (memberStore != null ? memberStore.getEstimatedBytes() : 0)
+                + (membershipStore != null ? membershipStore.getEstimatedBytes() : 0);
+    }
+
+    // Freshness
+
+    static boolean isFresh(long loadedAt, long ttlNanos) {
+        return loadedAt != 0 && System.nanoTime() - loadedAt < ttlNanos;
+    }
+
+    boolean hasFreshMembers(long ttlNanos) {
+        return memberStore != null && isFresh(membersLoadedAt, ttlNanos);
+    }
+
+    boolean hasFreshTeams(long ttlNanos) {
+        return isFresh(teamsLoadedAt, ttlNanos);
+    }
+
+    boolean hasFreshTeamMembers(String teamName, long ttlNanos) {
+        if (changedTeamMembers.containsKey(teamName)) {
+            TeamMembers members = changedTeamMembers.get(teamName);
+            return members != null && isFresh(members.loadedAt, ttlNanos);
+        }
+        int team = findStoredTeam(teamName);
+        return team >= 0 && isFresh(membershipLoadedAt[team], ttlNanos);
+    }
+
+    boolean hasFreshAllTeamMembers(long ttlNanos) {
+        return hasFreshTeams(ttlNanos) && isFresh(allTeamMembersLoadedAt, ttlNanos);
+    }
+
+    // Read
+
+    /**
+     * Return the members. The representation objects are created while iterating.
+     *
+     * @return
+     */
+    Collection<PulumiMemberRepresentation> getMembers() {
+        PulumiMemberStore store = memberStore;
+
+        // Overlay the changes onto the stored rows
+        Map<Integer, PulumiMemberRepresentation> replaced = new HashMap<>();
+        List<PulumiMemberRepresentation> added = new ArrayList<>();
+        for (Map.Entry<String, PulumiMemberRepresentation> entry : changedMembers.entrySet()) {
+            int row = store.findByKey(entry.getKey());
+            if (row >= 0) {
+                replaced.put(row, entry.getValue());
+            } else {
+                added.add(entry.getValue());
+            }
+        }
+        int removed = (int) replaced.values().stream().filter(Objects::isNull).count();
+        int size = store.size() - removed + added.size();
+
+        return new AbstractCollection<PulumiMemberRepresentation>() {
+            @Override
+            public Iterator<PulumiMemberRepresentation> iterator() {
+                return new Iterator<PulumiMemberRepresentation>() {
+                    private int row;
+                    private final Iterator<PulumiMemberRepresentation> addedIterator = added.iterator();
+                    private PulumiMemberRepresentation next = advance();
+
+                    private PulumiMemberRepresentation advance() {
+                        while (row < store.size()) {
+                            int current = row++;
+                            if (!replaced.containsKey(current)) {
+                                return store.get(current);
+                            }
+                            PulumiMemberRepresentation member = replaced.get(current);
+                            if (member != null) {
+                                return member;
+                            }
+                        }
+                        return addedIterator.hasNext() ? addedIterator.next() : null;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next != null;
+                    }
+
+                    @Override
+                    public PulumiMemberRepresentation next() {
+                        if (next == null) {
+                            throw new NoSuchElementException();
+                        }
+                        PulumiMemberRepresentation current = next;
+                        next = advance();
+                        return current;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    PulumiMemberRepresentation findMemberByEmail(String email) {
+        String key = normalize(email);
+        if (changedMembers.containsKey(key)) {
+            return changedMembers.get(key);
+        }
+        int row = memberStore.findByKey(key);
+        return row >= 0 ? memberStore.get(row) : null;
+    }
+
+    PulumiMemberRepresentation findMemberByEmailIfLoaded(String email) {
+        if (memberStore == null) {
+            return null;
+        }
+        return findMemberByEmail(email);
+    }
+
+    /**
+     * @param username
+     * @return the member or null if not found or the members aren't loaded
+     */
+    PulumiMemberRepresentation findMemberByUsername(String username) {
+        if (memberStore == null) {
+            return null;
+        }
+        String key = normalize(username);
+        PulumiMemberRepresentation changed = changedMembersByUsername.get(key);
+        if (changed != null) {
+            return changed;
+        }
+        int row = memberStore.findByUsername(key);
+        if (row < 0 || changedMembers.containsKey(memberStore.getKey(row))) {
+            return null;
+        }
+        return memberStore.get(row);
+    }
+
+    Collection<PulumiTeamRepresentation> getTeams() {
+        if (changedTeams.isEmpty()) {
+            return Collections.unmodifiableCollection(teams.values());
+        }
+        // Overlay the changes onto the loaded teams
+        List<PulumiTeamRepresentation> result = new ArrayList<>(teams.size() + changedTeams.size());
+        for (PulumiTeamRepresentation team : teams.values()) {
+            if (!changedTeams.containsKey(team.name)) {
+                result.add(team);
+            } else if (changedTeams.get(team.name) != null) {
+                result.add(changedTeams.get(team.name));
+            }
+        }
+        for (Map.Entry<String, PulumiTeamRepresentation> entry : changedTeams.entrySet()) {
+            if (entry.getValue() != null && !teams.containsKey(entry.getKey())) {
+                result.add(entry.getValue());
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private PulumiTeamRepresentation findTeamOnly(String teamName) {
+        if (changedTeams.containsKey(teamName)) {
+            return changedTeams.get(teamName);
+        }
+        return teams.get(teamName);
+    }
+
+    PulumiTeamWithMembersRepresentation findTeam(String teamName) {
+        List<PulumiTeamMemberRepresentation> members = getTeamMembers(teamName);
+        if (members == null) {
+            return null;
+        }
+        PulumiTeamRepresentation team = findTeamOnly(teamName);
+
+        PulumiTeamWithMembersRepresentation t = new PulumiTeamWithMembersRepresentation();
+        t.name = teamName;
+        if (team != null) {
+            t.kind = team.kind;
+            t.displayName = team.displayName;
+            t.description = team.description;
+        }
+        t.members = members;
+        return t;
+    }
+
+    boolean hasTeamMembers(String teamName) {
+        if (changedTeamMembers.containsKey(teamName)) {
+            return changedTeamMembers.get(teamName) != null;
+        }
+        return findStoredTeam(teamName) >= 0;
+    }
+
+    private List<PulumiTeamMemberRepresentation> getTeamMembers(String teamName) {
+        TeamMembers members = findTeamMembers(teamName);
+        return members != null ? members.getMembers(membershipStore) : null;
+    }
+
+    /**
+     * @param teamName
+     * @return the members of the team, or null if not loaded
+     */
+    private TeamMembers findTeamMembers(String teamName) {
+        if (changedTeamMembers.containsKey(teamName)) {
+            return changedTeamMembers.get(teamName);
+        }
+        int team = findStoredTeam(teamName);
+        return team >= 0 ? TeamMembers.stored(team, membershipLoadedAt[team]) : null;
+    }
+
+    private int findStoredTeam(String teamName) {
+        return membershipStore != null ? membershipStore.findTeam(teamName) : -1;
+    }
+
+    Set<String> getTeamNamesForUser(String username) {
+        String key = normalize(username);
+        Set<String> teamNames = new LinkedHashSet<>();
+        if (membershipStore != null) {
+            for (int team : membershipStore.findTeamsOfUser(key)) {
+                String teamName = membershipStore.getTeamName(team);
+                if (!changedTeamMembers.containsKey(teamName)) {
+                    teamNames.add(teamName);
+                }
+            }
+        }
+        // The changes are bounded by the compaction
+        for (Map.Entry<String, TeamMembers> entry : changedTeamMembers.entrySet()) {
+            if (entry.getValue() != null && entry.getValue().contains(key, membershipStore)) {
+                teamNames.add(entry.getKey());
+            }
+        }
+        return Collections.unmodifiableSet(teamNames);
+    }
+
+    // Load
+
+    void setMembers(PulumiMemberStore loaded, long loadedAt) {
+        memberStore = loaded;
+        changedMembers = new LinkedHashMap<>();
+        changedMembersByUsername = new HashMap<>();
+        membersLoadedAt = loadedAt;
+    }
+
+    void setTeams(List<PulumiTeamRepresentation> loaded, long loadedAt) {
+        Map<String, PulumiTeamRepresentation> map = new LinkedHashMap<>();
+        for (PulumiTeamRepresentation team : loaded) {
+            map.put(team.name, team);
+        }
+        teams = Collections.unmodifiableMap(map);
+        changedTeams = new LinkedHashMap<>();
+        teamsLoadedAt = loadedAt;
+    }
+
+    void setTeamMembers(PulumiTeamWithMembersRepresentation loaded, long loadedAt) {
+        PulumiTeamRepresentation team = new PulumiTeamRepresentation();
+        team.kind = loaded.kind;
+        team.name = loaded.name;
+        team.displayName = loaded.displayName;
+        team.description = loaded.description;
+        putTeam(team);
+
+        setTeamMembers(team.name, loaded.members, loadedAt);
+    }
+
+    void setTeamMembers(String teamName, List<PulumiTeamMemberRepresentation> loaded, long loadedAt) {
+        changedTeamMembers.put(teamName, TeamMembers.loaded(loaded, loadedAt));
+    }
+
+    void setAllTeamMembers(List<PulumiTeamRepresentation> loadedTeams, PulumiTeamMembershipStore loaded, long loadedAt) {
+        setTeams(loadedTeams, loadedAt);
+
+        membershipStore = loaded;
+        membershipLoadedAt = new long[loaded.getTeamCount()];
+        Arrays.fill(membershipLoadedAt, loadedAt);
+        changedTeamMembers = new HashMap<>();
+        allTeamMembersLoadedAt = loadedAt;
+    }
+
+    // Mutation
+    // All mutations must be idempotent because they can be replayed onto a newer load.
+
+    void putMember(PulumiMemberRepresentation member) {
+        if (memberStore == null) {
+            return;
+        }
+        String key = PulumiCompactMemberStore.toKey(member);
+        PulumiMemberRepresentation old = findMemberByEmail(key);
+        changedMembers.put(key, member);
+        if (old != null && old.user.githubLogin != null) {
+            changedMembersByUsername.remove(normalize(old.user.githubLogin));
+        }
+        if (member.user.githubLogin != null) {
+            changedMembersByUsername.put(normalize(member.user.githubLogin), member);
+        }
+    }
+
+    void updateMemberRole(String email, String role) {
+        if (memberStore == null) {
+            return;
+        }
+        PulumiMemberRepresentation old = findMemberByEmail(email);
+        if (old == null) {
+            return;
+        }
+        PulumiMemberRepresentation member = new PulumiMemberRepresentation();
+        member.role = role;
+        member.user = old.user;
+        member.invitationId = old.invitationId;
+        putMember(member);
+    }
+
+    void removeMember(String email) {
+        if (memberStore == null) {
+            return;
+        }
+        String key = normalize(email);
+        PulumiMemberRepresentation old = findMemberByEmail(key);
+        if (memberStore.findByKey(key) >= 0) {
+            changedMembers.put(key, null);
+        } else {
+            changedMembers.remove(key);
+        }
+        if (old != null && old.user.githubLogin != null) {
+            changedMembersByUsername.remove(normalize(old.user.githubLogin));
+            removeUserFromAllTeams(old.user.githubLogin);
+        }
+    }
+
+    void putTeam(PulumiTeamRepresentation team) {
+        changedTeams.put(team.name, team);
+    }
+
+    void updateTeam(String teamName, String displayName, String description) {
+        PulumiTeamRepresentation old = findTeamOnly(teamName);
+        if (old == null) {
+            return;
+        }
+        PulumiTeamRepresentation team = new PulumiTeamRepresentation();
+        team.kind = old.kind;
+        team.name = old.name;
+        team.displayName = displayName != null ? displayName : old.displayName;
+        team.description = description != null ? description : old.description;
+        putTeam(team);
+    }
+
+    void removeTeam(String teamName) {
+        if (teams.containsKey(teamName)) {
+            changedTeams.put(teamName, null);
+        } else {
+            changedTeams.remove(teamName);
+        }
+        if (findStoredTeam(teamName) >= 0) {
+            changedTeamMembers.put(teamName, null);
+        } else {
+            changedTeamMembers.remove(teamName);
+        }
+    }
+
+    void addTeamMember(String teamName, String username) {
+        TeamMembers current = findTeamMembers(teamName);
+        if (current == null) {
+            // Not loaded yet
+            return;
+        }
+        String key = normalize(username);
+        if (current.contains(key, membershipStore)) {
+            return;
+        }
+
+        PulumiTeamMemberRepresentation teamMember = new PulumiTeamMemberRepresentation();
+        teamMember.githubLogin = username;
+        PulumiMemberRepresentation member = findMemberByUsername(key);
+        if (member != null) {
+            teamMember.githubLogin = member.user.githubLogin;
+        }
+
+        changedTeamMembers.put(teamName, current.withAdded(key, teamMember, membershipStore));
+    }
+
+    void removeTeamMember(String teamName, String username) {
+        TeamMembers current = findTeamMembers(teamName);
+        if (current == null) {
+            // Not loaded yet
+            return;
+        }
+        String key = normalize(username);
+        if (current.contains(key, membershipStore)) {
+            changedTeamMembers.put(teamName, current.withRemoved(key, membershipStore));
+        }
+    }
+
+    private void removeUserFromAllTeams(String username) {
+        for (String teamName : getTeamNamesForUser(username)) {
+            removeTeamMember(teamName, username);
+        }
+    }
+
+    static PulumiMemberRepresentation newPendingMember(String email, String role) {
+        // The invitation API doesn't return the invitation id.
+        // This member has neither invitationId nor githubLogin until the next load.
+        PulumiMemberRepresentation member = new PulumiMemberRepresentation();
+        member.role = role;
+        member.user = new PulumiUserRepresentation();
+        member.user.email = email;
+        return member;
+    }
+
+    static boolean isPendingMember(PulumiMemberRepresentation member) {
+        return member.invitationId == null && member.user.githubLogin == null;
+    }
+
+    /**
+     * Members of a team as the changes on top of the loaded members. It's never modified because it's shared
+     * between versions, a change creates another one which copies only the changes.
+     */
+    private static final class TeamMembers {
+        // The team index in the membership store, or -1 if loaded one by one
+        final int storedTeam;
+        // The members loaded one by one, null if storedTeam is used
+        final List<PulumiTeamMemberRepresentation> loaded;
+        // Normalized usernames of loaded
+        final Set<String> loadedKeys;
+        final long loadedAt;
+        // Users added after the load keyed by normalized username
+        final Map<String, PulumiTeamMemberRepresentation> added;
+        // Normalized usernames removed from the loaded members
+        final Set<String> removed;
+
+        private TeamMembers(int storedTeam, List<PulumiTeamMemberRepresentation> loaded, Set<String> loadedKeys, long loadedAt,
+                            Map<String, PulumiTeamMemberRepresentation> added, Set<String> removed) {
+            this.storedTeam = storedTeam;
+            this.loaded = loaded;
+            this.loadedKeys = loadedKeys;
+            this.loadedAt = loadedAt;
+            this.added = added;
+            this.removed = removed;
+        }
+
+        static TeamMembers stored(int team, long loadedAt) {
+            return new TeamMembers(team, null, null, loadedAt, Collections.emptyMap(), Collections.emptySet());
+        }
+
+        static TeamMembers loaded(List<PulumiTeamMemberRepresentation> members, long loadedAt) {
+            Set<String> keys = new HashSet<>();
+            for (PulumiTeamMemberRepresentation m : members) {
+                keys.add(normalize(m.githubLogin));
+            }
+            return new TeamMembers(-1, Collections.unmodifiableList(new ArrayList<>(members)), keys, loadedAt,
+                    Collections.emptyMap(), Collections.emptySet());
+        }
+
+        int getChangeCount() {
+            return added.size() + removed.size();
+        }
+
+        private boolean isLoaded(String key, PulumiTeamMembershipStore store) {
+            if (loaded != null) {
+                return loadedKeys.contains(key);
+            }
+            for (int team : store.findTeamsOfUser(key)) {
+                if (team == storedTeam) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean contains(String key, PulumiTeamMembershipStore store) {
+            if (added.containsKey(key)) {
+                return true;
+            }
+            return !removed.contains(key) && isLoaded(key, store);
+        }
+
+        TeamMembers withAdded(String key, PulumiTeamMemberRepresentation member, PulumiTeamMembershipStore store) {
+            if (removed.contains(key)) {
+                Set<String> nextRemoved = new HashSet<>(removed);
+                nextRemoved.remove(key);
+                return new TeamMembers(storedTeam, loaded, loadedKeys, loadedAt, added, nextRemoved);
+            }
+            if (isLoaded(key, store)) {
+                return this;
+            }
+            Map<String, PulumiTeamMemberRepresentation> nextAdded = new LinkedHashMap<>(added);
+            nextAdded.put(key, member);
+            return new TeamMembers(storedTeam, loaded, loadedKeys, loadedAt, nextAdded, removed);
+        }
+
+        TeamMembers withRemoved(String key, PulumiTeamMembershipStore store) {
+            if (added.containsKey(key)) {
+                Map<String, PulumiTeamMemberRepresentation> nextAdded = new LinkedHashMap<>(added);
+                nextAdded.remove(key);
+                return new TeamMembers(storedTeam, loaded, loadedKeys, loadedAt, nextAdded, removed);
+            }
+            if (!isLoaded(key, store)) {
+                return this;
+            }
+            Set<String> nextRemoved = new HashSet<>(removed);
+            nextRemoved.add(key);
+            return new TeamMembers(storedTeam, loaded, loadedKeys, loadedAt, added, nextRemoved);
+        }
+
+        /**
+         * @return the members, the loaded members first in the loaded order and then the added members
+         */
+        List<PulumiTeamMemberRepresentation> getMembers(PulumiTeamMembershipStore store) {
+            List<PulumiTeamMemberRepresentation> base = loaded != null ? loaded : store.getMembers(storedTeam);
+            if (added.isEmpty() && removed.isEmpty()) {
+                return base;
+            }
+            List<PulumiTeamMemberRepresentation> members = new ArrayList<>(base.size() + added.size());
+            for (PulumiTeamMemberRepresentation m : base) {
+                if (removed.isEmpty() || !removed.contains(normalize(m.githubLogin))) {
+                    members.add(m);
+                }
+            }
+            members.addAll(added.values());
+            return Collections.unmodifiableList(members);
+        }
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import jp.openstandia.connector.pulumi.PulumiClient.PulumiMemberRepresentation;
+import jp.openstandia.connector.pulumi.PulumiClient.PulumiTeamMemberRepresentation;
+import jp.openstandia.connector.pulumi.PulumiClient.PulumiTeamRepresentation;
+import jp.openstandia.connector.pulumi.PulumiClient.PulumiTeamWithMembersRepresentation;
+import org.identityconnectors.common.logging.Log;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Holds the current {@link PulumiSnapshot} and applies the connector's own writes to it (write-through).
+ * <p>
+ * Every load and mutation publishes a new snapshot with the next version. While a load is fetching data
+ * from the API, mutations are also recorded in a journal and replayed onto the loaded data before it's
+ * published, so a write is never lost by a load which started before it.
+ * <p>
+ * The cache is shared by all connector instances in the JVM which access the same organization with the
+ * same credential, so the pooled instances load the snapshot once. It's reference-counted by
+ * {@link #acquire(String, String, int, boolean)} and {@link #release()}, and evicted when the last instance is disposed.
+ * Reading the current snapshot is lock-free. It also owns the {@link PulumiConditionalCache} of the same instances,
+ * which is released with it.
+ */
+public class PulumiSnapshotCache {
+
+    private static final Log LOG = Log.getLog(PulumiSnapshotCache.class);
+
+    // Guarded by REGISTRY
+    private static final Map<String, PulumiSnapshotCache> REGISTRY = new HashMap<>();
+
+    // Upper bound of the decoded payloads kept for the conditional requests
+    static final long MAX_CONDITIONAL_CACHE_BYTES = 32L * 1024 * 1024;
+
+    private final String key;
+    private final long ttlNanos;
+    private final boolean offHeap;
+    private final PulumiConditionalCache conditionalCache = new PulumiConditionalCache(MAX_CONDITIONAL_CACHE_BYTES);
+    // Guarded by REGISTRY
+    private int references;
+
+    private final Object lock = new Object();
+    private volatile PulumiSnapshot current = PulumiSnapshot.EMPTY;
+
+    // Guarded by lock
+    private final List<Consumer<PulumiSnapshot>> journal = new ArrayList<>();
+    private int loading;
+
+    public PulumiSnapshotCache(int ttlInSeconds) {
+        this(null, ttlInSeconds, false);
+    }
+
+    private PulumiSnapshotCache(String key, int ttlInSeconds, boolean offHeap) {
+        this.key = key;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(Math.max(ttlInSeconds, 0));
+        this.offHeap = offHeap;
+    }
+
+    /**
+     * Return the cache shared by the organization and the credential. The caller must call
+     * {@link #release()} when it's disposed. The disabled cache isn't shared.
+     *
+     * @param organizationKey identifies the organization
+     * @param credentialHash  identifies the credential, the instances with another token don't share the cache
+     * @param ttlInSeconds    0 or less disables the cache
+     * @param offHeap         true to store the loaded snapshot outside of the Java heap
+     * @return
+     */
+    public static PulumiSnapshotCache acquire(String organizationKey, String credentialHash, int ttlInSeconds, boolean offHeap) {
+        if (ttlInSeconds <= 0) {
+            return new PulumiSnapshotCache(ttlInSeconds);
+        }
+        // The instances with the different settings don't share the cache
+        String key = organizationKey + "#" + credentialHash + "#" + ttlInSeconds + "#" + offHeap;
+        synchronized (REGISTRY) {
+            PulumiSnapshotCache cache = REGISTRY.computeIfAbsent(key, k -> new PulumiSnapshotCache(k, ttlInSeconds, offHeap));
+            cache.references++;
+            return cache;
+        }
+    }
+
+    /**
+     * Release the cache acquired by {@link #acquire(String, String, int, boolean)}. The cache is cleared and evicted
+     * when no instance uses it.
+     */
+    public void release() {
+        if (key == null) {
+            clear();
+            conditionalCache.clear();
+            return;
+        }
+        synchronized (REGISTRY) {
+            if (--references == 0) {
+                REGISTRY.remove(key);
+                clear();
+                conditionalCache.clear();
+                LOG.ok("Evicted the pulumi snapshot cache");
+            }
+        }
+    }
+
+    static int getSharedCacheCount() {
+        synchronized (REGISTRY) {
+            return REGISTRY.size();
+        }
+    }
+
+    /**
+     * @return the validators and the payloads for the conditional requests of the instances sharing this cache
+     */
+    public PulumiConditionalCache getConditionalCache() {
+        return conditionalCache;
+    }
+
+    public boolean isEnabled() {
+        return ttlNanos > 0;
+    }
+
+    long getTTLNanos() {
+        return ttlNanos;
+    }
+
+    /**
+     * Return the current snapshot. The returned snapshot never changes.
+     *
+     * @return
+     */
+    public PulumiSnapshot get() {
+        return current;
+    }
+
+    public void clear() {
+        synchronized (lock) {
+            current = PulumiSnapshot.EMPTY;
+        }
+    }
+
+    /**
+     * Token of the started load. It's required to publish the loaded data.
+     */
+    class Load {
+        final int journalPosition;
+        final long startedAt;
+        boolean finished;
+
+        Load(int journalPosition) {
+            this.journalPosition = journalPosition;
+            this.startedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * Start loading data from the API. The caller must call {@link #publish(Load, Consumer)} or
+     * {@link #abort(Load)} after fetching.
+     *
+     * @return
+     */
+    Load startLoad() {
+        synchronized (lock) {
+            loading++;
+            return new Load(journal.size());
+        }
+    }
+
+    /**
+     * Publish the loaded data with the mutations which happened while loading.
+     *
+     * @param load
+     * @param loader applies the loaded data to the copied snapshot
+     * @return the published snapshot
+     */
+    PulumiSnapshot publish(Load load, Consumer<PulumiSnapshot> loader) {
+        synchronized (lock) {
+            PulumiSnapshot next = current.copy();
+            loader.accept(next);
+
+            // Replay the mutations which may not be contained in the loaded data
+            List<Consumer<PulumiSnapshot>> missed = journal.subList(load.journalPosition, journal.size());
+            for (Consumer<PulumiSnapshot> mutation : missed) {
+                mutation.accept(next);
+            }
+            if (!missed.isEmpty()) {
+                LOG.ok("Replayed {0} mutations onto the loaded snapshot", missed.size());
+            }
+            next.compact(offHeap);
+
+            current = next;
+            finishLoad(load);
+
+            return next;
+        }
+    }
+
+    void abort(Load load) {
+        synchronized (lock) {
+            finishLoad(load);
+        }
+    }
+
+    private void finishLoad(Load load) {
+        if (load.finished) {
+            return;
+        }
+        load.finished = true;
+        loading--;
+        if (loading == 0) {
+            journal.clear();
+        }
+    }
+
+    /**
+     * Apply the mutation to the current snapshot atomically.
+     * The mutation must be idempotent because it might be replayed onto a newer load.
+     *
+     * @param mutation
+     */
+    void mutate(Consumer<PulumiSnapshot> mutation) {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (lock) {
+            PulumiSnapshot next = current.copy();
+            mutation.accept(next);
+            if (loading > 0) {
+                journal.add(mutation);
+            }
+            // Bound the changes which the next copy copies
+            next.compact(offHeap);
+            current = next;
+        }
+    }
+
+    // Read through
+
+    /**
+     * Return the snapshot which contains fresh members, fetching them if needed.
+     *
+     * @param fetcher
+     * @return
+     */
+    PulumiSnapshot loadMembers(Supplier<List<PulumiMemberRepresentation>> fetcher) {
+        PulumiSnapshot snapshot = current;
+        if (snapshot.hasFreshMembers(ttlNanos)) {
+            return snapshot;
+        }
+
+        Load load = startLoad();
+        try {
+            // Build the store outside of the lock
+            PulumiMemberStore store = PulumiCompactMemberStore.build(fetcher.get(), offHeap);
+            LOG.ok("Loaded {0} pulumi members into the {1} store, {2} bytes",
+                    store.size(), store.isDirect() ? "off-heap" : "heap", store.getEstimatedBytes());
+            return publish(load, s -> s.setMembers(store, load.startedAt));
+        } finally {
+            abort(load);
+        }
+    }
+
+    /**
+     * Return the snapshot which contains fresh teams, fetching them if needed.
+     *
+     * @param fetcher
+     * @return
+     */
+    PulumiSnapshot loadTeams(Supplier<List<PulumiTeamRepresentation>> fetcher) {
+        PulumiSnapshot snapshot = current;
+        if (snapshot.hasFreshTeams(ttlNanos)) {
+            return snapshot;
+        }
+
+        Load load = startLoad();
+        try {
+            List<PulumiTeamRepresentation> teams = fetcher.get();
+            return publish(load, s -> s.setTeams(teams, load.startedAt));
+        } finally {
+            abort(load);
+        }
+    }
+
+    /**
+     * Return the snapshot which contains fresh members of the team, fetching them if needed.
+     *
+     * @param teamName
+     * @param fetcher  returns null if the team doesn't exist
+     * @return
+     */
+    PulumiSnapshot loadTeamMembers(String teamName, Supplier<PulumiTeamWithMembersRepresentation> fetcher) {
+        PulumiSnapshot snapshot = current;
+        if (snapshot.hasFreshTeamMembers(teamName, ttlNanos)) {
+            return snapshot;
+        }
+
+        Load load = startLoad();
+        try {
+            PulumiTeamWithMembersRepresentation team = fetcher.get();
+            if (team == null) {
+                return publish(load, s -> s.removeTeam(teamName));
+            }
+            return publish(load, s -> s.setTeamMembers(team, load.startedAt));
+        } finally {
+            abort(load);
+        }
+    }
+
+    /**
+     * Return the snapshot which contains fresh members of all teams, fetching them if needed.
+     * It's required to resolve the teams of the user by the reverse index.
+     *
+     * @param teamsFetcher
+     * @param teamMembersFetcher returns the members keyed by team name, the deleted teams are omitted
+     * @return
+     */
+    PulumiSnapshot loadAllTeamMembers(Supplier<List<PulumiTeamRepresentation>> teamsFetcher,
+                                      Function<List<PulumiTeamRepresentation>, Map<String, List<PulumiTeamMemberRepresentation>>> teamMembersFetcher) {
+        PulumiSnapshot snapshot = current;
+        if (snapshot.hasFreshAllTeamMembers(ttlNanos)) {
+            return snapshot;
+        }
+
+        Load load = startLoad();
+        try {
+            List<PulumiTeamRepresentation> teams = teamsFetcher.get();
+            PulumiTeamMembershipStore store = new PulumiCompactTeamMembershipStore(teamMembersFetcher.apply(teams), offHeap);
+            LOG.ok("Loaded the members of {0} pulumi teams into the {1} store, {2} bytes",
+                    store.getTeamCount(), store.isDirect() ? "off-heap" : "heap", store.getEstimatedBytes());
+            return publish(load, s -> s.setAllTeamMembers(teams, store, load.startedAt));
+        } finally {
+            abort(load);
+        }
+    }
+
+    // Mutation hooks which are called after the successful write
+
+    public void onUserInvited(String email, String role) {
+        mutate(s -> {
+            if (s.findMemberByEmailIfLoaded(email) == null) {
+                s.putMember(PulumiSnapshot.newPendingMember(email, role));
+            }
+        });
+    }
+
+    public void onUserRoleUpdated(String email, String role) {
+        mutate(s -> s.updateMemberRole(email, role));
+    }
+
+    public void onUserDeleted(String email) {
+        mutate(s -> s.removeMember(email));
+    }
+
+    public void onTeamCreated(PulumiTeamRepresentation team) {
+        long now = System.nanoTime();
+        mutate(s -> {
+            s.putTeam(team);
+            if (!s.hasTeamMembers(team.name)) {
+                s.setTeamMembers(team.name, Collections.emptyList(), now);
+            }
+        });
+    }
+
+    public void onTeamUpdated(String teamName, String newDisplayName, String newDescription) {
+        mutate(s -> s.updateTeam(teamName, newDisplayName, newDescription));
+    }
+
+    public void onTeamDeleted(String teamName) {
+        mutate(s -> s.removeTeam(teamName));
+    }
+
+    public void onTeamMemberAdded(String teamName, String username) {
+        mutate(s -> s.addTeamMember(teamName, username));
+    }
+
+    public void onTeamMemberRemoved(String teamName, String username) {
+        mutate(s -> s.removeTeamMember(teamName, username));
+    }
+}
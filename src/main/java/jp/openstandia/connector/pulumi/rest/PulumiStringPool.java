@@ -0,0 +1,178 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable arena of deduplicated strings. The strings are packed into one UTF-8 buffer and
+ * referenced by int id, so a large snapshot doesn't hold a String object per value.
+ * The buffers are on the heap or off-heap, see {@link PulumiBuffers}.
+ */
+final class PulumiStringPool {
+
+    static final int NULL = -1;
+
+    private final ByteBuffer data;
+    // Start of each string, the last element is the end of the data
+    private final IntBuffer offsets;
+
+    private PulumiStringPool(ByteBuffer data, IntBuffer offsets) {
+        this.data = data;
+        this.offsets = offsets;
+    }
+
+    int size() {
+        return offsets.capacity() - 1;
+    }
+
+    String get(int id) {
+        if (id == NULL) {
+            return null;
+        }
+        byte[] bytes = new byte[length(id)];
+        copy(id, bytes, 0);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int length(int id) {
+        return offsets.get(id + 1) - offsets.get(id);
+    }
+
+    private void copy(int id, byte[] dest, int destOffset) {
+        int start = offsets.get(id);
+        int length = length(id);
+        if (data.hasArray()) {
+            System.arraycopy(data.array(), data.arrayOffset() + start, dest, destOffset, length);
+        } else {
+            ByteBuffer view = data.duplicate();
+            view.position(start);
+            view.get(dest, destOffset, length);
+        }
+    }
+
+    /**
+     * Join two strings, e.g. the shared prefix and the suffix of a URL.
+     */
+    String get(int prefixId, int suffixId) {
+        if (prefixId == NULL) {
+            return get(suffixId);
+        }
+        if (suffixId == NULL) {
+            return get(prefixId);
+        }
+        int prefixLength = length(prefixId);
+        byte[] joined = new byte[prefixLength + length(suffixId)];
+        copy(prefixId, joined, 0);
+        copy(suffixId, joined, prefixLength);
+        return new String(joined, StandardCharsets.UTF_8);
+    }
+
+    boolean equals(int id, byte[] utf8) {
+        if (id == NULL) {
+            return false;
+        }
+        int start = offsets.get(id);
+        int length = offsets.get(id + 1) - start;
+        if (length != utf8.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (data.get(start + i) != utf8[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // FNV-1a
+    int hash(int id) {
+        int h = 0x811c9dc5;
+        for (int i = offsets.get(id), end = offsets.get(id + 1); i < end; i++) {
+            h ^= data.get(i);
+            h *= 0x01000193;
+        }
+        return h;
+    }
+
+    static int hash(byte[] utf8) {
+        int h = 0x811c9dc5;
+        for (byte b : utf8) {
+            h ^= b;
+            h *= 0x01000193;
+        }
+        return h;
+    }
+
+    long getEstimatedBytes() {
+        return data.capacity() + 4L * offsets.capacity();
+    }
+
+    /**
+     * Index of the prefix/suffix split of a URL, the prefix ends with the last "/".
+     */
+    static int splitIndex(String url) {
+        return url.lastIndexOf('/') + 1;
+    }
+
+    static class Builder {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private byte[] data = new byte[1024];
+        private int[] offsets = new int[64];
+        private int size;
+        private int length;
+
+        int add(String value) {
+            if (value == null) {
+                return NULL;
+            }
+            Integer id = ids.get(value);
+            if (id != null) {
+                return id;
+            }
+
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (length + bytes.length > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + bytes.length));
+            }
+            System.arraycopy(bytes, 0, data, length, bytes.length);
+            if (size + 2 > offsets.length) {
+                // Keep a slot for the end of the data
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[size] = length;
+            length += bytes.length;
+
+            ids.put(value, size);
+            return size++;
+        }
+
+        /**
+         * @param direct true to store the strings off-heap
+         * @return
+         */
+        PulumiStringPool build(boolean direct) {
+            offsets[size] = length;
+            return new PulumiStringPool(PulumiBuffers.wrap(data, length, direct),
+                    PulumiBuffers.wrap(offsets, size + 1, direct));
+        }
+    }
+}
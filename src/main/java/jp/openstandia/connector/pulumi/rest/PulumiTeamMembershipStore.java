@@ -0,0 +1,52 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import jp.openstandia.connector.pulumi.PulumiClient.PulumiTeamMemberRepresentation;
+
+import java.util.List;
+
+/**
+ * Read-only storage of the members of all teams loaded into {@link PulumiSnapshot}, with the reverse
+ * index from the user to the teams. The representation objects are created on each access.
+ */
+interface PulumiTeamMembershipStore {
+
+    int getTeamCount();
+
+    String getTeamName(int team);
+
+    /**
+     * @param teamName case-sensitive
+     * @return the team index or -1 if not found
+     */
+    int findTeam(String teamName);
+
+    List<PulumiTeamMemberRepresentation> getMembers(int team);
+
+    /**
+     * @param username normalized username (githubLogin)
+     * @return the team indexes, empty if the user doesn't belong to any team
+     */
+    int[] findTeamsOfUser(String username);
+
+    long getEstimatedBytes();
+
+    /**
+     * @return true if the store is allocated off-heap
+     */
+    boolean isDirect();
+}
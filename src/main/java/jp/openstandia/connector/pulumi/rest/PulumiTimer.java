@@ -0,0 +1,47 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timer shared by all connector instances in the JVM. It wakes up the calls parked by the request scheduler
+ * and the concurrency limiter, and fails them when the deadline passed. The tasks must not block.
+ */
+final class PulumiTimer {
+
+    private static final ScheduledThreadPoolExecutor EXECUTOR = createExecutor();
+
+    private PulumiTimer() {
+    }
+
+    private static ScheduledThreadPoolExecutor createExecutor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "pulumi-connector-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        // Don't keep the cancelled timeouts of the granted calls
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    static ScheduledFuture<?> schedule(Runnable task, long delayNanos) {
+        return EXECUTOR.schedule(task, Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+    }
+}
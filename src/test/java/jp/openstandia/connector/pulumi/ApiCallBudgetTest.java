@@ -0,0 +1,286 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jp.openstandia.connector.pulumi.testutil.AbstractFakeServerTest;
+import jp.openstandia.connector.pulumi.testutil.FakePulumiServer;
+import jp.openstandia.connector.pulumi.testutil.PulumiDataset;
+import jp.openstandia.connector.pulumi.testutil.PulumiDatasetGenerator;
+import org.identityconnectors.framework.common.objects.*;
+import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static jp.openstandia.connector.pulumi.PulumiClient.*;
+import static jp.openstandia.connector.pulumi.PulumiTeamHandler.*;
+import static jp.openstandia.connector.pulumi.PulumiUserHandler.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Upper bounds of the API cost of each connector operation against a synthetic organization.
+ * A change which multiplies the API calls or the transferred bytes fails these tests.
+ * If the cost is reduced intentionally, tighten the bounds.
+ */
+class ApiCallBudgetTest extends AbstractFakeServerTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final int MEMBERS = 60;
+    private static final int INVITES = 5;
+    private static final int TEAMS = 12;
+
+    // Headroom of the bytes for each call (e.g. the request body and the error response)
+    private static final long BYTES_PER_CALL = 512;
+
+    private PulumiDataset dataset;
+    private long usersBytes;
+    private long teamsBytes;
+    private long allTeamsWithMembersBytes;
+
+    @Override
+    protected void setupServer(FakePulumiServer server) {
+        dataset = new PulumiDatasetGenerator(7)
+                .members(MEMBERS)
+                .invites(INVITES)
+                .teams(TEAMS)
+                .maxTeamSize(30)
+                .generate();
+        server.load(dataset);
+
+        usersBytes = json(dataset.toMembersRepresentation()) + json(dataset.toInvitesRepresentation());
+        teamsBytes = json(dataset.toTeamsRepresentation());
+        allTeamsWithMembersBytes = dataset.teams.stream().mapToLong(ApiCallBudgetTest::json).sum();
+    }
+
+    private static long json(Object value) {
+        try {
+            return MAPPER.writeValueAsBytes(value).length;
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long bytes(int calls, long payloads) {
+        return payloads + calls * BYTES_PER_CALL;
+    }
+
+    private PulumiMemberRepresentation member(int i) {
+        return dataset.members.get(i);
+    }
+
+    private PulumiTeamWithMembersRepresentation team(int i) {
+        return dataset.teams.get(i);
+    }
+
+    // User
+
+    @Test
+    void createUser() {
+        Set<Attribute> attrs = new HashSet<>();
+        attrs.add(new Name("budget@example.com"));
+        attrs.add(AttributeBuilder.build(ATTR_ROLE, "member"));
+
+        assertApiCalls(1, bytes(1, 0), () -> connector.create(USER_OBJECT_CLASS, attrs, null));
+    }
+
+    @Test
+    void getUser() {
+        ConnectorObject user = assertApiCalls(2, bytes(2, usersBytes),
+                () -> connector.getObject(USER_OBJECT_CLASS, new Uid(member(0).user.email), null));
+
+        assertNotNull(user);
+    }
+
+    @Test
+    void getUserWithTeams() {
+        OperationOptions options = new OperationOptionsBuilder()
+                .setReturnDefaultAttributes(true)
+                .setAttributesToGet(ATTR_TEAMS)
+                .build();
+
+        // Scan the users, then list the teams and fetch each team to resolve the membership
+        int calls = 2 + 1 + TEAMS;
+        ConnectorObject user = assertApiCalls(calls, bytes(calls, usersBytes + teamsBytes + allTeamsWithMembersBytes),
+                () -> connector.getObject(USER_OBJECT_CLASS, new Uid(member(0).user.email), options));
+
+        assertNotNull(user.getAttributeByName(ATTR_TEAMS));
+    }
+
+    @Test
+    void searchUsers() {
+        List<ConnectorObject> users = assertApiCalls(2, bytes(2, usersBytes),
+                () -> search(USER_OBJECT_CLASS, null, new OperationOptionsBuilder().build()));
+
+        assertEquals(MEMBERS + INVITES, users.size());
+    }
+
+    @Test
+    void searchUsersWithPartialTeams() {
+        OperationOptions options = new OperationOptionsBuilder()
+                .setReturnDefaultAttributes(true)
+                .setAttributesToGet(ATTR_TEAMS)
+                .setAllowPartialAttributeValues(true)
+                .build();
+
+        // The associations are suppressed
+        assertApiCalls(2, bytes(2, usersBytes), () -> search(USER_OBJECT_CLASS, null, options));
+    }
+
+    @Test
+    void searchUsersWithTeams() {
+        OperationOptions options = new OperationOptionsBuilder()
+                .setReturnDefaultAttributes(true)
+                .setAttributesToGet(ATTR_TEAMS)
+                .build();
+
+        // Known N+1: each member resolves the teams by fetching all teams
+        int calls = 2 + MEMBERS * (1 + TEAMS);
+        assertApiCalls(calls, bytes(calls, usersBytes + MEMBERS * (teamsBytes + allTeamsWithMembersBytes)),
+                () -> search(USER_OBJECT_CLASS, null, options));
+    }
+
+    @Test
+    void updateUserRole() {
+        Set<AttributeDelta> modifications = Collections.singleton(AttributeDeltaBuilder.build(ATTR_ROLE, "admin"));
+
+        assertApiCalls(3, bytes(3, usersBytes),
+                () -> connector.updateDelta(USER_OBJECT_CLASS, new Uid(member(1).user.email), modifications, null));
+
+        assertEquals("admin", server.getMember(member(1).user.githubLogin).role);
+    }
+
+    @Test
+    void updateUserTeams() {
+        String user = member(2).user.githubLogin;
+        List<Object> teamsToAdd = new ArrayList<>();
+        for (PulumiTeamWithMembersRepresentation team : dataset.teams) {
+            if (team.members.stream().noneMatch(m -> m.githubLogin.equals(user))) {
+                teamsToAdd.add(team.name);
+            }
+            if (teamsToAdd.size() == 2) {
+                break;
+            }
+        }
+        Set<AttributeDelta> modifications = Collections.singleton(AttributeDeltaBuilder.build(ATTR_TEAMS, teamsToAdd, null));
+
+        // One call per team
+        assertApiCalls(2 + 2, bytes(4, usersBytes),
+                () -> connector.updateDelta(USER_OBJECT_CLASS, new Uid(member(2).user.email), modifications, null));
+    }
+
+    @Test
+    void deleteUser() {
+        assertApiCalls(3, bytes(3, usersBytes),
+                () -> connector.delete(USER_OBJECT_CLASS, new Uid(member(3).user.email), null));
+    }
+
+    // Team
+
+    @Test
+    void createTeam() {
+        Set<Attribute> attrs = new HashSet<>();
+        attrs.add(new Name("budget-team"));
+
+        assertApiCalls(1, bytes(1, 0), () -> connector.create(TEAM_OBJECT_CLASS, attrs, null));
+    }
+
+    @Test
+    void createTeamWithMembers() {
+        Set<Attribute> attrs = new HashSet<>();
+        attrs.add(new Name("budget-team"));
+        attrs.add(AttributeBuilder.build(ATTR_MEMBERS,
+                member(0).user.githubLogin, member(1).user.githubLogin, member(2).user.githubLogin));
+
+        // One call per member
+        assertApiCalls(1 + 3, bytes(4, 0), () -> connector.create(TEAM_OBJECT_CLASS, attrs, null));
+
+        assertEquals(3, server.getTeam("budget-team").members.size());
+    }
+
+    @Test
+    void getTeamWithMembers() {
+        OperationOptions options = new OperationOptionsBuilder().setAttributesToGet(ATTR_MEMBERS).build();
+
+        ConnectorObject team = assertApiCalls(1, bytes(1, json(team(0))),
+                () -> connector.getObject(TEAM_OBJECT_CLASS, new Uid(team(0).name), options));
+
+        assertEquals(team(0).members.size(), team.getAttributeByName(ATTR_MEMBERS).getValue().size());
+    }
+
+    @Test
+    void searchTeams() {
+        List<ConnectorObject> teams = assertApiCalls(1, bytes(1, teamsBytes),
+                () -> search(TEAM_OBJECT_CLASS, null, new OperationOptionsBuilder().build()));
+
+        assertEquals(TEAMS, teams.size());
+    }
+
+    @Test
+    void searchTeamsWithMembers() {
+        OperationOptions options = new OperationOptionsBuilder().setAttributesToGet(ATTR_MEMBERS).build();
+
+        // The listing doesn't include the members, fetch each team
+        int calls = 1 + TEAMS;
+        assertApiCalls(calls, bytes(calls, teamsBytes + allTeamsWithMembersBytes),
+                () -> search(TEAM_OBJECT_CLASS, null, options));
+    }
+
+    @Test
+    void searchTeamByName() {
+        List<ConnectorObject> teams = assertApiCalls(1, bytes(1, json(team(1))),
+                () -> search(TEAM_OBJECT_CLASS, FilterBuilder.equalTo(new Name(team(1).name)), null));
+
+        assertEquals(1, teams.size());
+    }
+
+    @Test
+    void updateTeam() {
+        Set<AttributeDelta> modifications = Collections.singleton(AttributeDeltaBuilder.build(ATTR_DISPLAY_NAME, "Renamed"));
+
+        assertApiCalls(1, bytes(1, 0),
+                () -> connector.updateDelta(TEAM_OBJECT_CLASS, new Uid(team(2).name), modifications, null));
+    }
+
+    @Test
+    void updateTeamMembers() {
+        String existing = team(0).members.get(0).githubLogin;
+        List<Object> toAdd = new ArrayList<>();
+        for (PulumiMemberRepresentation member : dataset.members) {
+            String login = member.user.githubLogin;
+            if (team(0).members.stream().noneMatch(m -> m.githubLogin.equals(login))) {
+                toAdd.add(login);
+            }
+            if (toAdd.size() == 2) {
+                break;
+            }
+        }
+        Set<AttributeDelta> modifications = Collections.singleton(
+                AttributeDeltaBuilder.build(ATTR_MEMBERS, toAdd, Collections.singletonList(existing)));
+
+        // One call per member, no PATCH of the team itself
+        assertApiCalls(3, bytes(3, 0),
+                () -> connector.updateDelta(TEAM_OBJECT_CLASS, new Uid(team(0).name), modifications, null));
+    }
+
+    @Test
+    void deleteTeam() {
+        assertApiCalls(1, bytes(1, 0),
+                () -> connector.delete(TEAM_OBJECT_CLASS, new Uid(team(3).name), null));
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi;
+
+import jp.openstandia.connector.pulumi.testutil.InMemoryPulumiClient;
+import jp.openstandia.connector.pulumi.testutil.InMemoryPulumiConnector;
+import jp.openstandia.connector.pulumi.testutil.PulumiDataset;
+import jp.openstandia.connector.pulumi.testutil.PulumiDatasetGenerator;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.api.APIConfiguration;
+import org.identityconnectors.framework.api.ConnectorFacade;
+import org.identityconnectors.framework.api.ConnectorFacadeFactory;
+import org.identityconnectors.framework.common.objects.*;
+import org.identityconnectors.test.common.TestHelpers;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static jp.openstandia.connector.pulumi.PulumiClient.*;
+import static jp.openstandia.connector.pulumi.PulumiTeamHandler.ATTR_MEMBERS;
+import static jp.openstandia.connector.pulumi.PulumiTeamHandler.TEAM_OBJECT_CLASS;
+import static jp.openstandia.connector.pulumi.PulumiUserHandler.ATTR_TEAMS;
+import static jp.openstandia.connector.pulumi.PulumiUserHandler.USER_OBJECT_CLASS;
+import static org.junit.jupiter.api.Assertions.*;
+
+class LargeOrganizationTest {
+
+    private static final String ORGANIZATION = "large-org";
+
+    private PulumiDataset dataset;
+    private ConnectorFacade connector;
+
+    @BeforeEach
+    void before() {
+        dataset = new PulumiDatasetGenerator(42).members(5000).invites(200).teams(200).maxTeamSize(2000).generate();
+        InMemoryPulumiClient.register(ORGANIZATION, new InMemoryPulumiClient(dataset));
+
+        PulumiConfiguration conf = new PulumiConfiguration();
+        conf.setOrganization(ORGANIZATION);
+        conf.setAccessToken(new GuardedString("dummy".toCharArray()));
+
+        APIConfiguration impl = TestHelpers.createTestConfiguration(InMemoryPulumiConnector.class, conf);
+        impl.getResultsHandlerConfiguration().setEnableAttributesToGetSearchResultsHandler(false);
+        impl.getResultsHandlerConfiguration().setEnableNormalizingResultsHandler(false);
+        impl.getResultsHandlerConfiguration().setEnableFilteredResultsHandler(false);
+        connector = ConnectorFacadeFactory.getInstance().newInstance(impl);
+    }
+
+    @AfterEach
+    void after() {
+        ConnectorFacadeFactory.getInstance().dispose();
+        InMemoryPulumiClient.unregister(ORGANIZATION);
+    }
+
+    @Test
+    void deterministic() {
+        PulumiDataset other = new PulumiDatasetGenerator(42).members(5000).invites(200).teams(200).maxTeamSize(2000).generate();
+
+        assertEquals(emails(dataset), emails(other));
+        assertEquals(dataset.getLargestTeam().members.stream().map(m -> m.githubLogin).collect(Collectors.toList()),
+                other.getLargestTeam().members.stream().map(m -> m.githubLogin).collect(Collectors.toList()));
+    }
+
+    @Test
+    void skewedTeamSizes() {
+        List<Integer> sizes = dataset.teams.stream().map(t -> t.members.size()).sorted().collect(Collectors.toList());
+
+        assertEquals(2000, sizes.get(sizes.size() - 1));
+        // Most teams are small
+        assertTrue(sizes.get(sizes.size() / 2) < 50, "median: " + sizes.get(sizes.size() / 2));
+        assertTrue(dataset.members.stream().anyMatch(m -> !m.user.email.equals(m.user.email.toLowerCase(Locale.ROOT))));
+        assertEquals(5000, dataset.members.stream().map(m -> m.user.email.toLowerCase(Locale.ROOT)).distinct().count());
+    }
+
+    @Test
+    void searchAllUsers() {
+        List<ConnectorObject> users = new ArrayList<>();
+        connector.search(USER_OBJECT_CLASS, null, users::add, new OperationOptionsBuilder().build());
+
+        assertEquals(5200, users.size());
+    }
+
+    @Test
+    void pipelinedSearch() {
+        PulumiConfiguration conf = new PulumiConfiguration();
+        conf.setOrganization(ORGANIZATION);
+        conf.setAccessToken(new GuardedString("dummy".toCharArray()));
+        conf.setPipelinedSearchQueueSize(64);
+        APIConfiguration impl = TestHelpers.createTestConfiguration(InMemoryPulumiConnector.class, conf);
+        ConnectorFacade pipelined = ConnectorFacadeFactory.getInstance().newInstance(impl);
+
+        List<ConnectorObject> expected = new ArrayList<>();
+        connector.search(USER_OBJECT_CLASS, null, expected::add, new OperationOptionsBuilder().build());
+        List<ConnectorObject> users = new ArrayList<>();
+        pipelined.search(USER_OBJECT_CLASS, null, users::add, new OperationOptionsBuilder().build());
+
+        assertEquals(expected.stream().map(ConnectorObject::getUid).collect(Collectors.toList()),
+                users.stream().map(ConnectorObject::getUid).collect(Collectors.toList()));
+
+        // Stop in the middle
+        List<ConnectorObject> teams = new ArrayList<>();
+        pipelined.search(TEAM_OBJECT_CLASS, null, t -> teams.add(t) && teams.size() < 10, new OperationOptionsBuilder().build());
+
+        assertEquals(10, teams.size());
+    }
+
+    @Test
+    void getUserWithTeamsByCaseVariantEmail() {
+        PulumiMemberRepresentation member = dataset.members.stream()
+                .filter(m -> !m.user.email.equals(m.user.email.toLowerCase(Locale.ROOT)))
+                .findFirst().get();
+        Set<Object> expected = dataset.teams.stream()
+                .filter(t -> t.members.stream().anyMatch(m -> m.githubLogin.equals(member.user.githubLogin)))
+                .map(t -> t.name)
+                .collect(Collectors.toSet());
+
+        OperationOptions options = new OperationOptionsBuilder()
+                .setReturnDefaultAttributes(true)
+                .setAttributesToGet(ATTR_TEAMS)
+                .build();
+        ConnectorObject user = connector.getObject(USER_OBJECT_CLASS,
+                new Uid(member.user.email.toLowerCase(Locale.ROOT)), options);
+
+        assertNotNull(user);
+        assertEquals(expected, new HashSet<>(user.getAttributeByName(ATTR_TEAMS).getValue()));
+    }
+
+    @Test
+    void getLargestTeamWithMembers() {
+        PulumiTeamWithMembersRepresentation team = dataset.getLargestTeam();
+
+        OperationOptions options = new OperationOptionsBuilder().setAttributesToGet(ATTR_MEMBERS).build();
+        ConnectorObject found = connector.getObject(TEAM_OBJECT_CLASS, new Uid(team.name), options);
+
+        assertNotNull(found);
+        assertEquals(team.members.size(), found.getAttributeByName(ATTR_MEMBERS).getValue().size());
+    }
+
+    private static List<String> emails(PulumiDataset dataset) {
+        return dataset.members.stream().map(m -> m.user.email).collect(Collectors.toList());
+    }
+}
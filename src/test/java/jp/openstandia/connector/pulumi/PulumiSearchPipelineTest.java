@@ -0,0 +1,203 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi;
+
+import jp.openstandia.connector.pulumi.rest.PulumiDeadline;
+import jp.openstandia.connector.pulumi.rest.PulumiRequestPriority;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ConnectorObjectBuilder;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PulumiSearchPipelineTest {
+
+    private static ConnectorObject object(int i) {
+        return new ConnectorObjectBuilder()
+                .setObjectClass(ObjectClass.ACCOUNT)
+                .setUid("u" + i)
+                .setName("u" + i)
+                .build();
+    }
+
+    @Test
+    void handleAllInOrder() {
+        List<String> handled = new ArrayList<>();
+
+        new PulumiSearchPipeline(4).run(sink -> {
+            for (int i = 0; i < 100; i++) {
+                if (!sink.handle(object(i))) {
+                    return;
+                }
+            }
+        }, o -> handled.add(o.getUid().getUidValue()));
+
+        assertEquals(100, handled.size());
+        assertEquals("u0", handled.get(0));
+        assertEquals("u99", handled.get(99));
+    }
+
+    @Test
+    void producerIsThrottledByQueue() {
+        AtomicInteger produced = new AtomicInteger();
+        AtomicInteger maxAhead = new AtomicInteger();
+        AtomicInteger handled = new AtomicInteger();
+
+        new PulumiSearchPipeline(2).run(sink -> {
+            for (int i = 0; i < 20; i++) {
+                produced.incrementAndGet();
+                if (!sink.handle(object(i))) {
+                    return;
+                }
+            }
+        }, o -> {
+            maxAhead.accumulateAndGet(produced.get() - handled.get(), Math::max);
+            sleep(5);
+            handled.incrementAndGet();
+            return true;
+        });
+
+        assertEquals(20, handled.get());
+        // The queue, the object being put and the object being handled
+        assertTrue(maxAhead.get() <= 4, "ahead: " + maxAhead.get());
+    }
+
+    @Test
+    void stopByHandler() throws InterruptedException {
+        CountDownLatch producerDone = new CountDownLatch(1);
+        AtomicInteger produced = new AtomicInteger();
+        AtomicInteger handled = new AtomicInteger();
+
+        new PulumiSearchPipeline(4).run(sink -> {
+            try {
+                for (int i = 0; i < 10000; i++) {
+                    produced.incrementAndGet();
+                    if (!sink.handle(object(i))) {
+                        return;
+                    }
+                }
+            } finally {
+                producerDone.countDown();
+            }
+        }, o -> handled.incrementAndGet() < 10);
+
+        assertEquals(10, handled.get());
+        assertEquals(0, producerDone.getCount());
+        assertTrue(produced.get() < 10000, "produced: " + produced.get());
+    }
+
+    @Test
+    void handlerExceptionCancelsProducer() throws InterruptedException {
+        CountDownLatch producerDone = new CountDownLatch(1);
+        AtomicReference<Boolean> interrupted = new AtomicReference<>();
+
+        InvalidAttributeValueException e = assertThrows(InvalidAttributeValueException.class, () ->
+                new PulumiSearchPipeline(4).run(sink -> {
+                    try {
+                        sink.handle(object(0));
+                        // Blocked in the API call
+                        Thread.sleep(10000);
+                    } catch (InterruptedException ie) {
+                        interrupted.set(true);
+                    } finally {
+                        producerDone.countDown();
+                    }
+                }, o -> {
+                    throw new InvalidAttributeValueException("broken");
+                }));
+
+        assertEquals("broken", e.getMessage());
+        assertEquals(0, producerDone.getCount());
+        assertTrue(interrupted.get());
+    }
+
+    @Test
+    void waitProducerUntilDeadline() {
+        CountDownLatch release = new CountDownLatch(1);
+
+        PulumiDeadline previous = PulumiDeadline.set(PulumiDeadline.after(300));
+        long start = System.nanoTime();
+        try {
+            new PulumiSearchPipeline(4).run(sink -> {
+                sink.handle(object(0));
+                // Ignores the interruption
+                while (true) {
+                    try {
+                        if (release.await(10, TimeUnit.SECONDS)) {
+                            return;
+                        }
+                    } catch (InterruptedException ignore) {
+                    }
+                }
+            }, o -> false);
+        } finally {
+            PulumiDeadline.set(previous);
+            release.countDown();
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(elapsedMillis >= 200, "elapsed: " + elapsedMillis);
+        assertTrue(elapsedMillis < 5000, "elapsed: " + elapsedMillis);
+    }
+
+    @Test
+    void producerExceptionAfterObjects() {
+        ConnectorIOException failure = new ConnectorIOException("Failed to call pulumi get users API");
+        List<String> handled = new ArrayList<>();
+
+        ConnectorIOException e = assertThrows(ConnectorIOException.class, () ->
+                new PulumiSearchPipeline(4).run(sink -> {
+                    sink.handle(object(0));
+                    sink.handle(object(1));
+                    throw failure;
+                }, o -> handled.add(o.getUid().getUidValue())));
+
+        assertSame(failure, e);
+        assertEquals(2, handled.size());
+    }
+
+    @Test
+    void propagatePriority() {
+        AtomicReference<PulumiRequestPriority> priority = new AtomicReference<>();
+
+        PulumiRequestPriority previous = PulumiRequestPriority.set(PulumiRequestPriority.BULK);
+        try {
+            new PulumiSearchPipeline(4).run(sink -> priority.set(PulumiRequestPriority.current()), o -> true);
+        } finally {
+            PulumiRequestPriority.set(previous);
+        }
+
+        assertEquals(PulumiRequestPriority.BULK, priority.get());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
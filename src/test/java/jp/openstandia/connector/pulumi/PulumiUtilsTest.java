@@ -15,12 +15,12 @@
  */
 package jp.openstandia.connector.pulumi;
 
+import org.identityconnectors.common.security.GuardedString;
 import org.identityconnectors.framework.common.objects.OperationOptions;
 import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
 import org.junit.jupiter.api.Test;
 
-import static org.junit.jupiter.api.Assertions.assertFalse;
-import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.*;
 
 class PulumiUtilsTest {
 
@@ -35,4 +35,14 @@ class PulumiUtilsTest {
         OperationOptions trueOption = new OperationOptionsBuilder().setAllowPartialAttributeValues(true).build();
         assertTrue(PulumiUtils.shouldAllowPartialAttributeValues(trueOption));
     }
-}
\ No newline at end of file
+
+    @Test
+    void credentialHash() {
+        String hash = PulumiUtils.toCredentialHash(new GuardedString("token".toCharArray()));
+
+        assertEquals(64, hash.length());
+        assertEquals(hash, PulumiUtils.toCredentialHash(new GuardedString("token".toCharArray())));
+        assertNotEquals(hash, PulumiUtils.toCredentialHash(new GuardedString("other".toCharArray())));
+        assertEquals("", PulumiUtils.toCredentialHash(null));
+    }
+}
@@ -16,6 +16,7 @@
 package jp.openstandia.connector.pulumi;
 
 import jp.openstandia.connector.pulumi.testutil.AbstractTest;
+import org.identityconnectors.framework.common.objects.AttributeInfo;
 import org.identityconnectors.framework.common.objects.ObjectClassInfo;
 import org.identityconnectors.framework.common.objects.Schema;
 import org.junit.jupiter.api.Test;
@@ -38,5 +39,10 @@ class SchemaTest extends AbstractTest {
 
         assertTrue(user.isPresent());
         assertTrue(team.isPresent());
+
+        Optional<AttributeInfo> members = team.get().getAttributeInfo().stream().filter(a -> a.is("members")).findFirst();
+        assertTrue(members.isPresent());
+        assertTrue(members.get().isMultiValued());
+        assertFalse(members.get().isReturnedByDefault());
     }
 }
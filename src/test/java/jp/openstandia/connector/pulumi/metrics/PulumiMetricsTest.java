@@ -0,0 +1,149 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PulumiMetricsTest {
+
+    @Test
+    void percentiles() {
+        PulumiLatencyHistogram histogram = new PulumiLatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.recordNanos(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(50.5, histogram.getMeanMillis(), 0.01);
+        assertEquals(50, histogram.getPercentileMillis(50), 50 * 0.07);
+        assertEquals(99, histogram.getPercentileMillis(99), 99 * 0.07);
+        assertEquals(100, histogram.getMaxMillis(), 0.01);
+    }
+
+    @Test
+    void bucketIndex() {
+        for (long value = 0; value < 1_000_000; value += 7) {
+            int index = PulumiLatencyHistogram.indexOf(value);
+            assertTrue(value <= PulumiLatencyHistogram.highestValueOf(index), "value: " + value);
+            if (index > 0) {
+                assertTrue(value > PulumiLatencyHistogram.highestValueOf(index - 1), "value: " + value);
+            }
+        }
+    }
+
+    @Test
+    void trace() throws Exception {
+        PulumiOperationTrace trace = PulumiOperationTrace.start("__ACCOUNT__", "search", false);
+        assertSame(trace, PulumiOperationTrace.current());
+
+        // Count the calls in the other threads which execute a part of the operation
+        Thread worker = new Thread(() -> {
+            PulumiOperationTrace.Scope scope = PulumiOperationTrace.propagate(trace);
+            try {
+                PulumiOperationTrace.current().onHttpCall(0, 200, TimeUnit.MILLISECONDS.toNanos(5), false);
+            } finally {
+                scope.close();
+            }
+            assertNull(PulumiOperationTrace.current());
+        });
+        worker.start();
+        worker.join();
+        trace.onHttpCall(0, 100, TimeUnit.MILLISECONDS.toNanos(5), true);
+        trace.end();
+
+        assertNull(PulumiOperationTrace.current());
+        assertEquals(2, trace.getHttpCalls());
+        assertEquals(1, trace.getHttpFailures());
+        assertEquals(300, trace.getBytesReceived());
+        assertFalse(trace.isSuccess());
+        assertTrue(trace.toSummary().startsWith("__ACCOUNT__ search failed"));
+    }
+
+    @Test
+    void accounting() throws Exception {
+        PulumiOperationTrace trace = PulumiOperationTrace.start("__ACCOUNT__", "search", true);
+
+        Thread worker = new Thread(() -> {
+            PulumiOperationTrace.Scope scope = PulumiOperationTrace.propagate(trace);
+            try {
+                allocate();
+            } finally {
+                scope.close();
+            }
+        });
+        worker.start();
+        worker.join();
+        allocate();
+        trace.end();
+
+        assertTrue(trace.isAccounting());
+        assertTrue(trace.getAllocatedBytes() >= 1024 * 1024, "allocated: " + trace.getAllocatedBytes());
+        assertTrue(trace.toSummary().contains("allocatedBytes="));
+    }
+
+    private static volatile byte[] sink;
+
+    private static void allocate() {
+        for (int i = 0; i < 16; i++) {
+            sink = new byte[64 * 1024];
+        }
+    }
+
+    @Test
+    void registerMXBean() throws Exception {
+        PulumiMetrics metrics = PulumiMetrics.acquire("metrics-test");
+        PulumiMetrics shared = PulumiMetrics.acquire("metrics-test");
+        assertSame(metrics, shared);
+
+        metrics.recordRequest("GET /api/user", 200, 0, 100, TimeUnit.MILLISECONDS.toNanos(10));
+        metrics.recordRequest("GET /api/user", 0, 0, 0, TimeUnit.MILLISECONDS.toNanos(20));
+        PulumiOperationTrace trace = PulumiOperationTrace.start("__ACCOUNT__", "create", false);
+        trace.onHttpCall(10, 100, TimeUnit.MILLISECONDS.toNanos(10), false);
+        trace.markSuccess();
+        trace.end();
+        metrics.recordOperation(trace);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("jp.openstandia.connector.pulumi:type=PulumiConnector,name=\"metrics-test\"");
+        try {
+            CompositeData[] endpoints = (CompositeData[]) server.getAttribute(name, "Endpoints");
+            assertEquals(1, endpoints.length);
+            assertEquals(2L, endpoints[0].get("requests"));
+            assertEquals(1L, endpoints[0].get("failures"));
+            assertEquals(100L, endpoints[0].get("bytesReceived"));
+
+            CompositeData[] operations = (CompositeData[]) server.getAttribute(name, "Operations");
+            assertEquals(1, operations.length);
+            assertEquals("create", operations[0].get("operation"));
+            assertEquals(1L, operations[0].get("httpCalls"));
+
+            metrics.release();
+            assertTrue(server.isRegistered(name));
+
+        } finally {
+            shared.release();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import jp.openstandia.connector.pulumi.PulumiConnector;
+import jp.openstandia.connector.pulumi.testutil.AbstractFakeServerTest;
+import jp.openstandia.connector.pulumi.testutil.FakePulumiServer;
+import jp.openstandia.connector.pulumi.testutil.FaultInjectingPulumiConnector;
+import jp.openstandia.connector.pulumi.testutil.FaultInjectionInterceptor;
+import jp.openstandia.connector.pulumi.testutil.FaultInjectionInterceptor.Latency;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static jp.openstandia.connector.pulumi.PulumiConnector.OP_OPERATION_TIMEOUT;
+import static jp.openstandia.connector.pulumi.PulumiTeamHandler.ATTR_MEMBERS;
+import static jp.openstandia.connector.pulumi.PulumiTeamHandler.TEAM_OBJECT_CLASS;
+import static jp.openstandia.connector.pulumi.PulumiUserHandler.USER_OBJECT_CLASS;
+import static org.junit.jupiter.api.Assertions.*;
+
+class FaultInjectionTest extends AbstractFakeServerTest {
+
+    private FaultInjectionInterceptor interceptor;
+
+    @Override
+    protected Class<? extends PulumiConnector> getConnectorClass() {
+        return FaultInjectingPulumiConnector.class;
+    }
+
+    @Override
+    protected void setupServer(FakePulumiServer server) {
+        server.populate(5, 2, 3, 2);
+        interceptor = new FaultInjectionInterceptor(0);
+        FaultInjectionInterceptor.register(server.getOrganization(), interceptor);
+    }
+
+    @AfterEach
+    void unregister() {
+        FaultInjectionInterceptor.unregister(server.getOrganization());
+    }
+
+    @Test
+    void latency() {
+        connector.test();
+        interceptor.onAll().latency(Latency.fixed(100));
+
+        long start = System.nanoTime();
+        search(TEAM_OBJECT_CLASS, null, null);
+
+        assertTrue(System.nanoTime() - start >= 100_000_000L);
+        assertEquals(0, interceptor.getInjectedFaults());
+    }
+
+    @Test
+    void throttleIsRetried() {
+        connector.test();
+        server.resetRequestCounts();
+        interceptor.on(PulumiEndpoint.LIST_TEAMS).throttle(1.0, 0);
+
+        assertThrows(ConnectorIOException.class, () -> search(TEAM_OBJECT_CLASS, null, null));
+
+        // The first call and the retries, none of them reached the server
+        assertEquals(3, interceptor.getInjectedFaults());
+        assertEquals(0, server.getRequestCount(PulumiEndpoint.LIST_TEAMS));
+    }
+
+    @Test
+    void connectionResetOnlyOnMatchedEndpoint() {
+        connector.test();
+        interceptor.on("GET /api/orgs/.+/teams/.+").connectionResets(1.0);
+
+        // Listing the teams isn't matched
+        assertEquals(3, search(TEAM_OBJECT_CLASS, null, null).size());
+        assertEquals(0, interceptor.getInjectedFaults());
+
+        assertThrows(ConnectorIOException.class, () -> search(TEAM_OBJECT_CLASS, null,
+                new OperationOptionsBuilder().setAttributesToGet(ATTR_MEMBERS).build()));
+        assertTrue(interceptor.getInjectedFaults() > 0);
+    }
+
+    @Test
+    void serverErrorBurstOpensCircuit() {
+        connector.test();
+        interceptor.on(PulumiEndpoint.LIST_INVITES).serverErrorBursts(1.0, 5);
+
+        for (int i = 0; i < 5; i++) {
+            assertThrows(ConnectorIOException.class, () -> search(USER_OBJECT_CLASS, null, null));
+        }
+        assertEquals(5, interceptor.getInjectedFaults());
+
+        // Fail fast without calling the API
+        interceptor.clear();
+        interceptor.resetCounts();
+        ConnectorIOException e = assertThrows(ConnectorIOException.class, () -> search(USER_OBJECT_CLASS, null, null));
+        assertTrue(e.getMessage().contains("circuit breaker"), e.getMessage());
+        assertEquals(0, interceptor.getCalls());
+    }
+
+    @Test
+    void deadlineBoundsSlowCalls() {
+        connector.test();
+        interceptor.on("GET /api/orgs/.+/teams/.+").latency(Latency.fixed(2000));
+
+        long start = System.nanoTime();
+        OperationTimeoutException e = assertThrows(OperationTimeoutException.class, () -> search(TEAM_OBJECT_CLASS, null,
+                new OperationOptionsBuilder()
+                        .setAttributesToGet(ATTR_MEMBERS)
+                        .setOption(OP_OPERATION_TIMEOUT, 300)
+                        .build()));
+
+        assertTrue(e.getMessage().contains("300ms"), e.getMessage());
+        assertTrue(System.nanoTime() - start < 1_500_000_000L);
+    }
+
+    @Test
+    void deadlineCancelsInFlightCalls() {
+        connector.test();
+        interceptor.on("GET /api/orgs/.+/teams/.+").latency(Latency.fixed(200));
+        server.resetRequestCounts();
+
+        assertThrows(OperationTimeoutException.class, () -> search(TEAM_OBJECT_CLASS, null,
+                new OperationOptionsBuilder()
+                        .setAttributesToGet(ATTR_MEMBERS)
+                        .setOption(OP_OPERATION_TIMEOUT, 100)
+                        .build()));
+
+        // Wait for the cancelled calls
+        sleep(500);
+        assertTrue(server.getRequestCount(PulumiEndpoint.GET_TEAM) < 3);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
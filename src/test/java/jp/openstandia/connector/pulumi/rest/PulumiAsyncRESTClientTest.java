@@ -0,0 +1,146 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import jp.openstandia.connector.pulumi.PulumiClient.PulumiMemberRepresentation;
+import jp.openstandia.connector.pulumi.PulumiClient.PulumiTeamRepresentation;
+import jp.openstandia.connector.pulumi.testutil.AbstractFakeServerTest;
+import jp.openstandia.connector.pulumi.testutil.FakePulumiServer;
+import jp.openstandia.connector.pulumi.testutil.FaultInjectionInterceptor;
+import jp.openstandia.connector.pulumi.testutil.FaultInjectionInterceptor.Latency;
+import okhttp3.OkHttpClient;
+import org.identityconnectors.framework.common.exceptions.UnknownUidException;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PulumiAsyncRESTClientTest extends AbstractFakeServerTest {
+
+    private FaultInjectionInterceptor interceptor;
+    private PulumiAsyncRESTClient client;
+
+    @Override
+    protected void setupServer(FakePulumiServer server) {
+        server.populate(5, 2, 3, 2);
+    }
+
+    @BeforeEach
+    void createClient() {
+        interceptor = new FaultInjectionInterceptor(0);
+        OkHttpClient httpClient = new OkHttpClient.Builder()
+                .addInterceptor(chain -> chain.proceed(chain.request().newBuilder()
+                        .header("Authorization", "token dummy")
+                        .build()))
+                .addInterceptor(interceptor)
+                .build();
+        client = new PulumiAsyncRESTClient("test", newConfiguration(), httpClient, null);
+    }
+
+    @Test
+    void concurrentCalls() throws Exception {
+        CompletableFuture<List<PulumiMemberRepresentation>> invites = client.getInvitations();
+        CompletableFuture<List<PulumiMemberRepresentation>> members = client.getMembers();
+        CompletableFuture<List<PulumiTeamRepresentation>> teams = client.getTeams();
+
+        assertEquals(2, invites.get(10, TimeUnit.SECONDS).size());
+        assertEquals(5, members.get(10, TimeUnit.SECONDS).size());
+        assertEquals(3, teams.get(10, TimeUnit.SECONDS).size());
+    }
+
+    @Test
+    void failedWithConnIdException() throws Exception {
+        assertNull(client.getTeam("missing").get(10, TimeUnit.SECONDS));
+
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> client.deleteTeam(new Uid("missing")).get(10, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof UnknownUidException, e.getCause().toString());
+    }
+
+    @Test
+    void cancelPropagatesToHttpCall() throws Exception {
+        interceptor.on(PulumiEndpoint.LIST_TEAMS).latency(Latency.fixed(300));
+
+        CompletableFuture<List<PulumiTeamRepresentation>> teams = client.getTeams();
+        assertTrue(teams.cancel(true));
+
+        // The call is cancelled before reaching the server
+        Thread.sleep(500);
+        assertEquals(0, server.getRequestCount(PulumiEndpoint.LIST_TEAMS));
+
+        // The cancelled call doesn't leak the concurrency limit
+        assertEquals(0, client.getLimiter().getInFlight());
+        assertNotNull(client.getTeam("team0").get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void returnsWithoutWaitingForLimit() throws Exception {
+        PulumiConcurrencyLimiter limiter = client.getLimiter();
+        int limit = limiter.getLimit();
+        for (int i = 0; i < limit; i++) {
+            limiter.acquire();
+        }
+
+        CompletableFuture<List<PulumiTeamRepresentation>> teams;
+        CompletableFuture<?> cancelled;
+        try {
+            // Parked by the saturated limiter, the caller isn't blocked
+            long start = System.nanoTime();
+            teams = client.getTeams();
+            cancelled = client.getTeam("team0");
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+            assertTrue(elapsedMillis < 100, "elapsed: " + elapsedMillis);
+            assertFalse(teams.isDone());
+            assertEquals(2, limiter.getQueueDepth());
+            assertTrue(cancelled.cancel(true));
+            assertEquals(0, server.getRequestCount(PulumiEndpoint.LIST_TEAMS));
+        } finally {
+            for (int i = 0; i < limit; i++) {
+                limiter.cancel();
+            }
+        }
+
+        // Started by the release
+        assertEquals(3, teams.get(10, TimeUnit.SECONDS).size());
+        assertEquals(0, server.getRequestCount(PulumiEndpoint.GET_TEAM));
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void identicalGetsShareOneRequest() throws Exception {
+        interceptor.on(PulumiEndpoint.LIST_TEAMS).latency(Latency.fixed(200));
+
+        CompletableFuture<List<PulumiTeamRepresentation>> first = client.getTeams();
+        CompletableFuture<List<PulumiTeamRepresentation>> second = client.getTeams();
+        CompletableFuture<List<PulumiTeamRepresentation>> third = client.getTeams();
+
+        assertEquals(3, first.get(10, TimeUnit.SECONDS).size());
+        assertSame(first.get(), second.get(10, TimeUnit.SECONDS));
+        assertSame(first.get(), third.get(10, TimeUnit.SECONDS));
+        assertEquals(1, server.getRequestCount(PulumiEndpoint.LIST_TEAMS));
+
+        // Not cached after completion
+        client.getTeams().get(10, TimeUnit.SECONDS);
+        assertEquals(2, server.getRequestCount(PulumiEndpoint.LIST_TEAMS));
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PulumiCircuitBreakerTest {
+
+    @Test
+    void openAndFailFast() {
+        PulumiCircuitBreaker breaker = new PulumiCircuitBreaker("test", 3, 60);
+        AtomicInteger probes = new AtomicInteger();
+
+        breaker.onFailure(PulumiEndpoint.LIST_TEAMS);
+        breaker.onFailure(PulumiEndpoint.LIST_TEAMS);
+        breaker.onSuccess(PulumiEndpoint.LIST_TEAMS);
+        breaker.onFailure(PulumiEndpoint.LIST_TEAMS);
+        breaker.onFailure(PulumiEndpoint.LIST_TEAMS);
+        assertEquals(PulumiCircuitBreaker.State.CLOSED, breaker.getState());
+
+        breaker.onFailure(PulumiEndpoint.LIST_TEAMS);
+        assertEquals(PulumiCircuitBreaker.State.OPEN, breaker.getState());
+
+        assertOpen(breaker.beforeCall(() -> CompletableFuture.completedFuture(probes.incrementAndGet() > 0)));
+        assertEquals(0, probes.get());
+    }
+
+    @Test
+    void halfOpenProbe() {
+        PulumiCircuitBreaker breaker = new PulumiCircuitBreaker("test", 1, 0);
+
+        breaker.onFailure(PulumiEndpoint.LIST_TEAMS);
+        assertEquals(PulumiCircuitBreaker.State.OPEN, breaker.getState());
+
+        // Probe fails, keep open
+        assertOpen(breaker.beforeCall(() -> CompletableFuture.completedFuture(false)));
+        assertEquals(PulumiCircuitBreaker.State.OPEN, breaker.getState());
+
+        // Probe succeeds, close
+        assertNull(breaker.beforeCall(() -> CompletableFuture.completedFuture(true)).join());
+        assertEquals(PulumiCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void probeWithoutWaiting() throws Exception {
+        PulumiCircuitBreaker breaker = new PulumiCircuitBreaker("test", 1, 0);
+        breaker.onFailure(PulumiEndpoint.LIST_TEAMS);
+
+        // The probe is still in flight, the call returns without waiting for it
+        CompletableFuture<Boolean> probe = new CompletableFuture<>();
+        CompletableFuture<Void> probing = breaker.beforeCall(() -> probe);
+        assertFalse(probing.isDone());
+        assertEquals(PulumiCircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        // Other calls fail fast while probing
+        assertOpen(breaker.beforeCall(() -> CompletableFuture.completedFuture(true)));
+
+        probe.complete(true);
+        assertNull(probing.get(1, TimeUnit.SECONDS));
+        assertEquals(PulumiCircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void successOfOtherEndpointDoesNotReset() {
+        PulumiCircuitBreaker breaker = new PulumiCircuitBreaker("test", 3, 60);
+
+        // Partial outage, the members are listed concurrently with the failing invites
+        for (int i = 0; i < 3; i++) {
+            breaker.onSuccess(PulumiEndpoint.LIST_MEMBERS);
+            breaker.onFailure(PulumiEndpoint.LIST_INVITES);
+        }
+
+        assertEquals(PulumiCircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(3, breaker.getConsecutiveFailures(PulumiEndpoint.LIST_INVITES));
+    }
+
+    @Test
+    void availableAfterOpenDuration() throws InterruptedException {
+        PulumiCircuitBreaker breaker = new PulumiCircuitBreaker("test", 1, 0);
+        assertTrue(breaker.isAvailable());
+
+        breaker.onFailure(PulumiEndpoint.LIST_TEAMS);
+        assertEquals(PulumiCircuitBreaker.State.OPEN, breaker.getState());
+        // The open duration elapsed, it can be probed
+        assertTrue(breaker.isAvailable());
+
+        PulumiCircuitBreaker waiting = new PulumiCircuitBreaker("test", 1, 60);
+        waiting.onFailure(PulumiEndpoint.LIST_TEAMS);
+        assertFalse(waiting.isAvailable());
+    }
+
+    @Test
+    void sharedByOrganization() {
+        PulumiCircuitBreaker breaker = PulumiCircuitBreaker.forOrganization("shared-test", 5, 30);
+
+        // The disabled instance doesn't disable the shared one
+        assertSame(breaker, PulumiCircuitBreaker.forOrganization("shared-test", 0, 30));
+        assertSame(breaker, PulumiCircuitBreaker.forOrganization("shared-test", 2, 10));
+
+        // The lowest threshold is applied
+        breaker.onFailure(PulumiEndpoint.LIST_TEAMS);
+        breaker.onFailure(PulumiEndpoint.LIST_TEAMS);
+        assertEquals(PulumiCircuitBreaker.State.OPEN, breaker.getState());
+        // The longest open duration is applied
+        assertFalse(breaker.isAvailable());
+
+        breaker.unregister(2, 10);
+        breaker.unregister(5, 30);
+        // Disabled by the remaining instance
+        assertEquals(PulumiCircuitBreaker.State.CLOSED, breaker.getState());
+
+        // Kept when all instances are unregistered
+        breaker.unregister(0, 30);
+        assertSame(breaker, PulumiCircuitBreaker.forOrganization("shared-test", 5, 30));
+        breaker.unregister(5, 30);
+    }
+
+    private static void assertOpen(CompletableFuture<Void> permitted) {
+        ExecutionException e = assertThrows(ExecutionException.class, () -> permitted.get(1, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof ConnectorIOException);
+    }
+}
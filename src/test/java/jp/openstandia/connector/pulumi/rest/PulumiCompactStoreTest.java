@@ -0,0 +1,118 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jp.openstandia.connector.pulumi.PulumiClient.*;
+import jp.openstandia.connector.pulumi.testutil.PulumiDataset;
+import jp.openstandia.connector.pulumi.testutil.PulumiDatasetGenerator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PulumiCompactStoreTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final PulumiDataset dataset = new PulumiDatasetGenerator(42)
+            .members(2000)
+            .invites(50)
+            .teams(100)
+            .maxTeamSize(500)
+            .caseVariantRatio(0.3)
+            .generate();
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void members(boolean direct) throws Exception {
+        List<PulumiMemberRepresentation> members = new ArrayList<>(dataset.members);
+        PulumiCompactMemberStore store = PulumiCompactMemberStore.build(members, direct);
+
+        assertEquals(direct, store.isDirect());
+        assertEquals(members.size(), store.size());
+        for (int row = 0; row < members.size(); row++) {
+            PulumiMemberRepresentation expected = members.get(row);
+            assertEquals(MAPPER.writeValueAsString(expected), MAPPER.writeValueAsString(store.get(row)));
+
+            // Case-insensitive lookup by the normalized keys
+            assertEquals(row, store.findByKey(PulumiSnapshot.normalize(expected.user.email)));
+            assertEquals(row, store.findByUsername(PulumiSnapshot.normalize(expected.user.githubLogin)));
+        }
+        assertEquals(-1, store.findByKey("unknown@example.com"));
+        assertEquals(-1, store.findByUsername("unknown"));
+    }
+
+    @Test
+    void duplicatedMembers() {
+        PulumiMemberRepresentation first = dataset.members.get(0);
+        PulumiMemberRepresentation updated = new PulumiMemberRepresentation();
+        updated.role = "admin";
+        updated.user = first.user;
+
+        PulumiCompactMemberStore store = PulumiCompactMemberStore.build(
+                Arrays.asList(first, dataset.members.get(1), updated), false);
+
+        assertEquals(2, store.size());
+        assertEquals("admin", store.get(0).role);
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    void teamMembership(boolean direct) throws Exception {
+        Map<String, List<PulumiTeamMemberRepresentation>> teamMembers = new LinkedHashMap<>();
+        Map<String, Set<String>> expectedTeams = new HashMap<>();
+        for (PulumiTeamWithMembersRepresentation team : dataset.teams) {
+            teamMembers.put(team.name, team.members);
+            for (PulumiTeamMemberRepresentation member : team.members) {
+                expectedTeams.computeIfAbsent(PulumiSnapshot.normalize(member.githubLogin), k -> new HashSet<>()).add(team.name);
+            }
+        }
+
+        PulumiCompactTeamMembershipStore store = new PulumiCompactTeamMembershipStore(teamMembers, direct);
+
+        assertEquals(direct, store.isDirect());
+
+        assertEquals(dataset.teams.size(), store.getTeamCount());
+        for (PulumiTeamWithMembersRepresentation team : dataset.teams) {
+            int index = store.findTeam(team.name);
+            assertEquals(team.name, store.getTeamName(index));
+            assertEquals(MAPPER.writeValueAsString(team.members), MAPPER.writeValueAsString(store.getMembers(index)));
+        }
+        for (Map.Entry<String, Set<String>> entry : expectedTeams.entrySet()) {
+            Set<String> actual = new HashSet<>();
+            for (int team : store.findTeamsOfUser(entry.getKey())) {
+                actual.add(store.getTeamName(team));
+            }
+            assertEquals(entry.getValue(), actual);
+        }
+        assertEquals(0, store.findTeamsOfUser("unknown").length);
+        assertEquals(-1, store.findTeam("unknown"));
+    }
+
+    @Test
+    void smallerThanRepresentations() {
+        PulumiCompactMemberStore store = PulumiCompactMemberStore.build(dataset.members, false);
+
+        // 2 objects and 4 Strings of 30 chars at least
+        long representationBytes = dataset.members.size() * (2 * 24 + 4 * (24 + 16 + 30));
+        assertTrue(store.getEstimatedBytes() < representationBytes / 2,
+                String.format("%d >= %d / 2", store.getEstimatedBytes(), representationBytes));
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
+import org.junit.jupiter.api.Test;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PulumiConcurrencyLimiterTest {
+
+    @Test
+    void increaseWhileSaturatedAndFast() throws InterruptedIOException {
+        PulumiConcurrencyLimiter limiter = new PulumiConcurrencyLimiter("test", 8);
+        assertEquals(4, limiter.getLimit());
+
+        for (int round = 0; round < 100; round++) {
+            int limit = limiter.getLimit();
+            for (int i = 0; i < limit; i++) {
+                limiter.acquire();
+            }
+            for (int i = 0; i < limit; i++) {
+                limiter.release(PulumiEndpoint.LIST_TEAMS, 1_000_000, false);
+            }
+        }
+
+        assertEquals(8, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void decreaseWhenDropped() throws InterruptedIOException {
+        PulumiConcurrencyLimiter limiter = new PulumiConcurrencyLimiter("test", 8);
+
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire();
+            limiter.release(PulumiEndpoint.LIST_TEAMS, 1_000_000, true);
+        }
+
+        assertEquals(1, limiter.getLimit());
+        assertEquals(0, limiter.getQueueDepth());
+    }
+
+    @Test
+    void parkWithoutBlocking() throws Exception {
+        PulumiConcurrencyLimiter limiter = new PulumiConcurrencyLimiter("test", 8);
+
+        List<CompletableFuture<Void>> acquired = new ArrayList<>();
+        for (int i = 0; i < limiter.getLimit(); i++) {
+            acquired.add(limiter.acquireAsync(null));
+        }
+        assertTrue(acquired.stream().allMatch(CompletableFuture::isDone));
+
+        // Over the limit, parked without blocking the caller
+        CompletableFuture<Void> parked = limiter.acquireAsync(null);
+        CompletableFuture<Void> cancelled = limiter.acquireAsync(null);
+        assertFalse(parked.isDone());
+        assertEquals(2, limiter.getQueueDepth());
+
+        // The cancelled call gives up waiting, it doesn't take the slot
+        cancelled.cancel(false);
+        assertEquals(1, limiter.getQueueDepth());
+
+        limiter.release(PulumiEndpoint.LIST_TEAMS, 1_000_000, false);
+        assertNull(parked.get(1, TimeUnit.SECONDS));
+        assertEquals(0, limiter.getQueueDepth());
+        assertEquals(4, limiter.getInFlight());
+    }
+
+    @Test
+    void parkedUntilDeadline() throws Exception {
+        PulumiConcurrencyLimiter limiter = new PulumiConcurrencyLimiter("test", 1);
+        limiter.acquire();
+
+        CompletableFuture<Void> parked = limiter.acquireAsync(PulumiDeadline.after(50));
+        ExecutionException e = assertThrows(ExecutionException.class, () -> parked.get(1, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof OperationTimeoutException);
+        assertEquals(0, limiter.getQueueDepth());
+
+        limiter.release(PulumiEndpoint.LIST_TEAMS, 1_000_000, false);
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void noLoadLatencyByEndpoint() throws InterruptedIOException {
+        PulumiConcurrencyLimiter limiter = new PulumiConcurrencyLimiter("test", 8);
+
+        // The cheap endpoint doesn't lower the baseline of the listing
+        limiter.acquire();
+        limiter.release(PulumiEndpoint.SELF, 1_000_000, false);
+
+        for (int round = 0; round < 100; round++) {
+            int limit = limiter.getLimit();
+            for (int i = 0; i < limit; i++) {
+                limiter.acquire();
+            }
+            for (int i = 0; i < limit; i++) {
+                limiter.release(PulumiEndpoint.LIST_MEMBERS, 50_000_000, false);
+            }
+        }
+
+        assertEquals(8, limiter.getLimit());
+    }
+
+    @Test
+    void sharedByOrganization() {
+        PulumiConcurrencyLimiter limiter = PulumiConcurrencyLimiter.forOrganization("shared-test", 2);
+
+        // The lowest max concurrency bounds the limit
+        assertSame(limiter, PulumiConcurrencyLimiter.forOrganization("shared-test", 16));
+        assertEquals(2, limiter.getLimit());
+
+        limiter.unregister(2);
+        assertSame(limiter, PulumiConcurrencyLimiter.forOrganization("shared-test", 1));
+        assertEquals(1, limiter.getLimit());
+
+        // Kept when all instances are unregistered
+        limiter.unregister(1);
+        limiter.unregister(16);
+        assertSame(limiter, PulumiConcurrencyLimiter.forOrganization("shared-test", 16));
+        limiter.unregister(16);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static jp.openstandia.connector.pulumi.PulumiClient.PulumiTeamRepresentation;
+import static org.junit.jupiter.api.Assertions.*;
+
+class PulumiConditionalCacheTest {
+
+    private static Response response(int code, String etag) {
+        Response.Builder builder = new Response.Builder()
+                .request(new Request.Builder().url("https://api.example.com/teams").build())
+                .protocol(Protocol.HTTP_1_1)
+                .code(code)
+                .message("");
+        if (etag != null) {
+            builder.header("ETag", etag);
+        }
+        return builder.build();
+    }
+
+    private static List<PulumiTeamRepresentation> teams(int count) {
+        List<PulumiTeamRepresentation> teams = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            PulumiTeamRepresentation team = new PulumiTeamRepresentation();
+            team.kind = "pulumi";
+            team.name = "team" + i;
+            team.displayName = "Team " + i;
+            teams.add(team);
+        }
+        return teams;
+    }
+
+    @Test
+    void storedOnlyWithValidators() {
+        PulumiConditionalCache cache = new PulumiConditionalCache(1024 * 1024);
+
+        cache.update("a", response(200, null), teams(1));
+        assertNull(cache.get("a"));
+
+        cache.update("a", response(200, "\"v1\""), teams(1));
+        assertNotNull(cache.get("a"));
+        assertTrue(cache.getEstimatedBytes() > 0);
+
+        // The response without the validators removes the entry
+        cache.update("a", response(200, null), teams(1));
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getEstimatedBytes());
+    }
+
+    @Test
+    void boundedByEstimatedBytes() {
+        List<PulumiTeamRepresentation> payload = teams(100);
+        long bytes = PulumiConditionalCache.estimateBytes(payload);
+        assertTrue(bytes > 100 * 100, "estimated: " + bytes);
+
+        PulumiConditionalCache cache = new PulumiConditionalCache(bytes * 2 + 1024);
+        cache.update("a", response(200, "\"a\""), payload);
+        cache.update("b", response(200, "\"b\""), payload);
+        assertEquals(2, cache.size());
+
+        // The least recently used entry is evicted
+        cache.get("a");
+        cache.update("c", response(200, "\"c\""), payload);
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertTrue(cache.getEstimatedBytes() <= bytes * 2 + 1024);
+
+        // Larger than the cache
+        cache.update("d", response(200, "\"d\""), teams(1000));
+        assertNull(cache.get("d"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    void replacedEntryIsNotCountedTwice() {
+        PulumiConditionalCache cache = new PulumiConditionalCache(1024 * 1024);
+
+        cache.update("a", response(200, "\"v1\""), teams(10));
+        long bytes = cache.getEstimatedBytes();
+        cache.update("a", response(200, "\"v2\""), teams(10));
+        assertEquals(bytes, cache.getEstimatedBytes());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getEstimatedBytes());
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import jp.openstandia.connector.pulumi.PulumiConfiguration;
+import jp.openstandia.connector.pulumi.PulumiConnector;
+import jp.openstandia.connector.pulumi.PulumiSchema;
+import jp.openstandia.connector.pulumi.testutil.MockClient;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
+import org.identityconnectors.framework.common.exceptions.UnknownUidException;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static jp.openstandia.connector.pulumi.PulumiConnector.OP_OPERATION_TIMEOUT;
+import static jp.openstandia.connector.pulumi.PulumiTeamHandler.TEAM_OBJECT_CLASS;
+import static org.junit.jupiter.api.Assertions.*;
+
+class PulumiDeadlineTest {
+
+    private PulumiConnector connector;
+    // The deadline bound to the thread while the connector calls the client
+    private PulumiDeadline captured;
+
+    @AfterEach
+    void dispose() {
+        if (connector != null) {
+            connector.dispose();
+        }
+    }
+
+    @Test
+    void noDeadline() {
+        assertNull(PulumiDeadline.after(0));
+        assertNull(PulumiDeadline.after(-1));
+    }
+
+    @Test
+    void remaining() throws InterruptedException {
+        PulumiDeadline deadline = PulumiDeadline.after(10_000);
+
+        assertTrue(deadline.remainingNanos() > TimeUnit.SECONDS.toNanos(9));
+        assertFalse(deadline.isExpired());
+        deadline.check();
+
+        PulumiDeadline expired = PulumiDeadline.after(1);
+        Thread.sleep(5);
+        assertTrue(expired.remainingNanos() <= 0);
+        assertTrue(expired.isExpired());
+        OperationTimeoutException e = assertThrows(OperationTimeoutException.class, expired::check);
+        assertTrue(e.getMessage().contains("1ms"), e.getMessage());
+    }
+
+    @Test
+    void setReturnsPrevious() {
+        PulumiDeadline outer = PulumiDeadline.after(1000);
+        PulumiDeadline inner = PulumiDeadline.after(2000);
+
+        assertNull(PulumiDeadline.set(outer));
+        assertSame(outer, PulumiDeadline.current());
+        assertSame(outer, PulumiDeadline.set(inner));
+        assertSame(inner, PulumiDeadline.current());
+
+        assertSame(inner, PulumiDeadline.set(outer));
+        assertSame(outer, PulumiDeadline.set(null));
+        assertNull(PulumiDeadline.current());
+    }
+
+    @Test
+    void configuredTimeout() {
+        connector = newConnector(5000);
+
+        connector.delete(TEAM_OBJECT_CLASS, new Uid("team"), new OperationOptionsBuilder().build());
+
+        assertNotNull(captured);
+        assertTrue(captured.remainingNanos() > TimeUnit.MILLISECONDS.toNanos(4000));
+        assertTrue(captured.remainingNanos() <= TimeUnit.MILLISECONDS.toNanos(5000));
+        // Restored after the operation
+        assertNull(PulumiDeadline.current());
+    }
+
+    @Test
+    void optionOverridesConfiguredTimeout() {
+        connector = newConnector(5000);
+
+        connector.delete(TEAM_OBJECT_CLASS, new Uid("team"),
+                new OperationOptionsBuilder().setOption(OP_OPERATION_TIMEOUT, 60_000).build());
+
+        assertTrue(captured.remainingNanos() > TimeUnit.MILLISECONDS.toNanos(50_000));
+    }
+
+    @Test
+    void optionDisablesDeadline() {
+        connector = newConnector(5000);
+
+        connector.delete(TEAM_OBJECT_CLASS, new Uid("team"),
+                new OperationOptionsBuilder().setOption(OP_OPERATION_TIMEOUT, 0).build());
+
+        assertNull(captured);
+    }
+
+    @Test
+    void noOptionsUsesConfiguredTimeout() {
+        connector = newConnector(0);
+
+        connector.delete(TEAM_OBJECT_CLASS, new Uid("team"), null);
+
+        assertNull(captured);
+    }
+
+    @Test
+    void invalidOptionType() {
+        connector = newConnector(5000);
+        OperationOptions options = new OperationOptionsBuilder().setOption(OP_OPERATION_TIMEOUT, "1000").build();
+
+        InvalidAttributeValueException e = assertThrows(InvalidAttributeValueException.class,
+                () -> connector.delete(TEAM_OBJECT_CLASS, new Uid("team"), options));
+
+        assertTrue(e.getMessage().contains(OP_OPERATION_TIMEOUT), e.getMessage());
+        assertNull(PulumiDeadline.current());
+    }
+
+    private PulumiConnector newConnector(int operationTimeoutMillis) {
+        PulumiConfiguration conf = new PulumiConfiguration();
+        conf.setOrganization("dummyOrganization");
+        conf.setAccessToken(new GuardedString("dummy".toCharArray()));
+        conf.setOperationTimeoutInMilliseconds(operationTimeoutMillis);
+
+        PulumiConnector connector = new PulumiConnector() {
+            @Override
+            protected void authenticateResource() {
+                client = new MockClient() {
+                    @Override
+                    public void deleteTeam(PulumiSchema schema, Uid uid, OperationOptions options) throws UnknownUidException {
+                        captured = PulumiDeadline.current();
+                    }
+                };
+            }
+        };
+        connector.init(conf);
+        return connector;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import org.identityconnectors.framework.common.exceptions.ConnectionFailedException;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PulumiHealthMonitorTest {
+
+    @Test
+    void lastResult() {
+        PulumiHealthMonitor health = new PulumiHealthMonitor("test", 0, () -> fail("Must not probe"));
+
+        health.check();
+
+        // A transient failure doesn't evict the instance
+        health.onFailure("HTTP 503");
+        health.check();
+        health.onFailure("HTTP 503");
+        health.onSuccess();
+        health.onFailure("HTTP 503");
+        health.onFailure("HTTP 503");
+        health.check();
+
+        health.onFailure("HTTP 503");
+        assertThrows(ConnectorIOException.class, health::check);
+
+        health.onSuccess();
+        health.check();
+
+        health.onRejected();
+        assertThrows(ConnectionFailedException.class, health::check);
+
+        health.onSuccess();
+        health.check();
+    }
+
+    @Test
+    void probeAtMostOncePerInterval() throws InterruptedException {
+        AtomicInteger probes = new AtomicInteger();
+        PulumiHealthMonitor health = new PulumiHealthMonitor("test", 50, probes::incrementAndGet);
+
+        health.check();
+        assertEquals(0, probes.get());
+
+        Thread.sleep(60);
+        health.check();
+        health.check();
+        health.check();
+        assertEquals(1, probes.get());
+
+        // A completed call postpones the next probe
+        Thread.sleep(60);
+        health.onSuccess();
+        health.check();
+        assertEquals(1, probes.get());
+    }
+
+    @Test
+    void probeClearsFailure() throws InterruptedException {
+        AtomicInteger probes = new AtomicInteger();
+        CountDownLatch probed = new CountDownLatch(1);
+        PulumiHealthMonitor[] holder = new PulumiHealthMonitor[1];
+        PulumiHealthMonitor health = new PulumiHealthMonitor("test", 60_000, () -> {
+            probes.incrementAndGet();
+            // The result is reported later like the probe by OkHttp's enqueue
+            Thread probe = new Thread(() -> {
+                sleep(50);
+                holder[0].onSuccess();
+                probed.countDown();
+            });
+            probe.setDaemon(true);
+            probe.start();
+        });
+        holder[0] = health;
+
+        for (int i = 0; i < PulumiHealthMonitor.FAILURE_THRESHOLD; i++) {
+            health.onFailure("HTTP 503");
+        }
+
+        // The probe starts right after the failure without waiting for the interval,
+        // but its result isn't reported yet
+        assertThrows(ConnectorIOException.class, health::check);
+        assertEquals(1, probes.get());
+
+        assertTrue(probed.await(1, TimeUnit.SECONDS));
+        health.check();
+        assertEquals(1, probes.get());
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
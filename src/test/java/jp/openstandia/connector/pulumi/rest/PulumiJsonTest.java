@@ -0,0 +1,86 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static jp.openstandia.connector.pulumi.PulumiClient.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class PulumiJsonTest {
+
+    private static InputStream toStream(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void skipUnknownProperties() throws IOException {
+        String body = "{\"members\":[{\"role\":\"admin\",\"created\":\"2021-01-01T00:00:00Z\"," +
+                "\"knownToPulumi\":true,\"links\":{\"self\":\"x\",\"nested\":[1,2,{\"a\":null}]}," +
+                "\"user\":{\"name\":\"Foo\",\"githubLogin\":\"foo\",\"avatarUrl\":\"https://example.com/foo\"," +
+                "\"email\":\"foo@example.com\",\"identities\":[\"github\"]}}],\"continuationToken\":null}";
+
+        PulumiMembersRepresentation members = PulumiJson.get(false).read(toStream(body), PulumiMembersRepresentation.class);
+
+        assertEquals(1, members.members.size());
+        assertEquals("admin", members.members.get(0).role);
+        assertEquals("foo", members.members.get(0).user.githubLogin);
+        assertEquals("foo@example.com", members.members.get(0).user.email);
+    }
+
+    @Test
+    void skipUnusedTeamMemberProperties() throws IOException {
+        String body = "{\"kind\":\"pulumi\",\"name\":\"team\",\"displayName\":\"Team\",\"description\":\"\"," +
+                "\"members\":[{\"name\":\"Foo\",\"githubLogin\":\"foo\",\"avatarUrl\":\"https://example.com/foo\"," +
+                "\"role\":\"member\"}]}";
+
+        PulumiTeamWithMembersRepresentation team = PulumiJson.get(false).read(toStream(body), PulumiTeamWithMembersRepresentation.class);
+
+        assertEquals("team", team.name);
+        assertEquals(1, team.members.size());
+        assertEquals("foo", team.members.get(0).githubLogin);
+        assertNull(team.members.get(0).name);
+        assertNull(team.members.get(0).avatarUrl);
+    }
+
+    @Test
+    void bytecodeGenerationWithoutModule() throws IOException {
+        // Neither Blackbird nor Afterburner is on the test classpath, it falls back to the reflection
+        PulumiJson json = PulumiJson.get(true);
+
+        assertSame(json, PulumiJson.get(true));
+        assertNotSame(json, PulumiJson.get(false));
+
+        PulumiTeamsRepresentation teams = json.read(toStream("{\"teams\":[{\"kind\":\"pulumi\",\"name\":\"t1\",\"userRole\":\"admin\"}]}"),
+                PulumiTeamsRepresentation.class);
+        assertEquals("t1", teams.teams.get(0).name);
+    }
+
+    @Test
+    void write() throws IOException {
+        PulumiUpdateTeamMemberOperation op = new PulumiUpdateTeamMemberOperation();
+        op.memberAction = "add";
+        op.member = "foo";
+
+        assertEquals("{\"memberAction\":\"add\",\"member\":\"foo\"}",
+                new String(PulumiJson.get(false).write(op), StandardCharsets.UTF_8));
+    }
+}
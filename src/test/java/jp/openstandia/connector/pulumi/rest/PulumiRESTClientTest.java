@@ -0,0 +1,319 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import jp.openstandia.connector.pulumi.PulumiConfiguration;
+import jp.openstandia.connector.pulumi.PulumiConnector;
+import jp.openstandia.connector.pulumi.metrics.PulumiEndpointStats;
+import jp.openstandia.connector.pulumi.metrics.PulumiMetrics;
+import jp.openstandia.connector.pulumi.testutil.AbstractFakeServerTest;
+import jp.openstandia.connector.pulumi.testutil.FakePulumiServer;
+import org.identityconnectors.framework.common.exceptions.ConnectionFailedException;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.common.objects.*;
+import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static jp.openstandia.connector.pulumi.PulumiTeamHandler.ATTR_MEMBERS;
+import static jp.openstandia.connector.pulumi.PulumiTeamHandler.TEAM_OBJECT_CLASS;
+import static jp.openstandia.connector.pulumi.PulumiUserHandler.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class PulumiRESTClientTest extends AbstractFakeServerTest {
+
+    @Override
+    protected void setupServer(FakePulumiServer server) {
+        server.populate(5, 2, 3, 2);
+    }
+
+    @Test
+    void searchUsers() {
+        List<ConnectorObject> users = search(USER_OBJECT_CLASS, null, new OperationOptionsBuilder().build());
+
+        // Invites first, then members
+        assertEquals(7, users.size());
+        assertEquals("invited0@example.com", users.get(0).getUid().getUidValue());
+        assertEquals("user0@example.com", users.get(2).getUid().getUidValue());
+        assertEquals("admin", AttributeUtil.getStringValue(users.get(2).getAttributeByName(ATTR_ROLE)));
+    }
+
+    @Test
+    void getUserWithTeams() {
+        OperationOptions options = new OperationOptionsBuilder()
+                .setReturnDefaultAttributes(true)
+                .setAttributesToGet(ATTR_TEAMS)
+                .build();
+
+        // email is case-insensitive
+        ConnectorObject user = connector.getObject(USER_OBJECT_CLASS, new Uid("USER1@example.com"), options);
+
+        assertNotNull(user);
+        assertEquals("user1@example.com", user.getUid().getUidValue());
+        Set<Object> teams = new HashSet<>(user.getAttributeByName(ATTR_TEAMS).getValue());
+        assertEquals(new HashSet<>(Arrays.asList("team0", "team1")), teams);
+    }
+
+    @Test
+    void inviteAndDeleteUser() {
+        Set<Attribute> attrs = new HashSet<>();
+        attrs.add(new Name("new@example.com"));
+        attrs.add(AttributeBuilder.build(ATTR_ROLE, "member"));
+
+        Uid uid = connector.create(USER_OBJECT_CLASS, attrs, null);
+
+        assertEquals("new@example.com", uid.getUidValue());
+        assertTrue(server.getInvites().stream().anyMatch(i -> i.email.equals("new@example.com")));
+
+        connector.delete(USER_OBJECT_CLASS, uid, null);
+
+        assertFalse(server.getInvites().stream().anyMatch(i -> i.email.equals("new@example.com")));
+    }
+
+    @Test
+    void createTeamWithMembers() {
+        Set<Attribute> attrs = new HashSet<>();
+        attrs.add(new Name("new-team"));
+        attrs.add(AttributeBuilder.build(ATTR_MEMBERS, "user3", "user4"));
+
+        connector.create(TEAM_OBJECT_CLASS, attrs, null);
+
+        assertEquals(2, server.getTeam("new-team").members.size());
+
+        OperationOptions options = new OperationOptionsBuilder().setAttributesToGet(ATTR_MEMBERS).build();
+        List<ConnectorObject> teams = search(TEAM_OBJECT_CLASS,
+                FilterBuilder.equalTo(new Name("new-team")), options);
+
+        assertEquals(1, teams.size());
+        assertEquals(new HashSet<>(Arrays.asList("user3", "user4")),
+                new HashSet<>(teams.get(0).getAttributeByName(ATTR_MEMBERS).getValue()));
+    }
+
+    @Test
+    void updateTeamMembers() {
+        connector.test();
+        server.resetRequestCounts();
+
+        Set<AttributeDelta> modifications = new HashSet<>();
+        modifications.add(AttributeDeltaBuilder.build(ATTR_MEMBERS,
+                Collections.singletonList("user3"), Collections.singletonList("user0")));
+
+        connector.updateDelta(TEAM_OBJECT_CLASS, new Uid("team0"), modifications, null);
+
+        Set<String> members = new HashSet<>();
+        server.getTeam("team0").members.forEach(m -> members.add(m.githubLogin));
+        assertEquals(new HashSet<>(Arrays.asList("user1", "user3")), members);
+        // The API takes one member per call
+        assertEquals(2, server.getRequestCount(PulumiEndpoint.UPDATE_TEAM_MEMBER));
+    }
+
+    @Test
+    void getTeamWithMembers() {
+        OperationOptions options = new OperationOptionsBuilder().setAttributesToGet(ATTR_MEMBERS).build();
+
+        ConnectorObject team = connector.getObject(TEAM_OBJECT_CLASS, new Uid("team1"), options);
+
+        assertNotNull(team);
+        assertEquals(new HashSet<>(Arrays.asList("user1", "user2")),
+                new HashSet<>(team.getAttributeByName(ATTR_MEMBERS).getValue()));
+    }
+
+    @Test
+    void searchTeamsWithMembers() {
+        OperationOptions options = new OperationOptionsBuilder().setAttributesToGet(ATTR_MEMBERS).build();
+
+        List<ConnectorObject> teams = search(TEAM_OBJECT_CLASS, null, options);
+
+        assertEquals(3, teams.size());
+        Map<String, Set<Object>> members = new HashMap<>();
+        teams.forEach(t -> members.put(t.getUid().getUidValue(), new HashSet<>(t.getAttributeByName(ATTR_MEMBERS).getValue())));
+        assertEquals(new HashSet<>(Arrays.asList("user0", "user1")), members.get("team0"));
+        assertEquals(new HashSet<>(Arrays.asList("user1", "user2")), members.get("team1"));
+        assertEquals(new HashSet<>(Arrays.asList("user2", "user3")), members.get("team2"));
+    }
+
+    @Test
+    void retryWhenThrottled() {
+        // Initialize the connector before injecting the fault
+        connector.test();
+        server.resetRequestCounts();
+        server.injectStatus(429);
+
+        List<ConnectorObject> teams = search(TEAM_OBJECT_CLASS, null, new OperationOptionsBuilder().build());
+
+        assertEquals(3, teams.size());
+        assertEquals(2, server.getRequestCount(PulumiEndpoint.LIST_TEAMS));
+    }
+
+    @Test
+    void serverError() {
+        connector.test();
+        server.injectStatus(503);
+
+        assertThrows(ConnectorIOException.class,
+                () -> search(TEAM_OBJECT_CLASS, null, new OperationOptionsBuilder().build()));
+    }
+
+    @Test
+    void cacheSharedByPooledInstances() {
+        PulumiConfiguration conf = newConfiguration();
+        conf.setCacheTTLInSeconds(60);
+
+        PulumiConnector first = new PulumiConnector();
+        PulumiConnector second = new PulumiConnector();
+        first.init(conf);
+        second.init(conf);
+        try {
+            server.resetRequestCounts();
+
+            List<ConnectorObject> users = new ArrayList<>();
+            first.executeQuery(USER_OBJECT_CLASS, null, users::add, new OperationOptionsBuilder().build());
+            second.executeQuery(USER_OBJECT_CLASS, null, users::add, new OperationOptionsBuilder().build());
+
+            assertEquals(14, users.size());
+            assertEquals(1, server.getRequestCount(PulumiEndpoint.LIST_MEMBERS));
+
+        } finally {
+            first.dispose();
+            second.dispose();
+        }
+    }
+
+    @Test
+    void tokenVerificationReused() {
+        connector.test();
+        connector.test();
+        connector.test();
+
+        assertEquals(1, server.getRequestCount(PulumiEndpoint.SELF));
+    }
+
+    @Test
+    void tokenVerificationDiscardedWhenRejected() {
+        connector.test();
+        server.injectStatus(401);
+
+        assertThrows(ConnectionFailedException.class,
+                () -> search(TEAM_OBJECT_CLASS, null, new OperationOptionsBuilder().build()));
+
+        connector.test();
+
+        assertEquals(2, server.getRequestCount(PulumiEndpoint.SELF));
+    }
+
+    @Test
+    void lazyInit() {
+        PulumiConfiguration conf = newConfiguration();
+        conf.setLazyInitEnabled(true);
+
+        PulumiConnector lazy = new PulumiConnector();
+        lazy.init(conf);
+        try {
+            assertEquals(0, server.getRequestCount());
+
+            List<ConnectorObject> teams = new ArrayList<>();
+            lazy.executeQuery(TEAM_OBJECT_CLASS, null, teams::add, new OperationOptionsBuilder().build());
+
+            assertEquals(3, teams.size());
+            assertEquals(0, server.getRequestCount(PulumiEndpoint.SELF));
+
+        } finally {
+            lazy.dispose();
+        }
+    }
+
+    @Test
+    void checkAliveAfterTokenRejected() {
+        PulumiConnector instance = new PulumiConnector();
+        instance.init(newConfiguration());
+        try {
+            instance.checkAlive();
+
+            server.injectStatus(401);
+            assertThrows(ConnectionFailedException.class,
+                    () -> instance.executeQuery(TEAM_OBJECT_CLASS, null, t -> true, new OperationOptionsBuilder().build()));
+
+            int calls = server.getRequestCount();
+            assertThrows(ConnectionFailedException.class, instance::checkAlive);
+            assertEquals(calls, server.getRequestCount());
+
+        } finally {
+            instance.dispose();
+        }
+    }
+
+    @Test
+    void conditionalRequests() {
+        server.setValidatorsEnabled(true);
+        PulumiConfiguration conf = newConfiguration();
+        conf.setConditionalRequestsEnabled(true);
+
+        PulumiConnector instance = new PulumiConnector();
+        instance.setInstanceName("conditional-test");
+        instance.init(conf);
+        try {
+            List<ConnectorObject> teams = new ArrayList<>();
+            instance.executeQuery(TEAM_OBJECT_CLASS, null, teams::add, new OperationOptionsBuilder().build());
+            assertEquals(3, teams.size());
+            long bytes = server.getResponseBytes();
+
+            // Not modified
+            teams.clear();
+            instance.executeQuery(TEAM_OBJECT_CLASS, null, teams::add, new OperationOptionsBuilder().build());
+            assertEquals(3, teams.size());
+            assertEquals(bytes, server.getResponseBytes());
+            assertEquals(2, server.getRequestCount(PulumiEndpoint.LIST_TEAMS));
+
+            // Modified
+            server.addTeam("team-new", "New", "");
+            teams.clear();
+            instance.executeQuery(TEAM_OBJECT_CLASS, null, teams::add, new OperationOptionsBuilder().build());
+            assertEquals(4, teams.size());
+
+            PulumiMetrics metrics = PulumiMetrics.acquire("conditional-test");
+            PulumiEndpointStats stats = metrics.getEndpoints().stream()
+                    .filter(s -> s.getEndpoint().equals(PulumiEndpoint.LIST_TEAMS.getTemplate()))
+                    .findFirst().get();
+            metrics.release();
+            assertEquals(3, stats.getRequests());
+            assertEquals(1, stats.getCacheHits());
+
+        } finally {
+            instance.dispose();
+        }
+    }
+
+    @Test
+    void conditionalRequestsWithoutValidators() {
+        PulumiConfiguration conf = newConfiguration();
+        conf.setConditionalRequestsEnabled(true);
+
+        PulumiConnector instance = new PulumiConnector();
+        instance.init(conf);
+        try {
+            for (int i = 0; i < 2; i++) {
+                List<ConnectorObject> teams = new ArrayList<>();
+                instance.executeQuery(TEAM_OBJECT_CLASS, null, teams::add, new OperationOptionsBuilder().build());
+                assertEquals(3, teams.size());
+            }
+            assertEquals(2, server.getRequestCount(PulumiEndpoint.LIST_TEAMS));
+
+        } finally {
+            instance.dispose();
+        }
+    }
+}
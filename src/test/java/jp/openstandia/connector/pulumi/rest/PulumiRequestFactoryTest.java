@@ -0,0 +1,99 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import jp.openstandia.connector.pulumi.PulumiClient;
+import jp.openstandia.connector.pulumi.PulumiConfiguration;
+import jp.openstandia.connector.pulumi.metrics.PulumiOperationTrace;
+import okhttp3.Request;
+import okio.Buffer;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PulumiRequestFactoryTest {
+
+    private PulumiRequestFactory newFactory() {
+        PulumiConfiguration configuration = new PulumiConfiguration();
+        configuration.setBaseURL("https://api.example.com/");
+        configuration.setOrganization("my-org");
+        return new PulumiRequestFactory(configuration);
+    }
+
+    @Test
+    void urls() {
+        PulumiRequestFactory requests = newFactory();
+
+        assertEquals("https://api.example.com/api/user", requests.selfUrl().toString());
+        assertEquals("https://api.example.com/api/console/orgs/my-org/invites", requests.invitesUrl().toString());
+        assertEquals("https://api.example.com/api/orgs/my-org/members?type=frontend", requests.membersUrl().toString());
+        assertEquals("https://api.example.com/api/orgs/my-org/teams", requests.teamsUrl().toString());
+        assertEquals("https://api.example.com/api/orgs/my-org/teams/pulumi", requests.createTeamUrl().toString());
+    }
+
+    @Test
+    void pathSegmentsAreEncoded() {
+        PulumiRequestFactory requests = newFactory();
+
+        assertEquals("https://api.example.com/api/orgs/my-org/teams/a%20b%2Fc%3Fd",
+                requests.teamUrl("a b/c?d").toString());
+        assertEquals("https://api.example.com/api/orgs/my-org/members/user%23name",
+                requests.memberUrl("user#name").toString());
+        assertEquals("https://api.example.com/api/console/orgs/my-org/invites/..%2F",
+                requests.inviteUrl("../").toString());
+
+        // The query of the members list is not inherited by a member
+        assertNull(requests.memberUrl("user").query());
+    }
+
+    @Test
+    void tags() {
+        PulumiRequestFactory requests = newFactory();
+
+        Request request = requests.get(PulumiEndpoint.LIST_TEAMS, requests.teamsUrl());
+        assertEquals("GET", request.method());
+        assertEquals(PulumiEndpoint.LIST_TEAMS, request.tag(PulumiEndpoint.class));
+        assertNull(request.tag(PulumiOperationTrace.class));
+
+        PulumiOperationTrace trace = PulumiOperationTrace.start("__TEAM__", "DELETE", false);
+        try {
+            request = requests.delete(PulumiEndpoint.DELETE_TEAM, requests.teamUrl("team"));
+        } finally {
+            trace.end();
+        }
+        assertEquals("DELETE", request.method());
+        assertEquals(PulumiEndpoint.DELETE_TEAM, request.tag(PulumiEndpoint.class));
+        assertSame(trace, request.tag(PulumiOperationTrace.class));
+    }
+
+    @Test
+    void jsonBody() throws IOException {
+        PulumiRequestFactory requests = newFactory();
+
+        PulumiClient.PulumiUpdateTeamMemberOperation body = new PulumiClient.PulumiUpdateTeamMemberOperation();
+        body.memberAction = "add";
+        body.member = "user";
+        Request request = requests.patch(PulumiEndpoint.UPDATE_TEAM_MEMBER, requests.teamUrl("team"), body);
+
+        assertEquals("PATCH", request.method());
+        assertEquals(PulumiRequestFactory.JSON, request.body().contentType());
+        Buffer buffer = new Buffer();
+        request.body().writeTo(buffer);
+        assertEquals("{\"memberAction\":\"add\",\"member\":\"user\"}", buffer.readUtf8());
+    }
+}
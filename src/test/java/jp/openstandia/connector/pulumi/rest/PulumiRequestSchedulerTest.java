@@ -0,0 +1,136 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PulumiRequestSchedulerTest {
+
+    @Test
+    void reserveForInteractive() throws InterruptedIOException {
+        PulumiRequestScheduler scheduler = new PulumiRequestScheduler("test", 10);
+
+        // Bulk calls can use the budget except for the reserved tokens
+        long start = System.nanoTime();
+        for (int i = 0; i < 8; i++) {
+            scheduler.acquire(PulumiRequestPriority.BULK);
+        }
+        // Interactive calls can still use the reserved tokens without waiting
+        scheduler.acquire(PulumiRequestPriority.INTERACTIVE);
+        scheduler.acquire(PulumiRequestPriority.INTERACTIVE);
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        assertTrue(elapsedMillis < 100, "elapsed: " + elapsedMillis);
+    }
+
+    @Test
+    void bulkWithSmallRateLimit() throws InterruptedIOException {
+        // The bucket holds only 1 token, the bulk call can't wait for the reserve
+        PulumiRequestScheduler scheduler = new PulumiRequestScheduler("test", 1);
+
+        long start = System.nanoTime();
+        scheduler.acquire(PulumiRequestPriority.BULK);
+        scheduler.acquire(PulumiRequestPriority.BULK);
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        // The second call waits for the refill of 1 token
+        assertTrue(elapsedMillis < 2000, "elapsed: " + elapsedMillis);
+    }
+
+    @Test
+    void bulkWithSmallRemaining() throws InterruptedIOException {
+        PulumiRequestScheduler scheduler = new PulumiRequestScheduler("test", 10);
+
+        // The API allows only 1 more request
+        scheduler.onRateLimitHeaders(1, 0);
+
+        long start = System.nanoTime();
+        scheduler.acquire(PulumiRequestPriority.BULK);
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        assertTrue(elapsedMillis < 500, "elapsed: " + elapsedMillis);
+    }
+
+    @Test
+    void parkWithoutBlocking() throws Exception {
+        PulumiRequestScheduler scheduler = new PulumiRequestScheduler("test", 2);
+        scheduler.acquire(PulumiRequestPriority.INTERACTIVE);
+        scheduler.acquire(PulumiRequestPriority.INTERACTIVE);
+
+        // No token, parked without blocking the caller
+        long start = System.nanoTime();
+        CompletableFuture<Void> bulk = scheduler.acquireAsync(PulumiRequestPriority.BULK, null);
+        CompletableFuture<Void> interactive = scheduler.acquireAsync(PulumiRequestPriority.INTERACTIVE, null);
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        assertTrue(elapsedMillis < 100, "elapsed: " + elapsedMillis);
+        assertFalse(bulk.isDone());
+        assertFalse(interactive.isDone());
+
+        // The refill permits the interactive call first
+        interactive.get(2, TimeUnit.SECONDS);
+        assertFalse(bulk.isDone());
+        bulk.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void sharedByOrganization() {
+        PulumiRequestScheduler scheduler = PulumiRequestScheduler.forOrganization("shared-test", 10);
+
+        // Another rate limit reconfigures the shared one, the lowest one is applied
+        assertSame(scheduler, PulumiRequestScheduler.forOrganization("shared-test", 5));
+        assertEquals(5.0, scheduler.getRate());
+        assertSame(scheduler, PulumiRequestScheduler.forOrganization("shared-test", 0));
+        assertEquals(5.0, scheduler.getRate());
+
+        scheduler.unregister(5);
+        assertEquals(10.0, scheduler.getRate());
+
+        // Kept when all instances are unregistered
+        scheduler.unregister(0);
+        scheduler.unregister(10);
+        assertEquals(10.0, scheduler.getRate());
+        assertSame(scheduler, PulumiRequestScheduler.forOrganization("shared-test", 20));
+        assertEquals(20.0, scheduler.getRate());
+        scheduler.unregister(20);
+    }
+
+    @Test
+    void throttled() {
+        PulumiRequestScheduler scheduler = new PulumiRequestScheduler("test", 10);
+
+        scheduler.onThrottled(0);
+        assertEquals(5.0, scheduler.getRate());
+
+        scheduler.onThrottled(0);
+        assertEquals(2.5, scheduler.getRate());
+    }
+
+    @Test
+    void parseHeaders() {
+        assertEquals(3000, PulumiRequestScheduler.parseRetryAfter("3"));
+        assertEquals(1000, PulumiRequestScheduler.parseRetryAfter(null));
+        assertEquals(1000, PulumiRequestScheduler.parseRetryAfter("invalid"));
+
+        assertEquals(60000, PulumiRequestScheduler.parseReset("60"));
+        assertEquals(0, PulumiRequestScheduler.parseReset(null));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PulumiSingleFlightTest {
+
+    private final PulumiSingleFlight singleFlight = new PulumiSingleFlight();
+    private final AtomicInteger calls = new AtomicInteger();
+    private final AtomicInteger joined = new AtomicInteger();
+
+    private CompletableFuture<String> execute(String key, CompletableFuture<String> source) {
+        return singleFlight.execute(key, () -> {
+            calls.incrementAndGet();
+            return source;
+        }, joined::incrementAndGet);
+    }
+
+    @Test
+    void coalesce() throws Exception {
+        CompletableFuture<String> source = new CompletableFuture<>();
+
+        CompletableFuture<String> first = execute("hash url", source);
+        CompletableFuture<String> second = execute("hash url", new CompletableFuture<>());
+
+        assertEquals(1, calls.get());
+        assertEquals(1, joined.get());
+
+        source.complete("result");
+        assertEquals("result", first.get());
+        assertEquals("result", second.get());
+        assertEquals(0, singleFlight.getInFlight());
+
+        // The finished call isn't reused
+        execute("hash url", CompletableFuture.completedFuture("next"));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void failure() {
+        CompletableFuture<String> source = new CompletableFuture<>();
+
+        CompletableFuture<String> first = execute("hash url", source);
+        CompletableFuture<String> second = execute("hash url", new CompletableFuture<>());
+        source.completeExceptionally(new IOException("failed"));
+
+        ExecutionException e = assertThrows(ExecutionException.class, first::get);
+        assertTrue(e.getCause() instanceof IOException);
+        e = assertThrows(ExecutionException.class, second::get);
+        assertTrue(e.getCause() instanceof IOException);
+    }
+
+    @Test
+    void cancelWhenAllCallersCancelled() {
+        CompletableFuture<String> source = new CompletableFuture<>();
+
+        CompletableFuture<String> first = execute("hash url", source);
+        CompletableFuture<String> second = execute("hash url", new CompletableFuture<>());
+
+        first.cancel(true);
+        assertFalse(source.isCancelled());
+        assertFalse(second.isDone());
+
+        second.cancel(true);
+        assertTrue(source.isCancelled());
+        assertEquals(0, singleFlight.getInFlight());
+    }
+
+    @Test
+    void invalidate() {
+        CompletableFuture<String> source = new CompletableFuture<>();
+
+        execute("hash url", source);
+        execute("other url", new CompletableFuture<>());
+        singleFlight.invalidate("hash ");
+
+        CompletableFuture<String> next = execute("hash url", new CompletableFuture<>());
+        execute("other url", new CompletableFuture<>());
+
+        assertEquals(3, calls.get());
+        assertEquals(1, joined.get());
+
+        // The detached call still completes its callers
+        source.complete("result");
+        assertFalse(next.isDone());
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.rest;
+
+import jp.openstandia.connector.pulumi.PulumiClient.*;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PulumiSnapshotCacheTest {
+
+    @Test
+    void writeThrough() {
+        PulumiSnapshotCache cache = new PulumiSnapshotCache(60);
+
+        PulumiSnapshot snapshot = cache.loadMembers(() -> Arrays.asList(member("foo@example.com", "foo", "member")));
+        long version = snapshot.getVersion();
+
+        cache.onUserRoleUpdated("FOO@example.com", "admin");
+
+        // The published snapshot never changes
+        assertEquals("member", snapshot.findMemberByEmail("foo@example.com").role);
+
+        PulumiSnapshot updated = cache.get();
+        assertTrue(updated.getVersion() > version);
+        assertEquals("admin", updated.findMemberByEmail("foo@example.com").role);
+        assertEquals("admin", updated.findMemberByUsername("FOO").role);
+
+        cache.onUserDeleted("foo@example.com");
+        assertNull(cache.get().findMemberByEmail("foo@example.com"));
+    }
+
+    @Test
+    void replayMutationsWhileLoading() {
+        PulumiSnapshotCache cache = new PulumiSnapshotCache(60);
+
+        // The invitation happens while fetching the members
+        PulumiSnapshot snapshot = cache.loadMembers(() -> {
+            cache.onUserInvited("new@example.com", "member");
+            return Arrays.asList(member("foo@example.com", "foo", "member"));
+        });
+
+        assertNotNull(snapshot.findMemberByEmail("foo@example.com"));
+        assertNotNull(snapshot.findMemberByEmail("new@example.com"));
+        assertTrue(PulumiSnapshot.isPendingMember(snapshot.findMemberByEmail("new@example.com")));
+    }
+
+    @Test
+    void reverseTeamMembership() {
+        PulumiSnapshotCache cache = new PulumiSnapshotCache(60);
+
+        Map<String, List<PulumiTeamMemberRepresentation>> teamMembers = new HashMap<>();
+        teamMembers.put("dev", Arrays.asList(teamMember("foo"), teamMember("bar")));
+        teamMembers.put("ops", Arrays.asList(teamMember("foo")));
+
+        PulumiSnapshot snapshot = cache.loadAllTeamMembers(() -> Arrays.asList(team("dev"), team("ops")),
+                teams -> teamMembers);
+        assertEquals(new HashSet<>(Arrays.asList("dev", "ops")), snapshot.getTeamNamesForUser("FOO"));
+        assertEquals(Collections.singleton("dev"), snapshot.getTeamNamesForUser("bar"));
+
+        cache.onTeamMemberRemoved("dev", "foo");
+        cache.onTeamMemberAdded("ops", "bar");
+        cache.onTeamDeleted("ops");
+
+        snapshot = cache.get();
+        assertEquals(Collections.emptySet(), snapshot.getTeamNamesForUser("foo"));
+        assertEquals(Collections.singleton("dev"), snapshot.getTeamNamesForUser("bar"));
+        assertNull(snapshot.findTeam("ops"));
+        assertEquals(1, snapshot.findTeam("dev").members.size());
+    }
+
+    @Test
+    void changesOverlayLoadedMembers() {
+        PulumiSnapshotCache cache = new PulumiSnapshotCache(60);
+
+        cache.loadMembers(() -> Arrays.asList(
+                member("foo@example.com", "foo", "member"),
+                member("bar@example.com", "bar", "member"),
+                member("baz@example.com", "baz", "member")));
+
+        cache.onUserDeleted("BAR@example.com");
+        cache.onUserRoleUpdated("foo@example.com", "admin");
+        cache.onUserInvited("new@example.com", "member");
+
+        PulumiSnapshot snapshot = cache.get();
+        assertNull(snapshot.findMemberByEmail("bar@example.com"));
+        assertNull(snapshot.findMemberByUsername("bar"));
+        assertEquals("admin", snapshot.findMemberByUsername("foo").role);
+        assertEquals("baz", snapshot.findMemberByUsername("BAZ").user.githubLogin);
+
+        // The updated member keeps the position, the invited one comes last
+        List<String> emails = new ArrayList<>();
+        for (PulumiMemberRepresentation member : snapshot.getMembers()) {
+            emails.add(member.user.email);
+        }
+        assertEquals(Arrays.asList("foo@example.com", "baz@example.com", "new@example.com"), emails);
+        assertEquals(3, snapshot.getMembers().size());
+
+        // The next load drops the changes
+        PulumiSnapshotCache.Load load = cache.startLoad();
+        snapshot = cache.publish(load, s -> s.setMembers(
+                PulumiCompactMemberStore.build(Arrays.asList(member("bar@example.com", "bar", "member")), false), load.startedAt));
+        assertEquals(1, snapshot.getMembers().size());
+        assertNull(snapshot.findMemberByUsername("foo"));
+    }
+
+    @Test
+    void changedTeamKeepsLoadedTime() {
+        PulumiSnapshotCache cache = new PulumiSnapshotCache(60);
+
+        Map<String, List<PulumiTeamMemberRepresentation>> teamMembers = new HashMap<>();
+        teamMembers.put("dev", Arrays.asList(teamMember("foo")));
+        cache.loadAllTeamMembers(() -> Arrays.asList(team("dev")), teams -> teamMembers);
+
+        cache.onTeamMemberAdded("dev", "bar");
+
+        PulumiSnapshot snapshot = cache.get();
+        assertTrue(snapshot.hasFreshTeamMembers("dev", cache.getTTLNanos()));
+        assertTrue(snapshot.hasFreshAllTeamMembers(cache.getTTLNanos()));
+        assertEquals(2, snapshot.findTeam("dev").members.size());
+        assertEquals(Collections.singleton("dev"), snapshot.getTeamNamesForUser("bar"));
+    }
+
+    @Test
+    void compactChanges() {
+        PulumiSnapshotCache cache = new PulumiSnapshotCache(60);
+
+        Map<String, List<PulumiTeamMemberRepresentation>> teamMembers = new HashMap<>();
+        teamMembers.put("dev", Arrays.asList(teamMember("foo"), teamMember("bar")));
+        cache.loadAllTeamMembers(() -> Arrays.asList(team("dev")), teams -> teamMembers);
+        cache.loadMembers(() -> Arrays.asList(member("foo@example.com", "foo", "member")));
+
+        // Re-adding the removed member cancels the removal
+        cache.onTeamMemberRemoved("dev", "foo");
+        cache.onTeamMemberAdded("dev", "FOO");
+        assertEquals(Arrays.asList("foo", "bar"), usernames(cache.get().findTeam("dev")));
+
+        int count = PulumiSnapshot.MAX_CHANGES + 10;
+        for (int i = 0; i < count; i++) {
+            cache.onUserInvited("user" + i + "@example.com", "member");
+            cache.onTeamMemberAdded("dev", "user" + i);
+            cache.onTeamCreated(team("team" + i));
+        }
+        cache.onTeamMemberRemoved("dev", "bar");
+
+        // The changes are compacted into the stores without changing the content
+        PulumiSnapshot snapshot = cache.get();
+        assertEquals(count + 1, snapshot.getMembers().size());
+        assertTrue(PulumiSnapshot.isPendingMember(snapshot.findMemberByEmail("user0@example.com")));
+        assertEquals(count + 1, snapshot.getTeams().size());
+        assertNotNull(snapshot.findTeam("team0"));
+
+        List<String> usernames = usernames(snapshot.findTeam("dev"));
+        assertEquals(count + 1, usernames.size());
+        assertEquals("foo", usernames.get(0));
+        assertEquals("user" + (count - 1), usernames.get(count));
+        assertEquals(Collections.singleton("dev"), snapshot.getTeamNamesForUser("user1"));
+        assertEquals(Collections.emptySet(), snapshot.getTeamNamesForUser("bar"));
+        assertTrue(snapshot.hasFreshAllTeamMembers(cache.getTTLNanos()));
+        assertTrue(snapshot.hasFreshTeamMembers("team0", cache.getTTLNanos()));
+    }
+
+    @Test
+    void sharedByOrganizationAndCredential() {
+        int shared = PulumiSnapshotCache.getSharedCacheCount();
+
+        PulumiSnapshotCache first = PulumiSnapshotCache.acquire("org", "token", 60, false);
+        PulumiSnapshotCache second = PulumiSnapshotCache.acquire("org", "token", 60, false);
+        PulumiSnapshotCache other = PulumiSnapshotCache.acquire("org", "other-token", 60, false);
+        assertSame(first, second);
+        assertNotSame(first, other);
+        assertSame(first.getConditionalCache(), second.getConditionalCache());
+        assertNotSame(first.getConditionalCache(), other.getConditionalCache());
+        assertEquals(shared + 2, PulumiSnapshotCache.getSharedCacheCount());
+
+        first.loadMembers(() -> Arrays.asList(member("foo@example.com", "foo", "member")));
+        first.getConditionalCache().update("members", new Response.Builder()
+                .request(new Request.Builder().url("https://api.example.com/members").build())
+                .protocol(Protocol.HTTP_1_1).code(200).message("").header("ETag", "\"v1\"").build(),
+                Collections.emptyList());
+
+        // Still used by the second instance
+        first.release();
+        assertNotNull(second.get().findMemberByEmailIfLoaded("foo@example.com"));
+
+        second.release();
+        other.release();
+        assertNull(second.get().findMemberByEmailIfLoaded("foo@example.com"));
+        assertEquals(0, second.getConditionalCache().size());
+        assertEquals(shared, PulumiSnapshotCache.getSharedCacheCount());
+        PulumiSnapshotCache next = PulumiSnapshotCache.acquire("org", "token", 60, false);
+        assertNotSame(first, next);
+        next.release();
+    }
+
+    @Test
+    void offHeap() {
+        PulumiSnapshotCache cache = PulumiSnapshotCache.acquire("org", "token", 60, true);
+        try {
+            PulumiSnapshot snapshot = cache.loadMembers(() -> Arrays.asList(member("foo@example.com", "Foo", "admin")));
+            Map<String, List<PulumiTeamMemberRepresentation>> teamMembers = new HashMap<>();
+            teamMembers.put("dev", Arrays.asList(teamMember("Foo")));
+            snapshot = cache.loadAllTeamMembers(() -> Arrays.asList(team("dev")), teams -> teamMembers);
+
+            assertEquals("admin", snapshot.findMemberByUsername("foo").role);
+            assertEquals(Collections.singleton("dev"), snapshot.getTeamNamesForUser("FOO"));
+            assertEquals("Foo", snapshot.findTeam("dev").members.get(0).githubLogin);
+        } finally {
+            cache.release();
+        }
+    }
+
+    private static PulumiMemberRepresentation member(String email, String username, String role) {
+        PulumiMemberRepresentation member = new PulumiMemberRepresentation();
+        member.role = role;
+        member.user = new PulumiUserRepresentation();
+        member.user.email = email;
+        member.user.githubLogin = username;
+        return member;
+    }
+
+    private static PulumiTeamRepresentation team(String name) {
+        PulumiTeamRepresentation team = new PulumiTeamRepresentation();
+        team.name = name;
+        return team;
+    }
+
+    private static PulumiTeamMemberRepresentation teamMember(String username) {
+        PulumiTeamMemberRepresentation member = new PulumiTeamMemberRepresentation();
+        member.githubLogin = username;
+        return member;
+    }
+
+    private static List<String> usernames(PulumiTeamWithMembersRepresentation team) {
+        List<String> usernames = new ArrayList<>();
+        for (PulumiTeamMemberRepresentation member : team.members) {
+            usernames.add(member.githubLogin);
+        }
+        return usernames;
+    }
+}
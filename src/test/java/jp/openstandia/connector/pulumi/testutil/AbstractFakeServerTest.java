@@ -0,0 +1,120 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.testutil;
+
+import jp.openstandia.connector.pulumi.PulumiConfiguration;
+import jp.openstandia.connector.pulumi.PulumiConnector;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.api.APIConfiguration;
+import org.identityconnectors.framework.api.ConnectorFacade;
+import org.identityconnectors.framework.api.ConnectorFacadeFactory;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+import org.identityconnectors.test.common.TestHelpers;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Base of the end-to-end tests which run the real PulumiRESTClient against {@link FakePulumiServer}.
+ */
+public abstract class AbstractFakeServerTest {
+
+    protected FakePulumiServer server;
+    protected ConnectorFacade connector;
+
+    protected PulumiConfiguration newConfiguration() {
+        PulumiConfiguration conf = new PulumiConfiguration();
+        conf.setBaseURL(server.getBaseURL());
+        conf.setOrganization(server.getOrganization());
+        conf.setAccessToken(new GuardedString("dummy".toCharArray()));
+        // Don't wait for the rate limit in the tests
+        conf.setRateLimitPerSecond(0);
+        return conf;
+    }
+
+    protected Class<? extends PulumiConnector> getConnectorClass() {
+        return PulumiConnector.class;
+    }
+
+    protected ConnectorFacade newFacade() {
+        ConnectorFacadeFactory factory = ConnectorFacadeFactory.getInstance();
+        APIConfiguration impl = TestHelpers.createTestConfiguration(getConnectorClass(), newConfiguration());
+        impl.getResultsHandlerConfiguration().setEnableAttributesToGetSearchResultsHandler(false);
+        impl.getResultsHandlerConfiguration().setEnableNormalizingResultsHandler(false);
+        impl.getResultsHandlerConfiguration().setEnableFilteredResultsHandler(false);
+        return factory.newInstance(impl);
+    }
+
+    protected void setupServer(FakePulumiServer server) {
+    }
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = new FakePulumiServer("fake-org");
+        setupServer(server);
+        connector = newFacade();
+    }
+
+    @AfterEach
+    void stopServer() throws IOException {
+        ConnectorFacadeFactory.getInstance().dispose();
+        server.close();
+    }
+
+    /**
+     * Run the operation and assert the number of the HTTP calls and the transferred body bytes.
+     * The connector is initialized before counting.
+     *
+     * @param maxCalls
+     * @param maxBytes  request and response body bytes
+     * @param operation
+     * @return the result of the operation
+     */
+    protected <T> T assertApiCalls(int maxCalls, long maxBytes, Supplier<T> operation) {
+        connector.test();
+        server.resetRequestCounts();
+
+        T result = operation.get();
+
+        int calls = server.getRequestCount();
+        long bytes = server.getRequestBytes() + server.getResponseBytes();
+        assertTrue(calls <= maxCalls, String.format("Too many API calls: %d > %d, %s", calls, maxCalls, server.getRequestCounts()));
+        assertTrue(bytes <= maxBytes, String.format("Too many bytes: %d > %d, %s", bytes, maxBytes, server.getRequestCounts()));
+        return result;
+    }
+
+    protected void assertApiCalls(int maxCalls, long maxBytes, Runnable operation) {
+        assertApiCalls(maxCalls, maxBytes, () -> {
+            operation.run();
+            return null;
+        });
+    }
+
+    protected List<ConnectorObject> search(ObjectClass objectClass, Filter filter, OperationOptions options) {
+        List<ConnectorObject> results = new ArrayList<>();
+        connector.search(objectClass, filter, results::add, options);
+        return results;
+    }
+}
@@ -0,0 +1,544 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.testutil;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jp.openstandia.connector.pulumi.rest.PulumiEndpoint;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static jp.openstandia.connector.pulumi.PulumiClient.*;
+
+/**
+ * In-process stand-in of the pulumi REST API for the end-to-end tests of PulumiRESTClient.
+ * <p>
+ * It keeps the members, the invites and the teams of one organization in memory and updates them
+ * by the API calls. The latency, 429 (Too Many Requests) and 5xx responses can be injected.
+ */
+public class FakePulumiServer implements Closeable {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final MockWebServer server = new MockWebServer();
+    private final String organization;
+
+    // Guarded by this
+    private final Map<String, PulumiMemberRepresentation> members = new LinkedHashMap<>();
+    private final Map<String, PulumiInviteRepresentation> invites = new LinkedHashMap<>();
+    private final Map<String, PulumiTeamWithMembersRepresentation> teams = new LinkedHashMap<>();
+    private final Deque<Integer> injectedStatuses = new ArrayDeque<>();
+    private Random random = new Random(0);
+    private double throttleRate;
+    private double serverErrorRate;
+    private int inviteSequence;
+    private boolean validatorsEnabled;
+
+    private volatile long latencyMillis;
+    private final ConcurrentMap<PulumiEndpoint, AtomicInteger> requestCounts = new ConcurrentHashMap<>();
+    private final AtomicLong requestBytes = new AtomicLong();
+    private final AtomicLong responseBytes = new AtomicLong();
+
+    public FakePulumiServer(String organization) throws IOException {
+        this.organization = organization;
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                MockResponse response = handle(request);
+                requestBytes.addAndGet(Math.max(0, request.getBodySize()));
+                if (response.getBody() != null) {
+                    responseBytes.addAndGet(response.getBody().size());
+                }
+                if (latencyMillis > 0) {
+                    response.setHeadersDelay(latencyMillis, TimeUnit.MILLISECONDS);
+                }
+                return response;
+            }
+        });
+        server.start();
+    }
+
+    public String getBaseURL() {
+        return server.url("/").toString();
+    }
+
+    public String getOrganization() {
+        return organization;
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.shutdown();
+    }
+
+    // Data
+
+    public synchronized void addMember(String githubLogin, String email, String role) {
+        PulumiMemberRepresentation member = new PulumiMemberRepresentation();
+        member.role = role;
+        member.user = new PulumiUserRepresentation();
+        member.user.name = githubLogin;
+        member.user.githubLogin = githubLogin;
+        member.user.avatarUrl = "https://avatars.example.com/" + githubLogin;
+        member.user.email = email;
+        members.put(githubLogin, member);
+    }
+
+    public synchronized String addInvite(String email, String role) {
+        PulumiInviteRepresentation invite = new PulumiInviteRepresentation();
+        invite.id = "invite-" + (++inviteSequence);
+        invite.email = email;
+        invite.role = role;
+        invites.put(invite.id, invite);
+        return invite.id;
+    }
+
+    public synchronized void addTeam(String name, String displayName, String description, String... memberLogins) {
+        PulumiTeamWithMembersRepresentation team = new PulumiTeamWithMembersRepresentation();
+        team.kind = "pulumi";
+        team.name = name;
+        team.displayName = displayName;
+        team.description = description;
+        team.members = new ArrayList<>();
+        teams.put(name, team);
+        for (String login : memberLogins) {
+            addTeamMember(team, login);
+        }
+    }
+
+    /**
+     * Populate a synthetic organization. Each team has the members starting from its index.
+     *
+     * @param memberCount
+     * @param inviteCount
+     * @param teamCount
+     * @param membersPerTeam
+     */
+    public synchronized void populate(int memberCount, int inviteCount, int teamCount, int membersPerTeam) {
+        for (int i = 0; i < memberCount; i++) {
+            addMember("user" + i, "user" + i + "@example.com", i % 10 == 0 ? "admin" : "member");
+        }
+        for (int i = 0; i < inviteCount; i++) {
+            addInvite("invited" + i + "@example.com", "member");
+        }
+        for (int i = 0; i < teamCount; i++) {
+            String[] logins = new String[Math.min(membersPerTeam, memberCount)];
+            for (int j = 0; j < logins.length; j++) {
+                logins[j] = "user" + ((i + j) % memberCount);
+            }
+            addTeam("team" + i, "Team " + i, "Synthetic team " + i, logins);
+        }
+    }
+
+    /**
+     * Load the organization generated by {@link PulumiDatasetGenerator}.
+     *
+     * @param dataset
+     */
+    public synchronized void load(PulumiDataset dataset) {
+        for (PulumiMemberRepresentation member : dataset.members) {
+            members.put(member.user.githubLogin, member);
+        }
+        for (PulumiInviteRepresentation invite : dataset.invites) {
+            invites.put(invite.id, invite);
+        }
+        for (PulumiTeamWithMembersRepresentation team : dataset.teams) {
+            // Copy the members because they are changed by the API calls
+            PulumiTeamWithMembersRepresentation copy = new PulumiTeamWithMembersRepresentation();
+            copy.kind = team.kind;
+            copy.name = team.name;
+            copy.displayName = team.displayName;
+            copy.description = team.description;
+            copy.members = new ArrayList<>(team.members);
+            teams.put(copy.name, copy);
+        }
+    }
+
+    public synchronized PulumiMemberRepresentation getMember(String githubLogin) {
+        return members.get(githubLogin);
+    }
+
+    public synchronized Collection<PulumiInviteRepresentation> getInvites() {
+        return new ArrayList<>(invites.values());
+    }
+
+    public synchronized PulumiTeamWithMembersRepresentation getTeam(String name) {
+        return teams.get(name);
+    }
+
+    // Faults
+
+    public void setLatency(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Respond 429 or 503 randomly.
+     *
+     * @param throttleRate    probability of 429
+     * @param serverErrorRate probability of 503
+     * @param seed
+     */
+    public synchronized void setFaults(double throttleRate, double serverErrorRate, long seed) {
+        this.throttleRate = throttleRate;
+        this.serverErrorRate = serverErrorRate;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * Return ETag and Last-Modified in the GET responses, and respond 304 (Not Modified) to the matched If-None-Match.
+     *
+     * @param validatorsEnabled
+     */
+    public synchronized void setValidatorsEnabled(boolean validatorsEnabled) {
+        this.validatorsEnabled = validatorsEnabled;
+    }
+
+    /**
+     * Respond the status codes to the next requests in order.
+     *
+     * @param statusCodes
+     */
+    public synchronized void injectStatus(int... statusCodes) {
+        for (int code : statusCodes) {
+            injectedStatuses.add(code);
+        }
+    }
+
+    // Statistics
+
+    public int getRequestCount(PulumiEndpoint endpoint) {
+        AtomicInteger count = requestCounts.get(endpoint);
+        return count != null ? count.get() : 0;
+    }
+
+    public Map<PulumiEndpoint, Integer> getRequestCounts() {
+        Map<PulumiEndpoint, Integer> counts = new EnumMap<>(PulumiEndpoint.class);
+        requestCounts.forEach((endpoint, count) -> counts.put(endpoint, count.get()));
+        return counts;
+    }
+
+    public int getRequestCount() {
+        return requestCounts.values().stream().mapToInt(AtomicInteger::get).sum();
+    }
+
+    /**
+     * @return the total body bytes of the requests
+     */
+    public long getRequestBytes() {
+        return requestBytes.get();
+    }
+
+    /**
+     * @return the total body bytes of the responses
+     */
+    public long getResponseBytes() {
+        return responseBytes.get();
+    }
+
+    public void resetRequestCounts() {
+        requestCounts.clear();
+        requestBytes.set(0);
+        responseBytes.set(0);
+    }
+
+    // Dispatching
+
+    private synchronized MockResponse handle(RecordedRequest request) {
+        if (request.getRequestUrl() == null) {
+            return status(400);
+        }
+        List<String> path = request.getRequestUrl().pathSegments();
+        String method = request.getMethod();
+        JsonNode body = readBody(request);
+
+        PulumiEndpoint endpoint = route(method, path, body);
+        if (endpoint == null) {
+            return status(404);
+        }
+        requestCounts.computeIfAbsent(endpoint, k -> new AtomicInteger()).incrementAndGet();
+
+        String authorization = request.getHeader("Authorization");
+        if (authorization == null || !authorization.startsWith("token ")) {
+            return error(401, "Unauthorized");
+        }
+
+        Integer injected = injectedStatuses.poll();
+        if (injected != null) {
+            return fault(injected);
+        }
+        double r = random.nextDouble();
+        if (r < throttleRate) {
+            return fault(429);
+        }
+        if (r < throttleRate + serverErrorRate) {
+            return fault(503);
+        }
+
+        MockResponse response = respond(endpoint, path, body);
+        if (validatorsEnabled && method.equals("GET") && endpoint != PulumiEndpoint.SELF
+                && response.getStatus().startsWith("HTTP/1.1 200")) {
+            return conditional(request, response);
+        }
+        return response;
+    }
+
+    private MockResponse respond(PulumiEndpoint endpoint, List<String> path, JsonNode body) {
+        switch (endpoint) {
+            case SELF:
+                return json(200, Collections.singletonMap("githubLogin", "fake-admin"));
+            case LIST_INVITES:
+                return json(200, Collections.singletonMap("invites", new ArrayList<>(invites.values())));
+            case CREATE_INVITE:
+                return createInvite(body);
+            case DELETE_INVITE:
+                return invites.remove(path.get(5)) != null ? status(204) : error(404, "invite not found");
+            case LIST_MEMBERS:
+                return json(200, Collections.singletonMap("members", new ArrayList<>(members.values())));
+            case UPDATE_MEMBER:
+                return updateMember(path.get(4), body);
+            case DELETE_MEMBER:
+                return deleteMember(path.get(4));
+            case LIST_TEAMS:
+                return listTeams();
+            case CREATE_TEAM:
+                return createTeam(body);
+            case GET_TEAM:
+                return teams.containsKey(path.get(4)) ? json(200, teams.get(path.get(4))) : error(404, "team not found");
+            case UPDATE_TEAM:
+                return updateTeam(path.get(4), body);
+            case UPDATE_TEAM_MEMBER:
+                return updateTeamMember(path.get(4), body);
+            case DELETE_TEAM:
+                return teams.remove(path.get(4)) != null ? status(204) : error(404, "team not found");
+            default:
+                return status(404);
+        }
+    }
+
+    /**
+     * Add ETag and Last-Modified to the response, and respond 304 (Not Modified) if the request has the matched validator.
+     * ETag is the hash of the body, Last-Modified is fixed since the changes aren't tracked by time.
+     */
+    private MockResponse conditional(RecordedRequest request, MockResponse response) {
+        String etag = "\"" + response.getBody().clone().sha256().hex() + "\"";
+        if (etag.equals(request.getHeader("If-None-Match"))) {
+            return new MockResponse()
+                    .setResponseCode(304)
+                    .setHeader("ETag", etag);
+        }
+        return response
+                .setHeader("ETag", etag)
+                .setHeader("Last-Modified", "Mon, 19 Oct 2026 00:00:00 GMT");
+    }
+
+    private PulumiEndpoint route(String method, List<String> path, JsonNode body) {
+        if (path.size() == 2 && path.get(0).equals("api") && path.get(1).equals("user")) {
+            return method.equals("GET") ? PulumiEndpoint.SELF : null;
+        }
+        if (path.size() >= 5 && path.get(0).equals("api") && path.get(1).equals("console")
+                && path.get(2).equals("orgs") && path.get(3).equals(organization) && path.get(4).equals("invites")) {
+            if (path.size() == 5) {
+                return method.equals("GET") ? PulumiEndpoint.LIST_INVITES : method.equals("POST") ? PulumiEndpoint.CREATE_INVITE : null;
+            }
+            return path.size() == 6 && method.equals("DELETE") ? PulumiEndpoint.DELETE_INVITE : null;
+        }
+        if (path.size() >= 4 && path.get(0).equals("api") && path.get(1).equals("orgs") && path.get(2).equals(organization)) {
+            String collection = path.get(3);
+            if (collection.equals("members")) {
+                if (path.size() == 4) {
+                    return method.equals("GET") ? PulumiEndpoint.LIST_MEMBERS : null;
+                }
+                if (path.size() == 5) {
+                    return method.equals("PATCH") ? PulumiEndpoint.UPDATE_MEMBER : method.equals("DELETE") ? PulumiEndpoint.DELETE_MEMBER : null;
+                }
+            }
+            if (collection.equals("teams")) {
+                if (path.size() == 4) {
+                    return method.equals("GET") ? PulumiEndpoint.LIST_TEAMS : null;
+                }
+                if (path.size() == 5) {
+                    if (method.equals("POST") && path.get(4).equals("pulumi")) {
+                        return PulumiEndpoint.CREATE_TEAM;
+                    }
+                    switch (method) {
+                        case "GET":
+                            return PulumiEndpoint.GET_TEAM;
+                        case "PATCH":
+                            return body != null && body.has("memberAction") ? PulumiEndpoint.UPDATE_TEAM_MEMBER : PulumiEndpoint.UPDATE_TEAM;
+                        case "DELETE":
+                            return PulumiEndpoint.DELETE_TEAM;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private MockResponse createInvite(JsonNode body) {
+        String email = text(body, "email");
+        if (email == null || !email.contains("@")) {
+            return error(400, "invalid email");
+        }
+        addInvite(email, text(body, "role"));
+        return status(204);
+    }
+
+    private MockResponse updateMember(String githubLogin, JsonNode body) {
+        PulumiMemberRepresentation member = members.get(githubLogin);
+        if (member == null) {
+            return error(404, "member not found");
+        }
+        member.role = text(body, "role");
+        return status(204);
+    }
+
+    private MockResponse deleteMember(String githubLogin) {
+        if (members.remove(githubLogin) == null) {
+            return error(404, "member not found");
+        }
+        for (PulumiTeamWithMembersRepresentation team : teams.values()) {
+            team.members.removeIf(m -> m.githubLogin.equals(githubLogin));
+        }
+        return status(204);
+    }
+
+    private MockResponse listTeams() {
+        List<PulumiTeamRepresentation> list = new ArrayList<>(teams.size());
+        for (PulumiTeamWithMembersRepresentation team : teams.values()) {
+            PulumiTeamRepresentation t = new PulumiTeamRepresentation();
+            t.kind = team.kind;
+            t.name = team.name;
+            t.displayName = team.displayName;
+            t.description = team.description;
+            list.add(t);
+        }
+        return json(200, Collections.singletonMap("teams", list));
+    }
+
+    private MockResponse createTeam(JsonNode body) {
+        String name = text(body, "name");
+        if (name == null || name.isEmpty()) {
+            return error(400, "name is required");
+        }
+        if (teams.containsKey(name)) {
+            return error(409, "team already exists");
+        }
+        addTeam(name, text(body, "displayName"), text(body, "description"));
+        return json(201, teams.get(name));
+    }
+
+    private MockResponse updateTeam(String name, JsonNode body) {
+        PulumiTeamWithMembersRepresentation team = teams.get(name);
+        if (team == null) {
+            return error(404, "team not found");
+        }
+        if (body.has("newDisplayName")) {
+            team.displayName = text(body, "newDisplayName");
+        }
+        if (body.has("newDescription")) {
+            team.description = text(body, "newDescription");
+        }
+        return status(204);
+    }
+
+    private MockResponse updateTeamMember(String name, JsonNode body) {
+        PulumiTeamWithMembersRepresentation team = teams.get(name);
+        if (team == null) {
+            return error(404, "team not found");
+        }
+        String login = text(body, "member");
+        if (!members.containsKey(login)) {
+            return error(400, "member not found");
+        }
+        if ("add".equals(text(body, "memberAction"))) {
+            addTeamMember(team, login);
+        } else {
+            team.members.removeIf(m -> m.githubLogin.equals(login));
+        }
+        return status(204);
+    }
+
+    private void addTeamMember(PulumiTeamWithMembersRepresentation team, String login) {
+        if (team.members.stream().anyMatch(m -> m.githubLogin.equals(login))) {
+            return;
+        }
+        PulumiTeamMemberRepresentation teamMember = new PulumiTeamMemberRepresentation();
+        teamMember.name = login;
+        teamMember.githubLogin = login;
+        teamMember.avatarUrl = "https://avatars.example.com/" + login;
+        team.members.add(teamMember);
+    }
+
+    // Responses
+
+    private static JsonNode readBody(RecordedRequest request) {
+        if (request.getBodySize() <= 0) {
+            return null;
+        }
+        try {
+            return MAPPER.readTree(request.getBody().readByteArray());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static String text(JsonNode body, String field) {
+        if (body == null || body.get(field) == null || body.get(field).isNull()) {
+            return null;
+        }
+        return body.get(field).asText();
+    }
+
+    private static MockResponse status(int code) {
+        return new MockResponse().setResponseCode(code);
+    }
+
+    private static MockResponse json(int code, Object body) {
+        try {
+            return new MockResponse().setResponseCode(code)
+                    .setHeader("Content-Type", "application/json")
+                    .setBody(MAPPER.writeValueAsString(body));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static MockResponse error(int code, String message) {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("code", code);
+        body.put("message", message);
+        return json(code, body);
+    }
+
+    private static MockResponse fault(int code) {
+        if (code == 429) {
+            return error(429, "Too Many Requests").setHeader("Retry-After", "0");
+        }
+        return error(code, "injected fault");
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.testutil;
+
+import jp.openstandia.connector.pulumi.PulumiConnector;
+import okhttp3.OkHttpClient;
+
+/**
+ * Connector which injects the faults by the {@link FaultInjectionInterceptor} registered for the configured organization.
+ */
+public class FaultInjectingPulumiConnector extends PulumiConnector {
+    @Override
+    protected OkHttpClient.Builder createHttpClientBuilder() {
+        OkHttpClient.Builder builder = super.createHttpClientBuilder();
+        FaultInjectionInterceptor interceptor = FaultInjectionInterceptor.get(configuration.getOrganization());
+        if (interceptor != null) {
+            builder.addInterceptor(interceptor);
+        }
+        return builder;
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.testutil;
+
+import jp.openstandia.connector.pulumi.rest.PulumiEndpoint;
+import okhttp3.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * OkHttp interceptor which injects the latency and the failures into the pulumi REST API calls.
+ * <p>
+ * The faults are configured by {@link Rule} per endpoint pattern. The pattern is a regular expression
+ * which is matched against "METHOD /path" of the request, e.g. "GET /api/orgs/.+/teams/.+". The first
+ * matched rule is applied. The random decisions are seeded so that a fault profile is reproducible.
+ * <p>
+ * The faults are injected before the request is sent, so the network and the server don't see
+ * the failed calls. Use {@link FaultInjectingPulumiConnector} to plug it into the connector.
+ */
+public class FaultInjectionInterceptor implements Interceptor {
+
+    private static final ConcurrentMap<String, FaultInjectionInterceptor> INTERCEPTORS = new ConcurrentHashMap<>();
+
+    private static final MediaType JSON = MediaType.get("application/json; charset=UTF-8");
+
+    private final List<Rule> rules = new CopyOnWriteArrayList<>();
+    private final Random random;
+
+    private final AtomicInteger calls = new AtomicInteger();
+    private final AtomicInteger injectedFaults = new AtomicInteger();
+
+    public FaultInjectionInterceptor(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public static void register(String organization, FaultInjectionInterceptor interceptor) {
+        INTERCEPTORS.put(organization, interceptor);
+    }
+
+    public static void unregister(String organization) {
+        INTERCEPTORS.remove(organization);
+    }
+
+    static FaultInjectionInterceptor get(String organization) {
+        return INTERCEPTORS.get(organization);
+    }
+
+    /**
+     * Add the rule for the requests matched with the pattern.
+     *
+     * @param pattern regular expression of "METHOD /path"
+     * @return the rule to configure
+     */
+    public Rule on(String pattern) {
+        Rule rule = new Rule(Pattern.compile(pattern));
+        rules.add(rule);
+        return rule;
+    }
+
+    /**
+     * Add the rule for the endpoint. It matches the tag of the request set by PulumiRESTClient.
+     *
+     * @param endpoint
+     * @return the rule to configure
+     */
+    public Rule on(PulumiEndpoint endpoint) {
+        Rule rule = new Rule(endpoint);
+        rules.add(rule);
+        return rule;
+    }
+
+    /**
+     * Add the rule for all requests.
+     *
+     * @return the rule to configure
+     */
+    public Rule onAll() {
+        return on(".*");
+    }
+
+    public void clear() {
+        rules.clear();
+    }
+
+    public int getCalls() {
+        return calls.get();
+    }
+
+    public int getInjectedFaults() {
+        return injectedFaults.get();
+    }
+
+    public void resetCounts() {
+        calls.set(0);
+        injectedFaults.set(0);
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        calls.incrementAndGet();
+
+        Rule rule = findRule(request);
+        if (rule == null) {
+            return chain.proceed(request);
+        }
+
+        sleep(rule.latency.nextMillis(random));
+
+        Fault fault = rule.nextFault(random);
+        if (fault == null) {
+            return chain.proceed(request);
+        }
+        injectedFaults.incrementAndGet();
+
+        switch (fault) {
+            case TIMEOUT:
+                sleep(rule.timeoutMillis);
+                throw new SocketTimeoutException("Injected timeout: " + describe(request));
+            case CONNECTION_RESET:
+                throw new SocketException("Injected connection reset: " + describe(request));
+            case THROTTLE:
+                return newResponse(request, 429, "Too Many Requests")
+                        .header("Retry-After", String.valueOf(rule.retryAfterSeconds))
+                        .build();
+            case SERVER_ERROR:
+                return newResponse(request, 503, "Service Unavailable").build();
+            default:
+                throw new IllegalStateException("Unknown fault: " + fault);
+        }
+    }
+
+    private Rule findRule(Request request) {
+        PulumiEndpoint endpoint = request.tag(PulumiEndpoint.class);
+        String target = describe(request);
+        for (Rule rule : rules) {
+            if (rule.matches(endpoint, target)) {
+                return rule;
+            }
+        }
+        return null;
+    }
+
+    private static String describe(Request request) {
+        return request.method() + " " + request.url().encodedPath();
+    }
+
+    private static Response.Builder newResponse(Request request, int code, String message) {
+        return new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(code)
+                .message(message)
+                .body(ResponseBody.create("{\"code\":" + code + ",\"message\":\"" + message + "\"}", JSON));
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while injecting the latency");
+        }
+    }
+
+    enum Fault {
+        TIMEOUT, CONNECTION_RESET, THROTTLE, SERVER_ERROR
+    }
+
+    /**
+     * Distribution of the injected latency.
+     */
+    @FunctionalInterface
+    public interface Latency {
+        long nextMillis(Random random);
+
+        static Latency none() {
+            return r -> 0;
+        }
+
+        static Latency fixed(long millis) {
+            return r -> millis;
+        }
+
+        static Latency uniform(long minMillis, long maxMillis) {
+            return r -> minMillis + (long) (r.nextDouble() * (maxMillis - minMillis));
+        }
+
+        /**
+         * Long-tailed latency like the real network.
+         *
+         * @param medianMillis
+         * @param sigma        0.5 makes p99 about 3x the median, 1.0 about 10x
+         * @return
+         */
+        static Latency logNormal(long medianMillis, double sigma) {
+            return r -> (long) (medianMillis * Math.exp(sigma * r.nextGaussian()));
+        }
+    }
+
+    /**
+     * Faults injected into the matched requests. The probabilities are evaluated in the order of
+     * timeout, connection reset, 429 and 5xx.
+     */
+    public static class Rule {
+        private final Pattern pattern;
+        private final PulumiEndpoint endpoint;
+
+        private volatile Latency latency = Latency.none();
+        private volatile double timeoutRate;
+        private volatile long timeoutMillis;
+        private volatile double resetRate;
+        private volatile double throttleRate;
+        private volatile long retryAfterSeconds;
+        private volatile double burstRate;
+        private volatile int burstLength;
+
+        // Guarded by this
+        private int remainingBurst;
+
+        Rule(Pattern pattern) {
+            this.pattern = pattern;
+            this.endpoint = null;
+        }
+
+        Rule(PulumiEndpoint endpoint) {
+            this.pattern = null;
+            this.endpoint = endpoint;
+        }
+
+        boolean matches(PulumiEndpoint endpoint, String target) {
+            if (this.endpoint != null) {
+                return this.endpoint == endpoint;
+            }
+            return pattern.matcher(target).matches();
+        }
+
+        public Rule latency(Latency latency) {
+            this.latency = latency;
+            return this;
+        }
+
+        /**
+         * @param rate          probability of the timeout
+         * @param timeoutMillis wait before the timeout, it's shorter than the real read timeout in the tests
+         * @return
+         */
+        public Rule timeouts(double rate, long timeoutMillis) {
+            this.timeoutRate = rate;
+            this.timeoutMillis = timeoutMillis;
+            return this;
+        }
+
+        public Rule connectionResets(double rate) {
+            this.resetRate = rate;
+            return this;
+        }
+
+        public Rule throttle(double rate, long retryAfterSeconds) {
+            this.throttleRate = rate;
+            this.retryAfterSeconds = retryAfterSeconds;
+            return this;
+        }
+
+        /**
+         * @param rate   probability to start the burst of 503
+         * @param length number of the consecutive 503 responses
+         * @return
+         */
+        public Rule serverErrorBursts(double rate, int length) {
+            this.burstRate = rate;
+            this.burstLength = length;
+            return this;
+        }
+
+        synchronized Fault nextFault(Random random) {
+            if (remainingBurst > 0) {
+                remainingBurst--;
+                return Fault.SERVER_ERROR;
+            }
+            if (random.nextDouble() < timeoutRate) {
+                return Fault.TIMEOUT;
+            }
+            if (random.nextDouble() < resetRate) {
+                return Fault.CONNECTION_RESET;
+            }
+            if (random.nextDouble() < throttleRate) {
+                return Fault.THROTTLE;
+            }
+            if (burstLength > 0 && random.nextDouble() < burstRate) {
+                remainingBurst = burstLength - 1;
+                return Fault.SERVER_ERROR;
+            }
+            return null;
+        }
+    }
+}
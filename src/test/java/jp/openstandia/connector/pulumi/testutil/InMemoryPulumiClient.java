@@ -0,0 +1,340 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.testutil;
+
+import jp.openstandia.connector.pulumi.PulumiClient;
+import jp.openstandia.connector.pulumi.PulumiQueryHandler;
+import jp.openstandia.connector.pulumi.PulumiSchema;
+import jp.openstandia.connector.pulumi.PulumiUtils;
+import org.identityconnectors.framework.common.exceptions.AlreadyExistsException;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.identityconnectors.framework.common.exceptions.UnknownUidException;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeDelta;
+import org.identityconnectors.framework.common.objects.OperationOptions;
+import org.identityconnectors.framework.common.objects.Uid;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static jp.openstandia.connector.pulumi.PulumiTeamHandler.*;
+import static jp.openstandia.connector.pulumi.PulumiUserHandler.*;
+
+/**
+ * Stateful {@link PulumiClient} which keeps the organization in memory, e.g. a {@link PulumiDataset}.
+ * It behaves like PulumiRESTClient without HTTP, so the handlers and the mappings can be tested with large data.
+ */
+public class InMemoryPulumiClient implements PulumiClient {
+
+    private static final ConcurrentMap<String, InMemoryPulumiClient> CLIENTS = new ConcurrentHashMap<>();
+
+    // Guarded by this
+    private final Map<String, PulumiMemberRepresentation> members = new LinkedHashMap<>();
+    private final Map<String, PulumiInviteRepresentation> invites = new LinkedHashMap<>();
+    private final Map<String, PulumiTeamWithMembersRepresentation> teams = new LinkedHashMap<>();
+
+    private final AtomicInteger inviteSequence = new AtomicInteger();
+
+    public InMemoryPulumiClient() {
+    }
+
+    public InMemoryPulumiClient(PulumiDataset dataset) {
+        load(dataset);
+    }
+
+    /**
+     * Register the client for the organization, which is used by {@link InMemoryPulumiConnector}.
+     *
+     * @param organization
+     * @param client
+     */
+    public static void register(String organization, InMemoryPulumiClient client) {
+        CLIENTS.put(organization, client);
+    }
+
+    public static void unregister(String organization) {
+        CLIENTS.remove(organization);
+    }
+
+    static InMemoryPulumiClient get(String organization) {
+        InMemoryPulumiClient client = CLIENTS.get(organization);
+        if (client == null) {
+            throw new IllegalStateException("No in-memory client for the organization: " + organization);
+        }
+        return client;
+    }
+
+    public synchronized void load(PulumiDataset dataset) {
+        for (PulumiMemberRepresentation member : dataset.members) {
+            members.put(member.user.githubLogin, member);
+        }
+        for (PulumiInviteRepresentation invite : dataset.invites) {
+            invites.put(invite.id, invite);
+        }
+        for (PulumiTeamWithMembersRepresentation team : dataset.teams) {
+            teams.put(team.name, team);
+        }
+    }
+
+    @Override
+    public void test() {
+    }
+
+    @Override
+    public void checkAlive() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    // User
+
+    @Override
+    public synchronized Uid createUser(PulumiSchema schema, Set<Attribute> createAttributes) throws AlreadyExistsException {
+        PulumiInvitationRepresentation invitation = createInvitation(schema, createAttributes);
+
+        PulumiInviteRepresentation invite = new PulumiInviteRepresentation();
+        invite.id = "in-memory-" + inviteSequence.incrementAndGet();
+        invite.email = invitation.email;
+        invite.role = invitation.role;
+        invites.put(invite.id, invite);
+
+        return new Uid(invitation.email);
+    }
+
+    @Override
+    public synchronized void updateUser(PulumiSchema schema, Uid uid, Set<AttributeDelta> modifications, OperationOptions options) throws UnknownUidException {
+        PulumiMemberRepresentation member = findMember(uid);
+        if (member == null) {
+            throw new UnknownUidException(uid, USER_OBJECT_CLASS);
+        }
+        if (member.invitationId != null) {
+            throw new InvalidAttributeValueException("Can't update the pulumi user due to pending: " + uid.getUidValue());
+        }
+
+        for (AttributeDelta delta : modifications) {
+            if (delta.is(ATTR_ROLE)) {
+                members.get(member.user.githubLogin).role = PulumiUtils.toResourceValue(delta);
+
+            } else if (delta.is(ATTR_TEAMS)) {
+                for (Object teamName : values(delta.getValuesToAdd())) {
+                    addTeamMember(teamName.toString(), member.user.githubLogin);
+                }
+                for (Object teamName : values(delta.getValuesToRemove())) {
+                    removeTeamMember(teamName.toString(), member.user.githubLogin);
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void deleteUser(PulumiSchema schema, Uid uid, OperationOptions options) throws UnknownUidException {
+        PulumiMemberRepresentation member = findMember(uid);
+        if (member == null) {
+            throw new UnknownUidException(uid, USER_OBJECT_CLASS);
+        }
+        if (member.invitationId != null) {
+            invites.remove(member.invitationId);
+            return;
+        }
+        members.remove(member.user.githubLogin);
+        for (PulumiTeamWithMembersRepresentation team : teams.values()) {
+            team.members.removeIf(m -> m.githubLogin.equals(member.user.githubLogin));
+        }
+    }
+
+    @Override
+    public void getUsers(PulumiSchema schema, PulumiQueryHandler<PulumiMemberRepresentation> handler, OperationOptions options, Set<String> attributesToGet, int queryPageSize) {
+        // Invites first like the REST API client
+        for (PulumiMemberRepresentation member : snapshotMembers()) {
+            if (!handler.handle(member)) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public synchronized PulumiMemberRepresentation getUser(PulumiSchema schema, Uid uid, OperationOptions options, Set<String> attributesToGet) {
+        return findMember(uid);
+    }
+
+    @Override
+    public void getTeamsForUser(PulumiSchema schema, String username, PulumiQueryHandler<PulumiTeamRepresentation> handler) {
+        List<PulumiTeamRepresentation> found = new ArrayList<>();
+        synchronized (this) {
+            for (PulumiTeamWithMembersRepresentation team : teams.values()) {
+                if (team.members.stream().anyMatch(m -> m.githubLogin.equals(username))) {
+                    found.add(PulumiDataset.toTeam(team));
+                }
+            }
+        }
+        for (PulumiTeamRepresentation team : found) {
+            if (!handler.handle(team)) {
+                return;
+            }
+        }
+    }
+
+    // Team
+
+    @Override
+    public synchronized Uid createTeam(PulumiSchema schema, Set<Attribute> createAttributes) throws AlreadyExistsException {
+        PulumiTeamRepresentation team = newTeam(schema, createAttributes);
+        if (teams.containsKey(team.name)) {
+            throw new AlreadyExistsException(String.format("Team '%s' already exists.", team.name));
+        }
+
+        PulumiTeamWithMembersRepresentation created = new PulumiTeamWithMembersRepresentation();
+        created.kind = "pulumi";
+        created.name = team.name;
+        created.displayName = team.displayName;
+        created.description = team.description;
+        created.members = new ArrayList<>();
+        teams.put(created.name, created);
+
+        return new Uid(team.name);
+    }
+
+    @Override
+    public synchronized void updateTeam(PulumiSchema schema, Uid uid, Set<AttributeDelta> modifications, OperationOptions options) throws UnknownUidException {
+        PulumiTeamWithMembersRepresentation team = teams.get(uid.getUidValue());
+        if (team == null) {
+            throw new UnknownUidException(uid, TEAM_OBJECT_CLASS);
+        }
+
+        for (AttributeDelta delta : modifications) {
+            if (delta.is(ATTR_DISPLAY_NAME)) {
+                team.displayName = PulumiUtils.toResourceValue(delta);
+
+            } else if (delta.is(ATTR_DESCRIPTION)) {
+                team.description = PulumiUtils.toResourceValue(delta);
+
+            } else if (delta.is(ATTR_MEMBERS)) {
+                for (Object username : values(delta.getValuesToAdd())) {
+                    addTeamMember(team.name, username.toString());
+                }
+                for (Object username : values(delta.getValuesToRemove())) {
+                    removeTeamMember(team.name, username.toString());
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void deleteTeam(PulumiSchema schema, Uid uid, OperationOptions options) throws UnknownUidException {
+        if (teams.remove(uid.getUidValue()) == null) {
+            throw new UnknownUidException(uid, TEAM_OBJECT_CLASS);
+        }
+    }
+
+    @Override
+    public void getTeams(PulumiSchema schema, PulumiQueryHandler<PulumiTeamRepresentation> handler, OperationOptions options, Set<String> attributesToGet, int queryPageSize) {
+        List<PulumiTeamRepresentation> list = new ArrayList<>();
+        synchronized (this) {
+            for (PulumiTeamWithMembersRepresentation team : teams.values()) {
+                list.add(PulumiDataset.toTeam(team));
+            }
+        }
+        for (PulumiTeamRepresentation team : list) {
+            if (!handler.handle(team)) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public synchronized PulumiTeamWithMembersRepresentation getTeam(PulumiSchema schema, Uid uid, OperationOptions options, Set<String> attributesToGet) {
+        PulumiTeamWithMembersRepresentation team = teams.get(uid.getUidValue());
+        if (team == null) {
+            return null;
+        }
+        PulumiTeamWithMembersRepresentation copy = new PulumiTeamWithMembersRepresentation();
+        copy.kind = team.kind;
+        copy.name = team.name;
+        copy.displayName = team.displayName;
+        copy.description = team.description;
+        copy.members = new ArrayList<>(team.members);
+        return copy;
+    }
+
+    // Utilities
+
+    private synchronized List<PulumiMemberRepresentation> snapshotMembers() {
+        List<PulumiMemberRepresentation> list = new ArrayList<>(invites.size() + members.size());
+        for (PulumiInviteRepresentation invite : invites.values()) {
+            list.add(toMember(invite));
+        }
+        list.addAll(members.values());
+        return list;
+    }
+
+    private PulumiMemberRepresentation findMember(Uid uid) {
+        // email is case-insensitive
+        for (PulumiInviteRepresentation invite : invites.values()) {
+            if (invite.email.equalsIgnoreCase(uid.getUidValue())) {
+                return toMember(invite);
+            }
+        }
+        for (PulumiMemberRepresentation member : members.values()) {
+            if (member.user.email.equalsIgnoreCase(uid.getUidValue())) {
+                return member;
+            }
+        }
+        return null;
+    }
+
+    private static PulumiMemberRepresentation toMember(PulumiInviteRepresentation invite) {
+        PulumiMemberRepresentation member = new PulumiMemberRepresentation();
+        member.invitationId = invite.id;
+        member.role = invite.role;
+        member.user = new PulumiUserRepresentation();
+        member.user.email = invite.email;
+        return member;
+    }
+
+    private void addTeamMember(String teamName, String username) {
+        PulumiTeamWithMembersRepresentation team = teams.get(teamName);
+        if (team == null) {
+            throw new UnknownUidException(new Uid(teamName), TEAM_OBJECT_CLASS);
+        }
+        PulumiMemberRepresentation member = members.get(username);
+        if (member == null) {
+            throw new InvalidAttributeValueException("Unknown pulumi user: " + username);
+        }
+        if (team.members.stream().noneMatch(m -> m.githubLogin.equals(username))) {
+            PulumiTeamMemberRepresentation teamMember = new PulumiTeamMemberRepresentation();
+            teamMember.name = member.user.name;
+            teamMember.githubLogin = member.user.githubLogin;
+            teamMember.avatarUrl = member.user.avatarUrl;
+            team.members.add(teamMember);
+        }
+    }
+
+    private void removeTeamMember(String teamName, String username) {
+        PulumiTeamWithMembersRepresentation team = teams.get(teamName);
+        if (team == null) {
+            throw new UnknownUidException(new Uid(teamName), TEAM_OBJECT_CLASS);
+        }
+        team.members.removeIf(m -> m.githubLogin.equals(username));
+    }
+
+    private static List<Object> values(List<Object> values) {
+        return values != null ? values : Collections.emptyList();
+    }
+}
@@ -26,6 +26,11 @@ public class MockClient implements PulumiClient {
 
     }
 
+    @Override
+    public void checkAlive() {
+
+    }
+
     @Override
     public void close() {
 
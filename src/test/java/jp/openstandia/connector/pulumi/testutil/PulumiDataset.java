@@ -0,0 +1,90 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.testutil;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static jp.openstandia.connector.pulumi.PulumiClient.*;
+
+/**
+ * Synthetic organization generated by {@link PulumiDatasetGenerator}.
+ */
+public class PulumiDataset {
+
+    public final List<PulumiMemberRepresentation> members;
+    public final List<PulumiInviteRepresentation> invites;
+    public final List<PulumiTeamWithMembersRepresentation> teams;
+
+    PulumiDataset(List<PulumiMemberRepresentation> members, List<PulumiInviteRepresentation> invites,
+                  List<PulumiTeamWithMembersRepresentation> teams) {
+        this.members = members;
+        this.invites = invites;
+        this.teams = teams;
+    }
+
+    /**
+     * @return the response of the members API
+     */
+    public PulumiMembersRepresentation toMembersRepresentation() {
+        PulumiMembersRepresentation rep = new PulumiMembersRepresentation();
+        rep.members = members;
+        return rep;
+    }
+
+    /**
+     * @return the response of the invites API
+     */
+    public PulumiInvitesRepresentation toInvitesRepresentation() {
+        PulumiInvitesRepresentation rep = new PulumiInvitesRepresentation();
+        rep.invites = invites;
+        return rep;
+    }
+
+    /**
+     * @return the response of the teams API, which doesn't include the members
+     */
+    public PulumiTeamsRepresentation toTeamsRepresentation() {
+        PulumiTeamsRepresentation rep = new PulumiTeamsRepresentation();
+        rep.teams = new ArrayList<>(teams.size());
+        for (PulumiTeamWithMembersRepresentation team : teams) {
+            rep.teams.add(toTeam(team));
+        }
+        return rep;
+    }
+
+    /**
+     * @return the team which has the most members
+     */
+    public PulumiTeamWithMembersRepresentation getLargestTeam() {
+        PulumiTeamWithMembersRepresentation largest = null;
+        for (PulumiTeamWithMembersRepresentation team : teams) {
+            if (largest == null || team.members.size() > largest.members.size()) {
+                largest = team;
+            }
+        }
+        return largest;
+    }
+
+    static PulumiTeamRepresentation toTeam(PulumiTeamWithMembersRepresentation team) {
+        PulumiTeamRepresentation t = new PulumiTeamRepresentation();
+        t.kind = team.kind;
+        t.name = team.name;
+        t.displayName = team.displayName;
+        t.description = team.description;
+        return t;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.pulumi.testutil;
+
+import java.util.*;
+
+import static jp.openstandia.connector.pulumi.PulumiClient.*;
+
+/**
+ * Deterministic generator of a large pulumi organization for the tests and the benchmarks.
+ * <p>
+ * The same seed and settings always generate the same dataset. The team sizes follow the power law
+ * (a few large teams and many small teams), some emails have upper case letters like real users
+ * type them, and the pending invites are mixed.
+ */
+public class PulumiDatasetGenerator {
+
+    private static final String[] FIRST_NAMES = {
+            "Taro", "Hanako", "Alice", "Bob", "Carol", "Dave", "Erin", "Frank", "Grace", "Heidi",
+            "Ivan", "Judy", "Ken", "Yuki", "Mallory", "Niaj", "Olivia", "Peggy", "Rupert", "Sybil"
+    };
+    private static final String[] LAST_NAMES = {
+            "Sato", "Suzuki", "Takahashi", "Tanaka", "Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia",
+            "Miller", "Davis", "Wilson", "Anderson", "Thomas", "Taylor", "Moore", "Martin", "Lee", "Walker"
+    };
+    private static final String[] DOMAINS = {"example.com", "example.org", "corp.example.net"};
+
+    private final long seed;
+    private int memberCount = 1000;
+    private int inviteCount = 50;
+    private int teamCount = 100;
+    private int maxTeamSize = 500;
+    private double teamSizeExponent = 1.0;
+    private double adminRatio = 0.05;
+    private double caseVariantRatio = 0.1;
+
+    public PulumiDatasetGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    public PulumiDatasetGenerator members(int memberCount) {
+        this.memberCount = memberCount;
+        return this;
+    }
+
+    public PulumiDatasetGenerator invites(int inviteCount) {
+        this.inviteCount = inviteCount;
+        return this;
+    }
+
+    public PulumiDatasetGenerator teams(int teamCount) {
+        this.teamCount = teamCount;
+        return this;
+    }
+
+    /**
+     * @param maxTeamSize size of the largest team, capped by the number of the members
+     * @return
+     */
+    public PulumiDatasetGenerator maxTeamSize(int maxTeamSize) {
+        this.maxTeamSize = maxTeamSize;
+        return this;
+    }
+
+    /**
+     * @param teamSizeExponent exponent of the Zipf distribution of the team sizes. 0 makes all teams the max size.
+     * @return
+     */
+    public PulumiDatasetGenerator teamSizeExponent(double teamSizeExponent) {
+        this.teamSizeExponent = teamSizeExponent;
+        return this;
+    }
+
+    public PulumiDatasetGenerator adminRatio(double adminRatio) {
+        this.adminRatio = adminRatio;
+        return this;
+    }
+
+    /**
+     * @param caseVariantRatio ratio of the emails which have upper case letters
+     * @return
+     */
+    public PulumiDatasetGenerator caseVariantRatio(double caseVariantRatio) {
+        this.caseVariantRatio = caseVariantRatio;
+        return this;
+    }
+
+    public PulumiDataset generate() {
+        Random random = new Random(seed);
+
+        List<PulumiMemberRepresentation> members = new ArrayList<>(memberCount);
+        for (int i = 0; i < memberCount; i++) {
+            String first = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+            String last = LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+
+            PulumiMemberRepresentation member = new PulumiMemberRepresentation();
+            member.role = random.nextDouble() < adminRatio ? "admin" : "member";
+            member.user = new PulumiUserRepresentation();
+            member.user.name = first + " " + last;
+            // githubLogin is unique and case-sensitive
+            member.user.githubLogin = first.toLowerCase(Locale.ROOT) + "-" + last.toLowerCase(Locale.ROOT) + "-" + i;
+            member.user.avatarUrl = "https://avatars.example.com/u/" + (100000 + i);
+            member.user.email = email(random, first, last, i);
+            members.add(member);
+        }
+
+        List<PulumiInviteRepresentation> invites = new ArrayList<>(inviteCount);
+        for (int i = 0; i < inviteCount; i++) {
+            String first = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+            String last = LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+
+            PulumiInviteRepresentation invite = new PulumiInviteRepresentation();
+            invite.id = new UUID(seed, i).toString();
+            invite.email = email(random, first, last, memberCount + i);
+            invite.role = random.nextDouble() < adminRatio ? "admin" : "member";
+            invites.add(invite);
+        }
+
+        // Partial Fisher-Yates shuffle over a permutation picks the distinct members of each team
+        int[] indexes = new int[members.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = i;
+        }
+
+        List<PulumiTeamWithMembersRepresentation> teams = new ArrayList<>(teamCount);
+        for (int i = 0; i < teamCount; i++) {
+            PulumiTeamWithMembersRepresentation team = new PulumiTeamWithMembersRepresentation();
+            team.kind = "pulumi";
+            team.name = "team-" + i;
+            team.displayName = "Team " + i;
+            team.description = random.nextBoolean() ? "Synthetic team " + i : "";
+
+            int size = teamSize(i);
+            team.members = new ArrayList<>(size);
+            for (int j = 0; j < size; j++) {
+                int k = j + random.nextInt(indexes.length - j);
+                int picked = indexes[k];
+                indexes[k] = indexes[j];
+                indexes[j] = picked;
+
+                PulumiUserRepresentation user = members.get(picked).user;
+                PulumiTeamMemberRepresentation teamMember = new PulumiTeamMemberRepresentation();
+                teamMember.name = user.name;
+                teamMember.githubLogin = user.githubLogin;
+                teamMember.avatarUrl = user.avatarUrl;
+                team.members.add(teamMember);
+            }
+            teams.add(team);
+        }
+
+        return new PulumiDataset(members, invites, teams);
+    }
+
+    private int teamSize(int rank) {
+        int max = Math.min(maxTeamSize, memberCount);
+        if (max == 0) {
+            return 0;
+        }
+        return Math.max(1, (int) Math.round(max / Math.pow(rank + 1, teamSizeExponent)));
+    }
+
+    private String email(Random random, String first, String last, int i) {
+        String local = first.toLowerCase(Locale.ROOT) + "." + last.toLowerCase(Locale.ROOT) + i;
+        String domain = DOMAINS[i % DOMAINS.length];
+        if (random.nextDouble() < caseVariantRatio) {
+            // e.g. Taro.Sato12@Example.com
+            local = first + "." + last + i;
+            domain = Character.toUpperCase(domain.charAt(0)) + domain.substring(1);
+        }
+        return local + "@" + domain;
+    }
+}